@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Measures how fast the Scanner gets through source, in megabytes a second,
+// so a change that slows it down shows up. It lives in its own source
+// directory, next to the corpus of Lox files it is meant to be run on, so it
+// isn't built into jlox itself. From the jlox directory, with jlox's classes
+// in out:
+//
+//     javac -cp out -d bench/out bench/src/com/craftinginterpreters/lox/*.java
+//     java -cp out:bench/out com.craftinginterpreters.lox.ScanBenchmark \
+//         [--rounds n] [--repeat n] bench/corpus/*.lox
+//
+// --repeat joins each file's text to itself n times, which turns the small
+// files of the corpus into large ones: --repeat 750 makes about 7.5 MB.
+//
+// The files are scanned over and over for a while first, so the timed
+// rounds run JIT-compiled code, and the best round is reported.
+public class ScanBenchmark {
+  // How long to warm up, and to scan for in each timed round.
+  private static final long WARMUP_NANOS = 3_000_000_000L;
+  private static final long ROUND_NANOS = 1_000_000_000L;
+
+  public static void main(String[] args) throws IOException {
+    int rounds = 5;
+    int repeat = 1;
+    int first = 0;
+    while (first + 1 < args.length && args[first].startsWith("--")) {
+      if (args[first].equals("--rounds")) {
+        rounds = Integer.parseInt(args[first + 1]);
+      } else if (args[first].equals("--repeat")) {
+        repeat = Integer.parseInt(args[first + 1]);
+      } else {
+        break;
+      }
+      first += 2;
+    }
+    if (first == args.length || args[first].startsWith("--")) {
+      System.out.println(
+          "Usage: ScanBenchmark [--rounds n] [--repeat n] file...");
+      System.exit(64);
+    }
+
+    String[] sources = new String[args.length - first];
+    long bytes = 0;
+    for (int i = 0; i < sources.length; i++) {
+      byte[] file = Files.readAllBytes(Paths.get(args[first + i]));
+      sources[i] = new String(file, Charset.defaultCharset()).repeat(repeat);
+      bytes += (long)file.length * repeat;
+    }
+
+    run(sources, WARMUP_NANOS);
+
+    double best = 0;
+    for (int round = 1; round <= rounds; round++) {
+      long start = System.nanoTime();
+      long passes = run(sources, ROUND_NANOS);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      double throughput = passes * bytes / 1e6 / seconds;
+      System.out.printf("round %d: %.1f MB/s%n", round, throughput);
+      best = Math.max(best, throughput);
+    }
+    System.out.printf("best: %.1f MB/s over %d bytes%n", best, bytes);
+  }
+
+  // Scans all the sources as many times as fit in the time, and returns
+  // how many times that was.
+  private static long run(String[] sources, long nanos) {
+    long end = System.nanoTime() + nanos;
+    long passes = 0;
+    int tokens = 0;
+    do {
+      for (String source : sources) {
+        Scanner scanner = new Scanner(source, new ErrorReporter());
+        tokens += scanner.scanTokens().size();
+      }
+      passes++;
+    } while (System.nanoTime() < end);
+
+    // Use the token count, so the scanning can't be optimized away.
+    if (tokens == 42) System.out.print("");
+    return passes;
+  }
+}
@@ -0,0 +1,791 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps the resolved syntax trees of source files in a directory, so running
+// a file again skips scanning, parsing and resolving it. Each tree is stored
+// in a file named by a hash of the source, with the slots the Resolver gave
+// its variables and functions, and is memory-mapped to read it back.
+//
+// The file starts with the strings it uses, each once, so a tree read back
+// shares lexemes the way a freshly parsed one does. Then come the globals
+// the file writes, the imports and the statements, written depth first,
+// each node as a tag and its fields. A file that can't be read or is from
+// another version of the format is a miss, and is written over.
+class AstCache {
+  private static final int MAGIC = 0x4c4f5841; // "LOXA".
+  private static final int VERSION = 5;
+
+  // Tags for the kinds of node. Zero is an absent node.
+  private static final int NONE = 0;
+
+  private static final int BLOCK = 1;
+  private static final int BREAK = 2;
+  private static final int CLASS = 3;
+  private static final int CONTINUE = 4;
+  private static final int EXPRESSION = 5;
+  private static final int FUNCTION = 6;
+  private static final int IF = 7;
+  private static final int PRINT = 8;
+  private static final int RETURN = 9;
+  private static final int VAR = 10;
+  private static final int WHILE = 11;
+
+  private static final int ASSIGN = 1;
+  private static final int BINARY = 2;
+  private static final int CALL = 3;
+  private static final int GET = 4;
+  private static final int FUNCTION_EXPR = 5;
+  private static final int GROUPING = 6;
+  private static final int LITERAL = 7;
+  private static final int LOGICAL = 8;
+  private static final int SET = 9;
+  private static final int SUPER = 10;
+  private static final int THIS = 11;
+  private static final int UNARY = 12;
+  private static final int VARIABLE = 13;
+  private static final int INDEX = 14;
+  private static final int SET_INDEX = 15;
+
+  // Tags for literal values.
+  private static final int NIL = 0;
+  private static final int FALSE = 1;
+  private static final int TRUE = 2;
+  private static final int NUMBER = 3;
+  private static final int STRING = 4;
+
+  private static final TokenType[] TYPES = TokenType.values();
+  private static final LoxFunction.Kind[] KINDS = LoxFunction.Kind.values();
+
+  // What a source file compiled to.
+  static class Entry {
+    final List<Token> imports;
+    final List<Stmt> statements;
+    final int slotCount;
+    final List<String> globalWrites;
+
+    Entry(List<Token> imports, List<Stmt> statements, int slotCount,
+          List<String> globalWrites) {
+      this.imports = imports;
+      this.statements = statements;
+      this.slotCount = slotCount;
+      this.globalWrites = globalWrites;
+    }
+  }
+
+  private final Path directory;
+
+  AstCache(Path directory) {
+    this.directory = directory;
+  }
+
+  // Names the entry for the source, by its 128-bit MurmurHash3. That is
+  // quicker to start up than the JDK's digests, which cost more than a
+  // small script takes to scan. The charset is the seed, since it decides
+  // what the bytes scan to.
+  String key(byte[] source) {
+    ByteBuffer bytes = ByteBuffer.wrap(source).order(ByteOrder.LITTLE_ENDIAN);
+    long h1 = Charset.defaultCharset().name().hashCode();
+    long h2 = h1;
+
+    int blocks = source.length / 16 * 16;
+    for (int i = 0; i < blocks; i += 16) {
+      h1 ^= mixK1(bytes.getLong(i));
+      h1 = Long.rotateLeft(h1, 27) + h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      h2 ^= mixK2(bytes.getLong(i + 8));
+      h2 = Long.rotateLeft(h2, 31) + h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = blocks; i < source.length; i++) {
+      long b = source[i] & 0xff;
+      int shift = (i - blocks) % 8 * 8;
+      if (i - blocks < 8) {
+        k1 |= b << shift;
+      } else {
+        k2 |= b << shift;
+      }
+    }
+    h1 ^= mixK1(k1);
+    h2 ^= mixK2(k2);
+
+    h1 ^= source.length;
+    h2 ^= source.length;
+    h1 += h2;
+    h2 += h1;
+    h1 = finish(h1);
+    h2 = finish(h2);
+    h1 += h2;
+    h2 += h1;
+    return hex(h1) + hex(h2);
+  }
+
+  private static String hex(long value) {
+    String digits = Long.toHexString(value);
+    return "0000000000000000".substring(digits.length()) + digits;
+  }
+
+  private static long mixK1(long k) {
+    return Long.rotateLeft(k * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL;
+  }
+
+  private static long mixK2(long k) {
+    return Long.rotateLeft(k * 0x4cf5ad432745937fL, 33) * 0x87c37b91114253d5L;
+  }
+
+  private static long finish(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+
+  // Returns the cached entry, or null if there isn't a usable one.
+  Entry load(String key) {
+    Path file = directory.resolve(key + ".ast");
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      return new Reader(buffer).entry();
+    } catch (IOException | RuntimeException error) {
+      // Missing, or cut short or otherwise damaged.
+      return null;
+    }
+  }
+
+  // Writes the entry, if it can. Another run may be writing the same one,
+  // so it is written to a file of its own first and then moved into place.
+  void store(String key, Entry entry) {
+    Path temp = null;
+    try {
+      Files.createDirectories(directory);
+      temp = Files.createTempFile(directory, key, ".tmp");
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        new Writer().write(entry, out);
+      }
+      Files.move(temp, directory.resolve(key + ".ast"),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException error) {
+      // Running doesn't depend on the cache, so just don't cache it.
+      try {
+        if (temp != null) Files.deleteIfExists(temp);
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private static class Writer
+      implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<String> stringList = new ArrayList<>();
+
+    void write(Entry entry, OutputStream file) throws IOException {
+      out.writeInt(entry.slotCount);
+      integer(entry.globalWrites.size());
+      for (String name : entry.globalWrites) string(name);
+      tokens(entry.imports);
+      statements(entry.statements);
+
+      DataOutputStream header = new DataOutputStream(file);
+      header.writeInt(MAGIC);
+      header.writeInt(VERSION);
+      header.writeInt(stringList.size());
+      for (String string : stringList) {
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        header.writeInt(utf8.length);
+        header.write(utf8);
+      }
+      bytes.writeTo(header);
+      header.flush();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      tag(BLOCK);
+      statements(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+      tag(BREAK);
+      token(stmt.name);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      tag(CLASS);
+      token(stmt.name);
+      expression(stmt.superclass);
+      functions(stmt.methods);
+      functions(stmt.staticMethods);
+      integer(stmt.slot);
+      integer(stmt.superSlot);
+      return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+      tag(CONTINUE);
+      token(stmt.name);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      tag(EXPRESSION);
+      expression(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      tag(FUNCTION);
+      token(stmt.name);
+      tokens(stmt.parameters);
+      statements(stmt.body);
+      integer(stmt.slot);
+      integer(stmt.slotCount);
+      captures(stmt.captures);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      tag(IF);
+      expression(stmt.condition);
+      statement(stmt.thenBranch);
+      statement(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      tag(PRINT);
+      expression(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      tag(RETURN);
+      token(stmt.keyword);
+      expression(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      tag(VAR);
+      token(stmt.name);
+      expression(stmt.initializer);
+      integer(stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      tag(WHILE);
+      expression(stmt.condition);
+      statement(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      tag(ASSIGN);
+      token(expr.name);
+      expression(expr.value);
+      integer(expr.slot);
+      integer(expr.upvalue);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      tag(BINARY);
+      expression(expr.left);
+      token(expr.operator);
+      expression(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      tag(CALL);
+      expression(expr.callee);
+      token(expr.paren);
+      integer(expr.arguments.size());
+      for (Expr argument : expr.arguments) expression(argument);
+      tag(expr.tail ? 1 : 0);
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      tag(GET);
+      expression(expr.object);
+      token(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+      tag(FUNCTION_EXPR);
+      tag(expr.kind.ordinal());
+      token(expr.name);
+      tokens(expr.parameters);
+      statements(expr.body);
+      integer(expr.slot);
+      integer(expr.slotCount);
+      captures(expr.captures);
+      tag(expr.reassigned ? 1 : 0);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      tag(GROUPING);
+      expression(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+      tag(INDEX);
+      expression(expr.object);
+      token(expr.bracket);
+      expression(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      tag(LITERAL);
+      value(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      tag(LOGICAL);
+      expression(expr.left);
+      token(expr.operator);
+      expression(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      tag(SET);
+      expression(expr.object);
+      token(expr.name);
+      expression(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+      tag(SET_INDEX);
+      expression(expr.object);
+      token(expr.bracket);
+      expression(expr.index);
+      expression(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      tag(SUPER);
+      token(expr.keyword);
+      token(expr.method);
+      integer(expr.slot);
+      integer(expr.upvalue);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      tag(THIS);
+      token(expr.keyword);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      tag(UNARY);
+      token(expr.operator);
+      expression(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      tag(VARIABLE);
+      token(expr.name);
+      integer(expr.slot);
+      integer(expr.upvalue);
+      return null;
+    }
+
+    private void statements(List<Stmt> statements) {
+      integer(statements.size());
+      for (Stmt statement : statements) statement(statement);
+    }
+
+    private void functions(List<Stmt.Function> functions) {
+      integer(functions.size());
+      for (Stmt.Function function : functions) statement(function);
+    }
+
+    private void statement(Stmt stmt) {
+      if (stmt == null) {
+        tag(NONE);
+      } else {
+        stmt.accept(this);
+      }
+    }
+
+    private void expression(Expr expr) {
+      if (expr == null) {
+        tag(NONE);
+      } else {
+        expr.accept(this);
+      }
+    }
+
+    private void tokens(List<Token> tokens) {
+      integer(tokens.size());
+      for (Token token : tokens) token(token);
+    }
+
+    // A token's type is stored one more than its ordinal, so an absent
+    // token can be a zero.
+    private void token(Token token) {
+      if (token == null) {
+        tag(0);
+        return;
+      }
+
+      tag(token.type.ordinal() + 1);
+      string(token.lexeme);
+      value(token.literal);
+      integer(token.line);
+    }
+
+    private void value(Object value) {
+      if (value == null) {
+        tag(NIL);
+      } else if (value instanceof Boolean) {
+        tag((Boolean)value ? TRUE : FALSE);
+      } else if (value instanceof Double) {
+        tag(NUMBER);
+        try {
+          out.writeDouble((Double)value);
+        } catch (IOException error) {
+          throw new IllegalStateException(error);
+        }
+      } else {
+        tag(STRING);
+        string((String)value);
+      }
+    }
+
+    private void captures(int[] captures) {
+      integer(captures.length);
+      for (int capture : captures) integer(capture);
+    }
+
+    private void string(String string) {
+      Integer index = strings.get(string);
+      if (index == null) {
+        index = stringList.size();
+        strings.put(string, index);
+        stringList.add(string);
+      }
+      integer(index);
+    }
+
+    private void tag(int tag) {
+      // The stream is unbuffered, so this goes after what it already wrote.
+      bytes.write(tag);
+    }
+
+    private void integer(int value) {
+      try {
+        out.writeInt(value);
+      } catch (IOException error) {
+        throw new IllegalStateException(error);
+      }
+    }
+  }
+
+  private static class Reader {
+    private final ByteBuffer buffer;
+    private String[] strings;
+
+    Reader(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    Entry entry() {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        return null;
+      }
+
+      strings = new String[count(4)];
+      byte[] utf8 = new byte[64];
+      for (int i = 0; i < strings.length; i++) {
+        int length = count(1);
+        if (length > utf8.length) utf8 = new byte[length];
+        buffer.get(utf8, 0, length);
+        strings[i] = new String(utf8, 0, length, StandardCharsets.UTF_8);
+      }
+
+      int slotCount = buffer.getInt();
+      int writes = count(4);
+      List<String> globalWrites = new ArrayList<>(writes);
+      for (int i = 0; i < writes; i++) {
+        globalWrites.add(strings[buffer.getInt()]);
+      }
+      List<Token> imports = tokens();
+      List<Stmt> statements = statements();
+      return new Entry(imports, statements, slotCount, globalWrites);
+    }
+
+    private List<Stmt> statements() {
+      int count = count(1);
+      List<Stmt> statements = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) statements.add(statement());
+      return statements;
+    }
+
+    private List<Stmt.Function> functions() {
+      int count = count(1);
+      List<Stmt.Function> functions = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        functions.add((Stmt.Function)statement());
+      }
+      return functions;
+    }
+
+    private Stmt statement() {
+      int tag = buffer.get();
+      switch (tag) {
+        case NONE:
+          return null;
+
+        case BLOCK:
+          return new Stmt.Block(statements());
+
+        case BREAK:
+          return new Stmt.Break(token());
+
+        case CLASS: {
+          Stmt.Class stmt = new Stmt.Class(token(),
+              (Expr.Variable)expression(), functions(), functions());
+          stmt.slot = buffer.getInt();
+          stmt.superSlot = buffer.getInt();
+          return stmt;
+        }
+
+        case CONTINUE:
+          return new Stmt.Continue(token());
+
+        case EXPRESSION:
+          return new Stmt.Expression(expression());
+
+        case FUNCTION: {
+          Stmt.Function stmt = new Stmt.Function(token(), tokens(),
+              statements());
+          stmt.slot = buffer.getInt();
+          stmt.slotCount = buffer.getInt();
+          stmt.captures = captures();
+          return stmt;
+        }
+
+        case IF:
+          return new Stmt.If(expression(), statement(), statement());
+
+        case PRINT:
+          return new Stmt.Print(expression());
+
+        case RETURN:
+          return new Stmt.Return(token(), expression());
+
+        case VAR: {
+          Stmt.Var stmt = new Stmt.Var(token(), expression());
+          stmt.slot = buffer.getInt();
+          return stmt;
+        }
+
+        case WHILE:
+          return new Stmt.While(expression(), statement());
+
+        default:
+          throw new IllegalStateException("Unknown statement tag " + tag + ".");
+      }
+    }
+
+    private Expr expression() {
+      int tag = buffer.get();
+      switch (tag) {
+        case NONE:
+          return null;
+
+        case ASSIGN: {
+          Expr.Assign expr = new Expr.Assign(token(), expression());
+          expr.slot = buffer.getInt();
+          expr.upvalue = buffer.getInt();
+          return expr;
+        }
+
+        case BINARY:
+          return new Expr.Binary(expression(), token(), expression());
+
+        case CALL: {
+          Expr callee = expression();
+          Token paren = token();
+          int count = count(1);
+          List<Expr> arguments = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) arguments.add(expression());
+          Expr.Call expr = new Expr.Call(callee, paren, arguments);
+          expr.tail = buffer.get() != 0;
+          return expr;
+        }
+
+        case GET:
+          return new Expr.Get(expression(), token());
+
+        case FUNCTION_EXPR: {
+          LoxFunction.Kind kind = KINDS[buffer.get()];
+          Expr.Function expr = new Expr.Function(kind, token(), tokens(),
+              statements());
+          expr.slot = buffer.getInt();
+          expr.slotCount = buffer.getInt();
+          expr.captures = captures();
+          expr.reassigned = buffer.get() != 0;
+          return expr;
+        }
+
+        case GROUPING:
+          return new Expr.Grouping(expression());
+
+        case INDEX:
+          return new Expr.Index(expression(), token(), expression());
+
+        case LITERAL:
+          return new Expr.Literal(value());
+
+        case LOGICAL:
+          return new Expr.Logical(expression(), token(), expression());
+
+        case SET:
+          return new Expr.Set(expression(), token(), expression());
+
+        case SET_INDEX:
+          return new Expr.SetIndex(expression(), token(), expression(),
+              expression());
+
+        case SUPER: {
+          Expr.Super expr = new Expr.Super(token(), token());
+          expr.slot = buffer.getInt();
+          expr.upvalue = buffer.getInt();
+          return expr;
+        }
+
+        case THIS:
+          return new Expr.This(token());
+
+        case UNARY:
+          return new Expr.Unary(token(), expression());
+
+        case VARIABLE: {
+          Expr.Variable expr = new Expr.Variable(token());
+          expr.slot = buffer.getInt();
+          expr.upvalue = buffer.getInt();
+          return expr;
+        }
+
+        default:
+          throw new IllegalStateException("Unknown expression tag " + tag + ".");
+      }
+    }
+
+    private List<Token> tokens() {
+      int count = count(1);
+      List<Token> tokens = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) tokens.add(token());
+      return tokens;
+    }
+
+    private Token token() {
+      int type = buffer.get();
+      if (type == 0) return null;
+
+      String lexeme = strings[buffer.getInt()];
+      Object literal = value();
+      return new Token(TYPES[type - 1], lexeme, literal, buffer.getInt());
+    }
+
+    private Object value() {
+      int tag = buffer.get();
+      switch (tag) {
+        case NIL: return null;
+        case FALSE: return false;
+        case TRUE: return true;
+        case NUMBER: return buffer.getDouble();
+        case STRING: return strings[buffer.getInt()];
+        default:
+          throw new IllegalStateException("Unknown value tag " + tag + ".");
+      }
+    }
+
+    // Reads how many of something follow, each taking at least size bytes.
+    // In a damaged file that could be any number, so one that can't fit in
+    // what is left is treated as the file being cut short, before an array
+    // that big is made.
+    private int count(int size) {
+      int count = buffer.getInt();
+      if (count < 0 || count > buffer.remaining() / size) {
+        throw new BufferUnderflowException();
+      }
+      return count;
+    }
+
+    private int[] captures() {
+      int[] captures = new int[count(4)];
+      for (int i = 0; i < captures.length; i++) {
+        captures[i] = buffer.getInt();
+      }
+      return captures;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// Prints syntax trees as S-expressions, one statement to a line, with the
+// statements inside functions, blocks and control flow indented under them.
+// Lox's --dump-ast shows what the Optimizer left of a script this way.
+class AstPrinter implements Stmt.Visitor<Void>, Expr.Visitor<String> {
+  private final StringBuilder builder = new StringBuilder();
+  private int indent = 0;
+
+  String print(List<Stmt> statements) {
+    for (Stmt statement : statements) line(statement);
+    return builder.toString();
+  }
+
+  private void line(Stmt stmt) {
+    for (int i = 0; i < indent; i++) builder.append("  ");
+    stmt.accept(this);
+    builder.append("\n");
+  }
+
+  // The statements nested in another, each on a line of its own, and the
+  // parenthesis that closes the other.
+  private void nested(List<Stmt> statements) {
+    builder.append("\n");
+    indent++;
+    for (Stmt statement : statements) line(statement);
+    indent--;
+    for (int i = 0; i < indent; i++) builder.append("  ");
+    builder.append(")");
+  }
+
+  private void nested(Stmt stmt) {
+    builder.append("\n");
+    indent++;
+    for (int i = 0; i < indent; i++) builder.append("  ");
+    stmt.accept(this);
+    indent--;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    builder.append("(block");
+    nested(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    builder.append("(break)");
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    builder.append("(class ").append(stmt.name.lexeme);
+    if (stmt.superclass != null) {
+      builder.append(" < ").append(stmt.superclass.name.lexeme);
+    }
+
+    builder.append("\n");
+    indent++;
+    for (Stmt.Function method : stmt.methods) line(method);
+    for (Stmt.Function method : stmt.staticMethods) {
+      for (int i = 0; i < indent; i++) builder.append("  ");
+      builder.append("(static ");
+      method.accept(this);
+      builder.append(")\n");
+    }
+    indent--;
+    for (int i = 0; i < indent; i++) builder.append("  ");
+    builder.append(")");
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    builder.append("(continue)");
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    builder.append("(; ").append(print(stmt.expression)).append(")");
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    builder.append("(fun ").append(stmt.name.lexeme);
+    function(stmt.parameters, stmt.body);
+    return null;
+  }
+
+  private void function(List<Token> parameters, List<Stmt> body) {
+    builder.append("(");
+    for (int i = 0; i < parameters.size(); i++) {
+      if (i > 0) builder.append(" ");
+      builder.append(parameters.get(i).lexeme);
+    }
+    builder.append(")");
+    nested(body);
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    builder.append("(if ").append(print(stmt.condition));
+    nested(stmt.thenBranch);
+    if (stmt.elseBranch != null) nested(stmt.elseBranch);
+    builder.append(")");
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    builder.append("(print ").append(print(stmt.expression)).append(")");
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    builder.append("(return");
+    if (stmt.value != null) builder.append(" ").append(print(stmt.value));
+    builder.append(")");
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    builder.append("(var ").append(stmt.name.lexeme);
+    if (stmt.initializer != null) {
+      builder.append(" ").append(print(stmt.initializer));
+    }
+    builder.append(")");
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    builder.append("(while ").append(print(stmt.condition));
+    nested(stmt.body);
+    builder.append(")");
+    return null;
+  }
+
+  private String print(Expr expr) {
+    return expr.accept(this);
+  }
+
+  @Override
+  public String visitAssignExpr(Expr.Assign expr) {
+    return parenthesize("= " + expr.name.lexeme, expr.value);
+  }
+
+  @Override
+  public String visitBinaryExpr(Expr.Binary expr) {
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  @Override
+  public String visitCallExpr(Expr.Call expr) {
+    StringBuilder call = new StringBuilder("(call ");
+    call.append(print(expr.callee));
+    for (Expr argument : expr.arguments) {
+      call.append(" ").append(print(argument));
+    }
+    return call.append(")").toString();
+  }
+
+  @Override
+  public String visitGetExpr(Expr.Get expr) {
+    return parenthesize(". " + expr.name.lexeme, expr.object);
+  }
+
+  @Override
+  public String visitFunctionExpr(Expr.Function expr) {
+    // Print the body where the function is, and the rest of the expression
+    // after it.
+    int start = builder.length();
+    builder.append("(fun");
+    if (expr.name != null) builder.append(" ").append(expr.name.lexeme);
+    function(expr.parameters, expr.body);
+    String function = builder.substring(start);
+    builder.setLength(start);
+    return function;
+  }
+
+  @Override
+  public String visitGroupingExpr(Expr.Grouping expr) {
+    return parenthesize("group", expr.expression);
+  }
+
+  @Override
+  public String visitIndexExpr(Expr.Index expr) {
+    return parenthesize("[]", expr.object, expr.index);
+  }
+
+  @Override
+  public String visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value instanceof String) return "\"" + expr.value + "\"";
+    return Interpreter.stringify(expr.value);
+  }
+
+  @Override
+  public String visitLogicalExpr(Expr.Logical expr) {
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  @Override
+  public String visitSetExpr(Expr.Set expr) {
+    return parenthesize("=. " + expr.name.lexeme, expr.object, expr.value);
+  }
+
+  @Override
+  public String visitSetIndexExpr(Expr.SetIndex expr) {
+    return parenthesize("=[]", expr.object, expr.index, expr.value);
+  }
+
+  @Override
+  public String visitSuperExpr(Expr.Super expr) {
+    return "(super " + expr.method.lexeme + ")";
+  }
+
+  @Override
+  public String visitThisExpr(Expr.This expr) {
+    return "this";
+  }
+
+  @Override
+  public String visitUnaryExpr(Expr.Unary expr) {
+    return parenthesize(expr.operator.lexeme, expr.right);
+  }
+
+  @Override
+  public String visitVariableExpr(Expr.Variable expr) {
+    return expr.name.lexeme;
+  }
+
+  private String parenthesize(String name, Expr... exprs) {
+    StringBuilder result = new StringBuilder();
+    result.append("(").append(name);
+    for (Expr expr : exprs) {
+      result.append(" ").append(print(expr));
+    }
+    return result.append(")").toString();
+  }
+}
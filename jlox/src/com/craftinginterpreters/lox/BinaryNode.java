@@ -0,0 +1,334 @@
+package com.craftinginterpreters.lox;
+
+// Binary operators for the node tree. A new operator node is Uninitialized.
+// The first time it runs it looks at its operands and replaces itself with
+// the node for that operator on those types: numbers, or strings for "+". If
+// a specialized node later gets operands it doesn't handle, it gives up and
+// replaces itself with the Generic node, which handles anything.
+abstract class BinaryNode extends Node.ExprNode {
+  final Interpreter interpreter;
+  Node.ExprNode left;
+  final Token operator;
+  Node.ExprNode right;
+
+  BinaryNode(Interpreter interpreter, Node.ExprNode left, Token operator,
+             Node.ExprNode right) {
+    this.interpreter = interpreter;
+    this.left = adopt(left);
+    this.operator = operator;
+    this.right = adopt(right);
+  }
+
+  // Takes over the operands of the node it replaces.
+  BinaryNode(BinaryNode node) {
+    this(node.interpreter, node.left, node.operator, node.right);
+  }
+
+  static BinaryNode create(Interpreter interpreter, Node.ExprNode left,
+                           Token operator, Node.ExprNode right) {
+    switch (operator.type) {
+      case EQUAL_EQUAL:
+        return new Equal(interpreter, left, operator, right, true);
+      case BANG_EQUAL:
+        return new Equal(interpreter, left, operator, right, false);
+      case COMMA:
+        return new Comma(interpreter, left, operator, right);
+      default:
+        return new Uninitialized(interpreter, left, operator, right);
+    }
+  }
+
+  @Override
+  void replaceChild(Node child, Node replacement) {
+    left = replaced(left, child, replacement);
+    right = replaced(right, child, replacement);
+  }
+
+  // The operands weren't what this node is specialized for.
+  Object generalize(Object left, Object right) {
+    if (!isReplaced()) replace(new Generic(this));
+    return interpreter.binary(operator, left, right);
+  }
+
+  boolean generalizeCondition(Object left, Object right) {
+    return Interpreter.isTruthy(generalize(left, right));
+  }
+
+  static class Uninitialized extends BinaryNode {
+    Uninitialized(Interpreter interpreter, Node.ExprNode left,
+                  Token operator, Node.ExprNode right) {
+      super(interpreter, left, operator, right);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+
+      // Computed first, so an operator error leaves the node uninitialized.
+      Object result = interpreter.binary(operator, left, right);
+      if (!isReplaced()) replace(specialize(left, right));
+      return result;
+    }
+
+    private BinaryNode specialize(Object left, Object right) {
+      if (left instanceof Double && right instanceof Double) {
+        switch (operator.type) {
+          case PLUS: return new Add(this);
+          case MINUS: return new Subtract(this);
+          case STAR: return new Multiply(this);
+          case SLASH: return new Divide(this);
+          case PERCENT: return new Remainder(this);
+          case GREATER: return new Greater(this);
+          case GREATER_EQUAL: return new GreaterEqual(this);
+          case LESS: return new Less(this);
+          case LESS_EQUAL: return new LessEqual(this);
+        }
+      }
+
+      if (operator.type == TokenType.PLUS &&
+          (Rope.isString(left) || Rope.isString(right))) {
+        return new Concatenate(this);
+      }
+
+      return new Generic(this);
+    }
+  }
+
+  static class Generic extends BinaryNode {
+    Generic(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      return interpreter.binary(operator, left, right);
+    }
+  }
+
+  static class Add extends BinaryNode {
+    Add(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left + (double)right;
+      }
+      return generalize(left, right);
+    }
+  }
+
+  static class Subtract extends BinaryNode {
+    Subtract(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left - (double)right;
+      }
+      return generalize(left, right);
+    }
+  }
+
+  static class Multiply extends BinaryNode {
+    Multiply(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left * (double)right;
+      }
+      return generalize(left, right);
+    }
+  }
+
+  static class Divide extends BinaryNode {
+    Divide(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left / (double)right;
+      }
+      return generalize(left, right);
+    }
+  }
+
+  static class Remainder extends BinaryNode {
+    Remainder(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return Interpreter.remainder((double)left, (double)right);
+      }
+      return generalize(left, right);
+    }
+  }
+
+  static class Greater extends BinaryNode {
+    Greater(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return executeCondition(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left > (double)right;
+      }
+      return generalizeCondition(left, right);
+    }
+  }
+
+  static class GreaterEqual extends BinaryNode {
+    GreaterEqual(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return executeCondition(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left >= (double)right;
+      }
+      return generalizeCondition(left, right);
+    }
+  }
+
+  static class Less extends BinaryNode {
+    Less(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return executeCondition(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left < (double)right;
+      }
+      return generalizeCondition(left, right);
+    }
+  }
+
+  static class LessEqual extends BinaryNode {
+    LessEqual(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return executeCondition(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (left instanceof Double && right instanceof Double) {
+        return (double)left <= (double)right;
+      }
+      return generalizeCondition(left, right);
+    }
+  }
+
+  static class Concatenate extends BinaryNode {
+    Concatenate(BinaryNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      if (Rope.isString(left) || Rope.isString(right)) {
+        return Rope.concat(left, right);
+      }
+      return generalize(left, right);
+    }
+  }
+
+  // Equality is defined for any operands, so there is nothing to specialize.
+  static class Equal extends BinaryNode {
+    private final boolean isEqual;
+
+    Equal(Interpreter interpreter, Node.ExprNode left, Token operator,
+          Node.ExprNode right, boolean isEqual) {
+      super(interpreter, left, operator, right);
+      this.isEqual = isEqual;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return executeCondition(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      Object left = this.left.execute(frame, upvalues);
+      Object right = this.right.execute(frame, upvalues);
+      return Interpreter.isEqual(left, right) == isEqual;
+    }
+  }
+
+  // Evaluates the left operand only for its side effects, like an argument
+  // the Inliner stores before the body of the function it inlined.
+  static class Comma extends BinaryNode {
+    Comma(Interpreter interpreter, Node.ExprNode left, Token operator,
+          Node.ExprNode right) {
+      super(interpreter, left, operator, right);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      left.execute(frame, upvalues);
+      return right.execute(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      left.execute(frame, upvalues);
+      return right.executeCondition(frame, upvalues);
+    }
+  }
+}
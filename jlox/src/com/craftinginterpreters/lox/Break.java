@@ -1,7 +0,0 @@
-package com.craftinginterpreters.lox;
-
-class Break extends RuntimeException {
-  Break() {
-    super(null, null, false, false);
-  }
-}
\ No newline at end of file
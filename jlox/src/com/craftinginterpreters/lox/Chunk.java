@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A sequence of bytecode instructions, along with the constants they refer
+// to and the source line each byte came from.
+class Chunk {
+  byte[] code = new byte[8];
+  int[] lines = new int[8]; // mapping to lines of code - used for error reporting
+  int count = 0;
+  private final List<Object> constantList = new ArrayList<>();
+  Object[] constants = new Object[0];
+
+  void write(int b, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+
+    code[count] = (byte)b;
+    lines[count] = line;
+    count++;
+  }
+
+  int addConstant(Object value) {
+    constantList.add(value);
+    return constantList.size() - 1;
+  }
+
+  // Called once the compiler is done emitting code into this chunk.
+  void seal() {
+    code = Arrays.copyOf(code, count);
+    lines = Arrays.copyOf(lines, count);
+    constants = constantList.toArray();
+  }
+}
@@ -0,0 +1,414 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes JVM class files, with just the parts of the format JvmCompiler
+// uses. Classes are written as version 49, which the JVM verifies by
+// inferring types, so the code needs no stack map frames.
+class ClassWriter {
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  // The instructions JvmCompiler emits.
+  static final int ACONST_NULL = 0x01;
+  static final int ICONST_0 = 0x03;
+  static final int ICONST_1 = 0x04;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC_W = 0x13;
+  static final int LDC2_W = 0x14;
+  static final int ILOAD = 0x15;
+  static final int DLOAD = 0x18;
+  static final int ALOAD = 0x19;
+  static final int AALOAD = 0x32;
+  static final int ISTORE = 0x36;
+  static final int DSTORE = 0x39;
+  static final int ASTORE = 0x3a;
+  static final int POP = 0x57;
+  static final int DUP = 0x59;
+  static final int SWAP = 0x5f;
+  static final int DADD = 0x63;
+  static final int IXOR = 0x82;
+  static final int DCMPL = 0x97;
+  static final int DCMPG = 0x98;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFLT = 0x9b;
+  static final int IFGE = 0x9c;
+  static final int IFGT = 0x9d;
+  static final int IFLE = 0x9e;
+  static final int IF_ICMPEQ = 0x9f;
+  static final int GOTO = 0xa7;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int PUTSTATIC = 0xb3;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESTATIC = 0xb8;
+  static final int CHECKCAST = 0xc0;
+  static final int INSTANCEOF = 0xc1;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final String name;
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndexes = new HashMap<>();
+  private int poolCount = 1;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<byte[]> methods = new ArrayList<>();
+
+  // The name is the class's internal name, with slashes.
+  ClassWriter(String name) {
+    this.name = name;
+  }
+
+  void field(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  Code method(int access, String name, String descriptor) {
+    return new Code(access, name, descriptor);
+  }
+
+  byte[] toByteArray() {
+    int thisClass = classRef(name);
+    int superClass = classRef("java/lang/Object");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(fields.size());
+      for (byte[] field : fields) out.write(field);
+      out.writeShort(methods.size());
+      for (byte[] method : methods) out.write(method);
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    return bytes.toByteArray();
+  }
+
+  private int constant(String key, int tag, int first, int second) {
+    Integer index = poolIndexes.get(key);
+    if (index != null) return index;
+
+    try {
+      poolOut.writeByte(tag);
+      poolOut.writeShort(first);
+      if (second != -1) poolOut.writeShort(second);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    poolIndexes.put(key, poolCount);
+    return poolCount++;
+  }
+
+  int utf8(String value) {
+    String key = "U" + value;
+    Integer index = poolIndexes.get(key);
+    if (index != null) return index;
+
+    try {
+      poolOut.writeByte(CONSTANT_UTF8);
+      poolOut.writeUTF(value);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    poolIndexes.put(key, poolCount);
+    return poolCount++;
+  }
+
+  int integer(int value) {
+    String key = "I" + value;
+    Integer index = poolIndexes.get(key);
+    if (index != null) return index;
+
+    try {
+      poolOut.writeByte(CONSTANT_INTEGER);
+      poolOut.writeInt(value);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    poolIndexes.put(key, poolCount);
+    return poolCount++;
+  }
+
+  int doubleConstant(double value) {
+    String key = "D" + Double.doubleToRawLongBits(value);
+    Integer index = poolIndexes.get(key);
+    if (index != null) return index;
+
+    try {
+      poolOut.writeByte(CONSTANT_DOUBLE);
+      poolOut.writeDouble(value);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    poolIndexes.put(key, poolCount);
+    // A double takes up two entries in the pool.
+    poolCount += 2;
+    return poolCount - 2;
+  }
+
+  int classRef(String name) {
+    return constant("C" + name, CONSTANT_CLASS, utf8(name), -1);
+  }
+
+  int string(String value) {
+    return constant("S" + value, CONSTANT_STRING, utf8(value), -1);
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    return constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE,
+        utf8(name), utf8(descriptor));
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return constant("F" + owner + "." + name + ":" + descriptor,
+        CONSTANT_FIELDREF, classRef(owner), nameAndType(name, descriptor));
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return constant("M" + owner + "." + name + ":" + descriptor,
+        CONSTANT_METHODREF, classRef(owner), nameAndType(name, descriptor));
+  }
+
+  // A position in a method's code that jumps can target before it is known.
+  static class Label {
+    private int position = -1;
+    // Where each jump to this label starts, and where its offset goes.
+    private final List<int[]> jumps = new ArrayList<>();
+  }
+
+  // The code of one method. It tracks the operand stack depth as
+  // instructions are added, to work out the method's max_stack.
+  class Code {
+    private final int access;
+    private final String name;
+    private final String descriptor;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+    private final List<Label> labels = new ArrayList<>();
+
+    private Code(int access, String name, String descriptor) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.maxLocals = argumentSlots(descriptor);
+    }
+
+    private void adjustStack(int effect) {
+      stack += effect;
+      if (stack > maxStack) maxStack = stack;
+    }
+
+    void op(int opcode, int stackEffect) {
+      bytes.write(opcode);
+      adjustStack(stackEffect);
+    }
+
+    private void u2(int value) {
+      bytes.write(value >> 8);
+      bytes.write(value);
+    }
+
+    void aload(int local) {
+      local(ALOAD, local, 1);
+    }
+
+    void astore(int local) {
+      local(ASTORE, local, -1);
+    }
+
+    void iload(int local) {
+      local(ILOAD, local, 1);
+    }
+
+    void istore(int local) {
+      local(ISTORE, local, -1);
+    }
+
+    // A double takes two locals, and two words of the stack.
+    void dload(int local) {
+      local(DLOAD, local, 2);
+      if (local + 2 > maxLocals) maxLocals = local + 2;
+    }
+
+    void dstore(int local) {
+      local(DSTORE, local, -2);
+      if (local + 2 > maxLocals) maxLocals = local + 2;
+    }
+
+    private void local(int opcode, int local, int stackEffect) {
+      if (local > 255) throw new IllegalStateException("Too many locals.");
+      if (local + 1 > maxLocals) maxLocals = local + 1;
+      op(opcode, stackEffect);
+      bytes.write(local);
+    }
+
+    void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        op(ICONST_0 + value, 1);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op(BIPUSH, 1);
+        bytes.write(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op(SIPUSH, 1);
+        u2(value);
+      } else {
+        ldc(integer(value));
+      }
+    }
+
+    void ldc(int index) {
+      op(LDC_W, 1);
+      u2(index);
+    }
+
+    void ldc2(int index) {
+      op(LDC2_W, 2);
+      u2(index);
+    }
+
+    void field(int opcode, String owner, String name, String descriptor) {
+      int effect;
+      switch (opcode) {
+        case GETSTATIC: effect = 1; break;
+        case PUTSTATIC: effect = -1; break;
+        case GETFIELD: effect = 0; break;
+        default: effect = -2; break;
+      }
+      op(opcode, effect);
+      u2(fieldRef(owner, name, descriptor));
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor) {
+      int effect = -argumentSlots(descriptor);
+      if (opcode != INVOKESTATIC) effect--;
+      if (descriptor.endsWith(")D") || descriptor.endsWith(")J")) {
+        effect += 2;
+      } else if (!descriptor.endsWith(")V")) {
+        effect++;
+      }
+      op(opcode, effect);
+      u2(methodRef(owner, name, descriptor));
+    }
+
+    void type(int opcode, String type) {
+      op(opcode, 0);
+      u2(classRef(type));
+    }
+
+    // Jumps have 16-bit offsets, which is as much code as a method can hold.
+    void jump(int opcode, Label label) {
+      int start = bytes.size();
+      int effect = 0;
+      if (opcode >= IFEQ && opcode <= IFLE) effect = -1;
+      if (opcode == IF_ICMPEQ) effect = -2;
+      op(opcode, effect);
+      label.jumps.add(new int[] {start, bytes.size()});
+      if (!labels.contains(label)) labels.add(label);
+      u2(0);
+    }
+
+    void bind(Label label) {
+      label.position = bytes.size();
+    }
+
+    // Adds the finished method to the class.
+    void end() {
+      byte[] code = bytes.toByteArray();
+      if (code.length > 65535) {
+        throw new IllegalStateException("Method too large.");
+      }
+
+      for (Label label : labels) {
+        for (int[] jump : label.jumps) {
+          int offset = label.position - jump[0];
+          code[jump[1]] = (byte)(offset >> 8);
+          code[jump[1] + 1] = (byte)offset;
+        }
+      }
+      methods.add(encode(code));
+    }
+
+    private byte[] encode(byte[] code) {
+      ByteArrayOutputStream method = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(method);
+      try {
+        out.writeShort(access);
+        out.writeShort(utf8(name));
+        out.writeShort(utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+      } catch (IOException error) {
+        throw new IllegalStateException(error);
+      }
+      return method.toByteArray();
+    }
+  }
+
+  // The slots a method's arguments take, where longs and doubles take two.
+  static int argumentSlots(String descriptor) {
+    int slots = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      char c = descriptor.charAt(i);
+      if (c == 'J' || c == 'D') {
+        slots += 2;
+      } else {
+        slots++;
+      }
+
+      while (descriptor.charAt(i) == '[') i++;
+      if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+      i++;
+    }
+    return slots;
+  }
+}
@@ -0,0 +1,802 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Lowers resolved statements into bytecode for the VM.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private enum FunctionType {
+    SCRIPT,
+    FUNCTION,
+    METHOD,
+    INITIALIZER
+  }
+
+  private static class Local {
+    final String name;
+    final int depth;
+    final int slot;
+    boolean isCaptured = false;
+
+    Local(String name, int depth, int slot) {
+      this.name = name;
+      this.depth = depth;
+      this.slot = slot;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal;
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  private static class Loop {
+    final Loop enclosing;
+    final int start;
+    final int scopeDepth;
+    final List<Integer> breakJumps = new ArrayList<>();
+
+    Loop(Loop enclosing, int start, int scopeDepth) {
+      this.enclosing = enclosing;
+      this.start = start;
+      this.scopeDepth = scopeDepth;
+    }
+  }
+
+  // Everything we track about the function currently being compiled.
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final VmFunction function;
+    final FunctionType type;
+    final List<Local> locals = new ArrayList<>();
+    final List<Upvalue> upvalues = new ArrayList<>();
+    int scopeDepth = 0;
+    int stackDepth = 0;
+    Loop loop = null;
+
+    FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+    }
+  }
+
+  private final ErrorReporter errors;
+  private FunctionState current = null;
+  private int line = 0;
+
+  Compiler(ErrorReporter errors) {
+    this.errors = errors;
+  }
+
+  VmFunction compile(List<Stmt> statements) {
+    beginFunction(new VmFunction("script", 0), FunctionType.SCRIPT);
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+    return endFunction();
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    line = stmt.name.line;
+    closeLoopScopes();
+    current.loop.breakJumps.add(emitJump(OP_JUMP));
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    line = stmt.name.line;
+    // Like the Interpreter, the name is bound to nil until the class exists.
+    emitOp(OP_NIL);
+    defineVariable(stmt.name, stmt.slot);
+
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      beginScope();
+      Local local = addLocal("super");
+      emitOp(OP_DEFINE_LOCAL);
+      emit(local.slot);
+      emitGetLocal(local.slot, "super");
+      line = stmt.superclass.name.line;
+    }
+
+    emitOp(OP_CLASS);
+    emitShort(makeConstant(stmt.name));
+    emit(stmt.superclass != null ? 1 : 0);
+    if (stmt.superclass != null) adjustStack(-1);
+
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType type = FunctionType.METHOD;
+      if (method.name.lexeme.equals("init")) {
+        type = FunctionType.INITIALIZER;
+      }
+      function(method.name, method.name.lexeme, method.parameters, method.body, type);
+      emitOp(OP_METHOD);
+      emitShort(makeConstant(method.name));
+    }
+    for (Stmt.Function method : stmt.staticMethods) {
+      FunctionType type = FunctionType.METHOD;
+      if (method.name.lexeme.equals("init")) {
+        type = FunctionType.INITIALIZER;
+      }
+      function(method.name, method.name.lexeme, method.parameters, method.body, type);
+      emitOp(OP_STATIC_METHOD);
+      emitShort(makeConstant(method.name));
+    }
+
+    line = stmt.name.line;
+    emitSet(stmt.name, stmt.slot != -1);
+    // Run static initializer on class load.
+    emitOp(OP_STATIC_INIT);
+    emitOp(OP_POP);
+
+    if (stmt.superclass != null) endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    line = stmt.name.line;
+    closeLoopScopes();
+    emitLoop(current.loop.start);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emitOp(OP_POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    line = stmt.name.line;
+    if (stmt.slot != -1) {
+      Local local = addLocal(stmt.name.lexeme);
+      function(stmt.name, stmt.name.lexeme, stmt.parameters, stmt.body, FunctionType.FUNCTION);
+      emitOp(OP_DEFINE_LOCAL);
+      emit(local.slot);
+    } else {
+      function(stmt.name, stmt.name.lexeme, stmt.parameters, stmt.body, FunctionType.FUNCTION);
+      defineVariable(stmt.name, -1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int thenJump = emitJump(OP_JUMP_IF_FALSE);
+    emitOp(OP_POP);
+    compile(stmt.thenBranch);
+    int elseJump = emitJump(OP_JUMP);
+
+    patchJump(thenJump);
+    // The condition is still on the stack on the path that jumps here.
+    adjustStack(1);
+    emitOp(OP_POP);
+    if (stmt.elseBranch != null) compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emitOp(OP_PRINT);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (stmt.value == null) {
+      emitReturn();
+    } else if (stmt.value instanceof Expr.Call &&
+        current.type != FunctionType.SCRIPT) {
+      call((Expr.Call)stmt.value, true);
+      emitOp(OP_RETURN);
+    } else {
+      compile(stmt.value);
+      emitOp(OP_RETURN);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emitOp(OP_UNINITIALIZED);
+    }
+    line = stmt.name.line;
+    defineVariable(stmt.name, stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk().count;
+    compile(stmt.condition);
+
+    int exitJump = emitJump(OP_JUMP_IF_FALSE);
+    emitOp(OP_POP);
+
+    Loop loop = new Loop(current.loop, loopStart, current.scopeDepth);
+    current.loop = loop;
+    compile(stmt.body);
+    current.loop = loop.enclosing;
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    adjustStack(1);
+    emitOp(OP_POP);
+    for (int jump : loop.breakJumps) {
+      patchJump(jump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    line = expr.name.line;
+    emitSet(expr.name, expr.slot != -1 || expr.upvalue != -1);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (expr.operator.type == TokenType.COMMA) {
+      compile(expr.left);
+      emitOp(OP_POP);
+      compile(expr.right);
+      return null;
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case MINUS: emitOp(OP_SUBTRACT); break;
+      case SLASH: emitOp(OP_DIVIDE); break;
+      case STAR: emitOp(OP_MULTIPLY); break;
+      case PERCENT: emitOp(OP_MODULO); break;
+      case PLUS: emitOp(OP_ADD); break;
+      case GREATER: emitOp(OP_GREATER); break;
+      case GREATER_EQUAL: emitOp(OP_GREATER_EQUAL); break;
+      case LESS: emitOp(OP_LESS); break;
+      case LESS_EQUAL: emitOp(OP_LESS_EQUAL); break;
+      case INSTANCEOF: emitOp(OP_INSTANCEOF); break;
+      case BANG_EQUAL: emitOp(OP_EQUAL); emitOp(OP_NOT); break;
+      case EQUAL_EQUAL: emitOp(OP_EQUAL); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, false);
+    return null;
+  }
+
+  // A tail call is the value of a return statement.
+  private void call(Expr.Call expr, boolean tail) {
+    // Method calls look the method up without binding it, leaving the method
+    // and its receiver on the stack below the arguments.
+    int call = OP_CALL;
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      compile(get.object);
+      line = get.name.line;
+      emitOp(OP_GET_METHOD);
+      emitShort(makeConstant(get.name));
+      call = OP_CALL_METHOD;
+    } else if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super)expr.callee;
+      emitGet(superExpr.keyword, "this", true);
+      emitGet(superExpr.keyword, "super", true);
+      line = superExpr.method.line;
+      emitOp(OP_GET_SUPER_METHOD);
+      emitShort(makeConstant(superExpr.method));
+      call = OP_CALL_METHOD;
+    } else {
+      compile(expr.callee);
+    }
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+
+    if (tail) call = call == OP_CALL ? OP_TAIL_CALL : OP_TAIL_CALL_METHOD;
+    line = expr.paren.line;
+    emitOp(call);
+    emit(expr.arguments.size());
+    adjustStack(-expr.arguments.size());
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    line = expr.name.line;
+    emitOp(OP_GET_PROPERTY);
+    emitShort(makeConstant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitIndexExpr(Expr.Index expr) {
+    compile(expr.object);
+    compile(expr.index);
+    line = expr.bracket.line;
+    emitOp(OP_GET_INDEX);
+    emitShort(makeConstant(expr.bracket));
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    if (expr.kind == LoxFunction.Kind.ANONYMOUS) {
+      function(null, "", expr.parameters, expr.body, FunctionType.FUNCTION);
+      return null;
+    }
+
+    line = expr.name.line;
+    if (expr.slot != -1) {
+      // Declared up front so the function can refer to itself.
+      Local local = addLocal(expr.name.lexeme);
+      function(expr.name, expr.name.lexeme, expr.parameters, expr.body, FunctionType.FUNCTION);
+      emitOp(OP_SET_LOCAL);
+      emit(local.slot);
+    } else {
+      function(expr.name, expr.name.lexeme, expr.parameters, expr.body, FunctionType.FUNCTION);
+      emitOp(OP_DUP);
+      defineVariable(expr.name, -1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emitOp(OP_NIL);
+    } else if (expr.value.equals(true)) {
+      emitOp(OP_TRUE);
+    } else if (expr.value.equals(false)) {
+      emitOp(OP_FALSE);
+    } else {
+      emitOp(OP_CONSTANT);
+      emitShort(makeConstant(expr.value));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    if (expr.operator.type == TokenType.OR) {
+      int elseJump = emitJump(OP_JUMP_IF_FALSE);
+      int endJump = emitJump(OP_JUMP);
+      patchJump(elseJump);
+      emitOp(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(OP_JUMP_IF_FALSE);
+      emitOp(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    line = expr.name.line;
+    emitOp(OP_SET_PROPERTY);
+    emitShort(makeConstant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitSetIndexExpr(Expr.SetIndex expr) {
+    compile(expr.object);
+    compile(expr.index);
+    compile(expr.value);
+    line = expr.bracket.line;
+    emitOp(OP_SET_INDEX);
+    emitShort(makeConstant(expr.bracket));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    emitGet(expr.keyword, "this", true);
+    emitGet(expr.keyword, "super", true);
+    line = expr.method.line;
+    emitOp(OP_GET_SUPER);
+    emitShort(makeConstant(expr.method));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    emitGet(expr.keyword, "this", true);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case MINUS: emitOp(OP_NEGATE); break;
+      case BANG: emitOp(OP_NOT); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    emitGet(expr.name, expr.name.lexeme, expr.slot != -1 || expr.upvalue != -1);
+    return null;
+  }
+
+  private void function(Token name, String functionName, List<Token> parameters,
+                        List<Stmt> body, FunctionType type) {
+    VmFunction function = new VmFunction(functionName, parameters.size());
+    beginFunction(function, type);
+    beginScope();
+    for (Token param : parameters) {
+      addLocal(param.lexeme);
+    }
+    for (Stmt statement : body) {
+      compile(statement);
+    }
+    // No need to end the scope, returning closes everything the frame holds.
+
+    FunctionState state = current;
+    endFunction();
+
+    if (name != null) line = name.line;
+    emitOp(OP_CLOSURE);
+    emitShort(makeConstant(function));
+    for (Upvalue upvalue : state.upvalues) {
+      emit(upvalue.isLocal ? 1 : 0);
+      emit(upvalue.index);
+    }
+  }
+
+  private void beginFunction(VmFunction function, FunctionType type) {
+    current = new FunctionState(current, function, type);
+
+    // Slot zero holds the receiver for methods and is unused otherwise.
+    String receiver = "";
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      receiver = "this";
+    }
+    current.locals.add(new Local(receiver, 0, 0));
+  }
+
+  private VmFunction endFunction() {
+    emitReturn();
+    VmFunction function = current.function;
+    function.upvalueCount = current.upvalues.size();
+    function.chunk.seal();
+    current = current.enclosing;
+    return function;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+
+    int first = current.locals.size();
+    boolean captured = false;
+    while (first > 0 && current.locals.get(first - 1).depth > current.scopeDepth) {
+      first--;
+      captured |= current.locals.get(first).isCaptured;
+    }
+
+    if (captured) {
+      emitOp(OP_CLOSE_UPVALUES);
+      emit(current.locals.get(first).slot);
+    }
+    current.locals.subList(first, current.locals.size()).clear();
+  }
+
+  // Before jumping out of a loop body, close over any captured variable the
+  // jump leaves behind.
+  private void closeLoopScopes() {
+    int first = current.locals.size();
+    boolean captured = false;
+    while (first > 0 && current.locals.get(first - 1).depth > current.loop.scopeDepth) {
+      first--;
+      captured |= current.locals.get(first).isCaptured;
+    }
+
+    if (captured) {
+      emitOp(OP_CLOSE_UPVALUES);
+      emit(current.locals.get(first).slot);
+    }
+  }
+
+  private Local addLocal(String name) {
+    int slot = current.locals.size();
+    if (slot > 255) {
+      errors.error(line, "Too many local variables in function.");
+    }
+
+    Local local = new Local(name, current.scopeDepth, slot);
+    current.locals.add(local);
+    current.function.maxSlots = Math.max(current.function.maxSlots, slot + 1);
+    return local;
+  }
+
+  // Pops the value on top of the stack into a new variable.
+  private void defineVariable(Token name, int slot) {
+    if (slot == -1) {
+      emitOp(OP_DEFINE_GLOBAL);
+      emitShort(makeConstant(name));
+      return;
+    }
+
+    Local local = addLocal(name.lexeme);
+    emitOp(OP_DEFINE_LOCAL);
+    emit(local.slot);
+  }
+
+  private void emitGet(Token name, String lexeme, boolean isLocal) {
+    line = name.line;
+    if (isLocal) {
+      Local local = resolveLocal(current, lexeme);
+      if (local != null) {
+        emitGetLocal(local.slot, lexeme);
+        return;
+      }
+
+      int upvalue = resolveUpvalue(current, lexeme);
+      if (upvalue != -1) {
+        emitOp(OP_GET_UPVALUE);
+        emit(upvalue);
+        emitShort(makeConstant(lexeme));
+        return;
+      }
+    }
+
+    emitOp(OP_GET_GLOBAL);
+    emitShort(makeConstant(name));
+  }
+
+  // The name is only used to report an uninitialized variable.
+  private void emitGetLocal(int slot, String name) {
+    emitOp(OP_GET_LOCAL);
+    emit(slot);
+    emitShort(makeConstant(name));
+  }
+
+  private void emitSet(Token name, boolean isLocal) {
+    if (isLocal) {
+      Local local = resolveLocal(current, name.lexeme);
+      if (local != null) {
+        emitOp(OP_SET_LOCAL);
+        emit(local.slot);
+        return;
+      }
+
+      int upvalue = resolveUpvalue(current, name.lexeme);
+      if (upvalue != -1) {
+        emitOp(OP_SET_UPVALUE);
+        emit(upvalue);
+        return;
+      }
+    }
+
+    emitOp(OP_SET_GLOBAL);
+    emitShort(makeConstant(name));
+  }
+
+  private Local resolveLocal(FunctionState state, String name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      Local local = state.locals.get(i);
+      if (local.name.equals(name)) return local;
+    }
+
+    return null;
+  }
+
+  private int resolveUpvalue(FunctionState state, String name) {
+    if (state.enclosing == null) return -1;
+
+    Local local = resolveLocal(state.enclosing, name);
+    if (local != null) {
+      local.isCaptured = true;
+      return addUpvalue(state, local.slot, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) {
+      return addUpvalue(state, upvalue, false);
+    }
+
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      Upvalue upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+    }
+
+    if (state.upvalues.size() > 255) {
+      errors.error(line, "Too many closure variables in function.");
+    }
+
+    state.upvalues.add(new Upvalue(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  private void emitReturn() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emitGetLocal(0, "this");
+    } else {
+      emitOp(OP_NIL);
+    }
+    emitOp(OP_RETURN);
+  }
+
+  private int emitJump(int instruction) {
+    emitOp(instruction);
+    emit(0xff);
+    emit(0xff);
+    return chunk().count - 2;
+  }
+
+  private void patchJump(int offset) {
+    // -2 to adjust for the bytecode for the jump offset itself.
+    int jump = chunk().count - offset - 2;
+    if (jump > 0xffff) {
+      errors.error(line, "Too much code to jump over.");
+    }
+
+    chunk().code[offset] = (byte)((jump >> 8) & 0xff);
+    chunk().code[offset + 1] = (byte)(jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emitOp(OP_LOOP);
+
+    int offset = chunk().count - loopStart + 2;
+    if (offset > 0xffff) errors.error(line, "Loop body too large.");
+
+    emitShort(offset);
+  }
+
+  private int makeConstant(Object value) {
+    int constant = chunk().addConstant(value);
+    if (constant > 0xffff) {
+      errors.error(line, "Too many constants in one chunk.");
+      return 0;
+    }
+
+    return constant;
+  }
+
+  private void emit(int b) {
+    chunk().write(b, line);
+  }
+
+  private void emitOp(int instruction) {
+    emit(instruction);
+    adjustStack(stackEffect(instruction));
+  }
+
+  // Tracks how deep the operand stack gets so the VM can reserve room for it
+  // when a call is made.
+  private void adjustStack(int effect) {
+    current.stackDepth += effect;
+    if (current.stackDepth > current.function.maxStack) {
+      current.function.maxStack = current.stackDepth;
+    }
+  }
+
+  // Values an instruction pushes, less the ones it pops. The arguments a call
+  // pops are accounted for where the call is emitted.
+  private static int stackEffect(int instruction) {
+    switch (instruction) {
+      case OP_CONSTANT:
+      case OP_NIL:
+      case OP_TRUE:
+      case OP_FALSE:
+      case OP_UNINITIALIZED:
+      case OP_DUP:
+      case OP_GET_LOCAL:
+      case OP_GET_UPVALUE:
+      case OP_GET_GLOBAL:
+      case OP_GET_METHOD:
+      case OP_CLOSURE:
+      case OP_CLASS:
+        return 1;
+      case OP_POP:
+      case OP_DEFINE_LOCAL:
+      case OP_DEFINE_GLOBAL:
+      case OP_SET_PROPERTY:
+      case OP_GET_SUPER:
+      case OP_EQUAL:
+      case OP_GREATER:
+      case OP_GREATER_EQUAL:
+      case OP_LESS:
+      case OP_LESS_EQUAL:
+      case OP_ADD:
+      case OP_SUBTRACT:
+      case OP_MULTIPLY:
+      case OP_DIVIDE:
+      case OP_MODULO:
+      case OP_INSTANCEOF:
+      case OP_GET_INDEX:
+      case OP_PRINT:
+      case OP_RETURN:
+      case OP_METHOD:
+      case OP_STATIC_METHOD:
+      case OP_CALL_METHOD:
+      case OP_TAIL_CALL_METHOD:
+        return -1;
+      case OP_SET_INDEX:
+        return -2;
+      default:
+        return 0;
+    }
+  }
+
+  private void emitShort(int value) {
+    emit((value >> 8) & 0xff);
+    emit(value & 0xff);
+  }
+
+  private Chunk chunk() {
+    return current.function.chunk;
+  }
+}
@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+// What a statement hands back when it didn't simply run to its end. The
+// statement stops there and returns this, and each enclosing statement
+// passes it up until it reaches the loop or call that handles it, so
+// leaving a loop or function is an ordinary return instead of a throw.
+// Anything else a statement returns means it ran to its end.
+enum Completion {
+  BREAK,
+  CONTINUE,
+  // The value being returned is left in Interpreter.returnValue.
+  RETURN
+}
@@ -1,7 +0,0 @@
-package com.craftinginterpreters.lox;
-
-public class Continue extends RuntimeException {
-  Continue() {
-    super(null, null, false, false);
-  }
-}
@@ -0,0 +1,310 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// A while loop that counts a local up or down to a limit, like the one
+// "for (var i = 0; i < n; i = i + 1)" desugars into. Its condition compares
+// the counter with the limit, its body ends by adding a number to the
+// counter, and nothing else in the body can change either of them. So the
+// limit only needs evaluating once, before the loop, and the counter can be
+// kept in a primitive double, which is stored in its slot for the body to
+// read after each step.
+//
+// Whether the loop counts is only known for sure when it starts: the
+// counter and the limit must be numbers, and no closure made before the
+// loop may have captured the locals they read. If they aren't, the loop
+// runs the usual way.
+class CountedLoop {
+  // What of() leaves in a loop that doesn't count.
+  private static final CountedLoop NONE =
+      new CountedLoop(-1, null, null, 0, null, null, null);
+
+  // The counter's slot.
+  final int slot;
+  final TokenType comparison;
+  final Expr limit;
+  // What the body adds to the counter.
+  final double step;
+  // The body, without the statement that steps the counter.
+  final List<Stmt> body;
+  final Stmt.Expression increment;
+  // The locals the limit reads.
+  private final int[] limitSlots;
+
+  private CountedLoop(int slot, TokenType comparison, Expr limit,
+                      double step, List<Stmt> body,
+                      Stmt.Expression increment, int[] limitSlots) {
+    this.slot = slot;
+    this.comparison = comparison;
+    this.limit = limit;
+    this.step = step;
+    this.body = body;
+    this.increment = increment;
+    this.limitSlots = limitSlots;
+  }
+
+  // The loop as a counted one, or null if it isn't. The answer is kept in
+  // the loop, so it is only worked out once.
+  static CountedLoop of(Stmt.While loop) {
+    if (loop.counted == null) loop.counted = analyze(loop);
+    return loop.counted == NONE ? null : loop.counted;
+  }
+
+  // Whether the loop can run counted in the frame, given its counter is
+  // already known to be a number there.
+  boolean canStart(Object[] frame) {
+    for (int limitSlot : limitSlots) {
+      // Any closure sharing the local could change it.
+      if (frame[limitSlot] instanceof Upvalue) return false;
+    }
+    return true;
+  }
+
+  // Whether the loop goes on for another iteration.
+  boolean test(double counter, double limit) {
+    switch (comparison) {
+      case LESS: return counter < limit;
+      case LESS_EQUAL: return counter <= limit;
+      case GREATER: return counter > limit;
+      default: return counter >= limit;
+    }
+  }
+
+  private static CountedLoop analyze(Stmt.While loop) {
+    if (!(loop.condition instanceof Expr.Binary)) return NONE;
+    Expr.Binary condition = (Expr.Binary)loop.condition;
+    switch (condition.operator.type) {
+      case LESS:
+      case LESS_EQUAL:
+      case GREATER:
+      case GREATER_EQUAL:
+        break;
+      default:
+        return NONE;
+    }
+
+    if (!(condition.left instanceof Expr.Variable)) return NONE;
+    int slot = ((Expr.Variable)condition.left).slot;
+    if (slot == -1) return NONE;
+
+    if (!(loop.body instanceof Stmt.Block)) return NONE;
+    List<Stmt> statements = ((Stmt.Block)loop.body).statements;
+    if (statements.isEmpty()) return NONE;
+    Stmt last = statements.get(statements.size() - 1);
+    if (!(last instanceof Stmt.Expression)) return NONE;
+    Stmt.Expression increment = (Stmt.Expression)last;
+    Double step = step(increment.expression, slot);
+    if (step == null) return NONE;
+
+    Effects effects = new Effects();
+    List<Stmt> body = new ArrayList<>(
+        statements.subList(0, statements.size() - 1));
+    effects.scan(body);
+    if (effects.slots.contains(slot)) return NONE;
+
+    Set<Integer> limitSlots = new HashSet<>();
+    if (!invariant(condition.right, effects, limitSlots)) return NONE;
+    if (limitSlots.contains(slot)) return NONE;
+
+    int[] slots = new int[limitSlots.size()];
+    int i = 0;
+    for (int limitSlot : limitSlots) slots[i++] = limitSlot;
+    return new CountedLoop(slot, condition.operator.type, condition.right,
+        step, body, increment, slots);
+  }
+
+  // What "counter = counter + step" adds to the counter, or null if the
+  // expression isn't that.
+  private static Double step(Expr expr, int slot) {
+    if (!(expr instanceof Expr.Assign)) return null;
+    Expr.Assign assign = (Expr.Assign)expr;
+    if (assign.slot != slot) return null;
+    if (!(assign.value instanceof Expr.Binary)) return null;
+
+    Expr.Binary value = (Expr.Binary)assign.value;
+    if (isCounter(value.left, slot) && value.right instanceof Expr.Literal) {
+      Object step = ((Expr.Literal)value.right).value;
+      if (!(step instanceof Double)) return null;
+      if (value.operator.type == TokenType.PLUS) return (Double)step;
+      if (value.operator.type == TokenType.MINUS) return -(Double)step;
+      return null;
+    }
+
+    if (value.operator.type == TokenType.PLUS &&
+        value.left instanceof Expr.Literal && isCounter(value.right, slot)) {
+      Object step = ((Expr.Literal)value.left).value;
+      if (step instanceof Double) return (Double)step;
+    }
+    return null;
+  }
+
+  private static boolean isCounter(Expr expr, int slot) {
+    return expr instanceof Expr.Variable &&
+        ((Expr.Variable)expr).slot == slot;
+  }
+
+  // Whether the limit is sure to come out the same each time the condition
+  // is evaluated: arithmetic on literals and variables the body doesn't
+  // change. The locals it reads are added to slots.
+  private static boolean invariant(Expr expr, Effects effects,
+                                   Set<Integer> slots) {
+    if (expr instanceof Expr.Literal) return true;
+
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      if (variable.slot != -1) {
+        slots.add(variable.slot);
+        return !effects.slots.contains(variable.slot);
+      }
+
+      // A call could change anything that isn't a local of this function.
+      if (effects.calls) return false;
+      if (variable.upvalue != -1) {
+        return !effects.upvalues.contains(variable.upvalue);
+      }
+      return !effects.globals.contains(variable.name.lexeme);
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case MINUS:
+        case PLUS:
+        case SLASH:
+        case STAR:
+        case PERCENT:
+          return invariant(binary.left, effects, slots) &&
+              invariant(binary.right, effects, slots);
+        default:
+          return false;
+      }
+    }
+
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      return unary.operator.type == TokenType.MINUS &&
+          invariant(unary.right, effects, slots);
+    }
+
+    if (expr instanceof Expr.Grouping) {
+      return invariant(((Expr.Grouping)expr).expression, effects, slots);
+    }
+
+    return false;
+  }
+
+  // The variables a loop body assigns or lets closures capture, and
+  // whether it calls anything.
+  private static class Effects {
+    // Locals of the running function that are assigned or captured.
+    final Set<Integer> slots = new HashSet<>();
+    final Set<Integer> upvalues = new HashSet<>();
+    final Set<String> globals = new HashSet<>();
+    boolean calls = false;
+
+    void scan(List<Stmt> statements) {
+      for (Stmt statement : statements) scan(statement);
+    }
+
+    void scan(Stmt stmt) {
+      if (stmt instanceof Stmt.Block) {
+        scan(((Stmt.Block)stmt).statements);
+      } else if (stmt instanceof Stmt.Class) {
+        Stmt.Class klass = (Stmt.Class)stmt;
+        assign(klass.slot, -1, klass.name);
+        if (klass.superSlot != -1) slots.add(klass.superSlot);
+        for (Stmt.Function method : klass.methods) capture(method.captures);
+        for (Stmt.Function method : klass.staticMethods) {
+          capture(method.captures);
+        }
+      } else if (stmt instanceof Stmt.Expression) {
+        scan(((Stmt.Expression)stmt).expression);
+      } else if (stmt instanceof Stmt.If) {
+        Stmt.If ifStmt = (Stmt.If)stmt;
+        scan(ifStmt.condition);
+        scan(ifStmt.thenBranch);
+        if (ifStmt.elseBranch != null) scan(ifStmt.elseBranch);
+      } else if (stmt instanceof Stmt.Print) {
+        scan(((Stmt.Print)stmt).expression);
+      } else if (stmt instanceof Stmt.Return) {
+        scan(((Stmt.Return)stmt).value);
+      } else if (stmt instanceof Stmt.Var) {
+        Stmt.Var var = (Stmt.Var)stmt;
+        scan(var.initializer);
+        assign(var.slot, -1, var.name);
+      } else if (stmt instanceof Stmt.While) {
+        Stmt.While loop = (Stmt.While)stmt;
+        scan(loop.condition);
+        scan(loop.body);
+      }
+      // Break and continue change nothing. Function statements are only
+      // methods, which scan() sees through their class.
+    }
+
+    void scan(Expr expr) {
+      if (expr == null) return;
+
+      if (expr instanceof Expr.Assign) {
+        Expr.Assign assign = (Expr.Assign)expr;
+        scan(assign.value);
+        assign(assign.slot, assign.upvalue, assign.name);
+      } else if (expr instanceof Expr.Binary) {
+        scan(((Expr.Binary)expr).left);
+        scan(((Expr.Binary)expr).right);
+      } else if (expr instanceof Expr.Call) {
+        Expr.Call call = (Expr.Call)expr;
+        calls = true;
+        scan(call.callee);
+        for (Expr argument : call.arguments) scan(argument);
+      } else if (expr instanceof Expr.Get) {
+        scan(((Expr.Get)expr).object);
+      } else if (expr instanceof Expr.Function) {
+        Expr.Function function = (Expr.Function)expr;
+        if (function.kind == LoxFunction.Kind.NAMED) {
+          assign(function.slot, -1, function.name);
+        }
+        capture(function.captures);
+      } else if (expr instanceof Expr.Grouping) {
+        scan(((Expr.Grouping)expr).expression);
+      } else if (expr instanceof Expr.Index) {
+        scan(((Expr.Index)expr).object);
+        scan(((Expr.Index)expr).index);
+      } else if (expr instanceof Expr.Logical) {
+        scan(((Expr.Logical)expr).left);
+        scan(((Expr.Logical)expr).right);
+      } else if (expr instanceof Expr.Set) {
+        scan(((Expr.Set)expr).object);
+        scan(((Expr.Set)expr).value);
+      } else if (expr instanceof Expr.SetIndex) {
+        Expr.SetIndex set = (Expr.SetIndex)expr;
+        scan(set.object);
+        scan(set.index);
+        scan(set.value);
+      } else if (expr instanceof Expr.Unary) {
+        scan(((Expr.Unary)expr).right);
+      }
+      // Literals, variables, this and super change nothing.
+    }
+
+    private void assign(int slot, int upvalue, Token name) {
+      if (slot != -1) {
+        slots.add(slot);
+      } else if (upvalue != -1) {
+        upvalues.add(upvalue);
+      } else {
+        globals.add(name.lexeme);
+      }
+    }
+
+    // The function's own body only runs when it is called, but the locals
+    // it captures can be changed through it from then on.
+    private void capture(int[] captures) {
+      for (int capture : captures) {
+        if (capture >= 0) slots.add(capture);
+      }
+    }
+  }
+}
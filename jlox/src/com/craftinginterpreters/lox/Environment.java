@@ -1,9 +1,7 @@
 package com.craftinginterpreters.lox;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 class Environment {
   static class RedefineVariableError extends RuntimeError {
@@ -12,19 +10,22 @@ class Environment {
     }
   }
 
-  final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
-  // Checks whether a variable has been previously assigned a value
-  private final Set<String> initializedVariables = new HashSet<>();
+  // Value of a variable that has been declared but never assigned to.
+  static final Object UNINITIALIZED = new Object();
 
-  Environment() {
-    enclosing = null;
-  }
+  // Holds a global's value. Globals are never removed, so code that has
+  // looked a name up can keep its cell instead of hashing the name again.
+  static class Cell {
+    Object value;
 
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
+    Cell(Object value) {
+      this.value = value;
+    }
   }
 
+  // Local variables live in call frames, so this only ever holds globals.
+  private final Map<String, Cell> values = new HashMap<>();
+
   // Throw error if redefining scope variables.
   @Deprecated
   private void assertNotDefined(String name) {
@@ -35,61 +36,42 @@ class Environment {
   // Create a variable without assigning to it.
   void define(String name) {
     assertNotDefined(name);
-    values.put(name, null);
+    values.put(name, new Cell(UNINITIALIZED));
   }
 
 
   void define(String name, Object value) {
     assertNotDefined(name);
-    values.put(name, value);
-    initializedVariables.add(name);
-  }
-
-  Environment ancestor(int distance) {
-    Environment environment = this;
-    for (int i = 0; i < distance; i++) {
-      environment = environment.enclosing;
-    }
-
-    return environment;
-  }
-
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
-  }
-
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+    values.put(name, new Cell(value));
   }
 
   Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
+    Cell cell = values.get(name.lexeme);
+    if (cell != null) {
 
       // Assert this variable has been assigned to first!
-      if (!initializedVariables.contains(name.lexeme))
+      if (cell.value == UNINITIALIZED)
         throw new RuntimeError(name, "Attempting to access uninitialized variable '" + name.lexeme + "'.");
-      return values.get(name.lexeme);
+      return cell.value;
     }
 
-    if (enclosing != null) return enclosing.get(name);
-
     throw new RuntimeError(name,
         "Undefined variable '" + name.lexeme + "'.");
   }
 
   void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      initializedVariables.add(name.lexeme);
-      return;
-    }
-
-    if (enclosing != null) {
-      enclosing.assign(name, value);
+    Cell cell = values.get(name.lexeme);
+    if (cell != null) {
+      cell.value = value;
       return;
     }
 
     throw new RuntimeError(name,
         "Undefined variable '" + name.lexeme + "'.");
   }
-}
\ No newline at end of file
+
+  // The global's cell, or null if there is no such global yet.
+  Cell cell(String name) {
+    return values.get(name);
+  }
+}
@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects the compile errors found in one source file. Each file has its
+// own, so files can be scanned, parsed and resolved on different threads,
+// and the errors are printed afterward in the order the files run in.
+class ErrorReporter {
+  private final List<String> errors = new ArrayList<>();
+  private boolean hadError = false;
+
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      report(token.line, " at end", message);
+    } else {
+      report(token.line, " at '" + token.lexeme + "'", message);
+    }
+  }
+
+  private void report(int line, String where, String message) {
+    errors.add("[line " + line + "] Error" + where + ": " + message);
+    hadError = true;
+  }
+
+  boolean hadError() {
+    return hadError;
+  }
+
+  // Prints the errors reported since the last time this was called.
+  void print() {
+    print(null);
+  }
+
+  // Prints them with the file they are in, for programs of many files.
+  void print(String file) {
+    for (String error : errors) {
+      System.err.println(file != null ? file + ": " + error : error);
+    }
+    errors.clear();
+  }
+}
@@ -10,9 +10,11 @@ abstract class Expr {
     R visitGetExpr(Get expr);
     R visitFunctionExpr(Function expr);
     R visitGroupingExpr(Grouping expr);
+    R visitIndexExpr(Index expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
     R visitSetExpr(Set expr);
+    R visitSetIndexExpr(SetIndex expr);
     R visitSuperExpr(Super expr);
     R visitThisExpr(This expr);
     R visitUnaryExpr(Unary expr);
@@ -31,6 +33,10 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    // Set by the Resolver.
+    int slot = -1;
+    int upvalue = -1;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -47,6 +53,9 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    // Filled in by the Interpreter as it runs.
+    boolean numeric = true;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -63,6 +72,9 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    // Set by the Resolver.
+    boolean tail = false;
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -77,6 +89,9 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    // Filled in by the Interpreter as it runs.
+    final InlineCache cache = new InlineCache();
   }
   static class Function extends Expr {
     Function(LoxFunction.Kind kind, Token name, List<Token> parameters, List<Stmt> body) {
@@ -95,6 +110,15 @@ abstract class Expr {
     final Token name;
     final List<Token> parameters;
     final List<Stmt> body;
+
+    // Set by the Resolver.
+    int slot = -1;
+    int slotCount = 0;
+    int[] captures = null;
+    boolean reassigned = false;
+
+    // Filled in by the Interpreter as it runs.
+    LoxFunction.Declaration declaration = null;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -108,6 +132,22 @@ abstract class Expr {
 
     final Expr expression;
   }
+  static class Index extends Expr {
+    Index(Expr object, Token bracket, Expr index) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIndexExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+  }
   static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
@@ -151,6 +191,27 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    // Filled in by the Interpreter as it runs.
+    final InlineCache cache = new InlineCache();
+  }
+  static class SetIndex extends Expr {
+    SetIndex(Expr object, Token bracket, Expr index, Expr value) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSetIndexExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+    final Expr value;
   }
   static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -165,6 +226,13 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    // Set by the Resolver.
+    int slot = -1;
+    int upvalue = -1;
+
+    // Filled in by the Interpreter as it runs.
+    final InlineCache cache = new InlineCache();
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -203,6 +271,10 @@ abstract class Expr {
     }
 
     final Token name;
+
+    // Set by the Resolver.
+    int slot = -1;
+    int upvalue = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,92 @@
+package com.craftinginterpreters.lox;
+
+// Property reads for the node tree. A new node is Uninitialized. If the first
+// instance it reads from has the property as a field, the node becomes a
+// Field node that reads the slot as long as instances keep that shape.
+// Otherwise, or once the shape changes, it becomes the Generic node, which
+// goes through an inline cache like the Interpreter does.
+abstract class GetNode extends Node.ExprNode {
+  Node.ExprNode object;
+  final Token name;
+
+  GetNode(Node.ExprNode object, Token name) {
+    this.object = adopt(object);
+    this.name = name;
+  }
+
+  static GetNode create(Node.ExprNode object, Token name) {
+    return new Uninitialized(object, name);
+  }
+
+  @Override
+  void replaceChild(Node child, Node replacement) {
+    object = replaced(object, child, replacement);
+  }
+
+  LoxInstance instance(Object[] frame, Upvalue[] upvalues) {
+    Object instance = object.execute(frame, upvalues);
+    if (instance instanceof LoxInstance) return (LoxInstance)instance;
+
+    throw new RuntimeError(name,
+        "Only instances have properties.");
+  }
+
+  Object generalize(LoxInstance instance) {
+    if (isReplaced()) return instance.get(name);
+    return replace(new Generic(object, name)).get(instance);
+  }
+
+  static class Uninitialized extends GetNode {
+    Uninitialized(Node.ExprNode object, Token name) {
+      super(object, name);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      LoxInstance instance = instance(frame, upvalues);
+      int slot = instance.shape.slotOf(name.lexeme);
+      if (slot == -1) return generalize(instance);
+
+      if (!isReplaced()) replace(new Field(object, name, instance.shape, slot));
+      return instance.fields[slot];
+    }
+  }
+
+  static class Field extends GetNode {
+    private final Shape shape;
+    private final int slot;
+
+    Field(Node.ExprNode object, Token name, Shape shape, int slot) {
+      super(object, name);
+      this.shape = shape;
+      this.slot = slot;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      LoxInstance instance = instance(frame, upvalues);
+      if (instance.shape == shape) {
+        InlineCache.hits++;
+        return instance.fields[slot];
+      }
+      return generalize(instance);
+    }
+  }
+
+  static class Generic extends GetNode {
+    private final InlineCache cache = new InlineCache();
+
+    Generic(Node.ExprNode object, Token name) {
+      super(object, name);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return get(instance(frame, upvalues));
+    }
+
+    Object get(LoxInstance instance) {
+      return cache.get(instance, name);
+    }
+  }
+}
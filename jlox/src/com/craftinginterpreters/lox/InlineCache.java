@@ -0,0 +1,130 @@
+package com.craftinginterpreters.lox;
+
+// Remembers what a property access found for the last few classes and shapes
+// it saw. A hit skips hashing the name and walking the superclass chain.
+class InlineCache {
+  // Past this many entries a site is megamorphic and stops caching.
+  private static final int MAX_ENTRIES = 4;
+
+  // Totals over every site, reported by --cache-stats.
+  static long hits = 0;
+  static long misses = 0;
+
+  private LoxClass[] classes;
+  private Shape[] shapes;
+  // The field's slot, or -1 if the entry is for a method.
+  private int[] slots;
+  private LoxFunction[] methods;
+  // For a set that adds the field, the shape the instance moves to.
+  private Shape[] transitions;
+  private int size = 0;
+
+  Object get(LoxInstance instance, Token name) {
+    for (int i = 0; i < size; i++) {
+      if (classes[i] == instance.klass && shapes[i] == instance.shape) {
+        hits++;
+        if (slots[i] != -1) return instance.fields[slots[i]];
+        return methods[i].bind(instance);
+      }
+    }
+
+    misses++;
+    int slot = instance.shape.slotOf(name.lexeme);
+    if (slot != -1) {
+      add(instance.klass, instance.shape, slot, null, null);
+      return instance.fields[slot];
+    }
+
+    LoxFunction method = instance.klass.lookupMethod(name.lexeme);
+    if (method == null) return instance.get(name);
+
+    add(instance.klass, instance.shape, -1, method, null);
+    return method.bind(instance);
+  }
+
+  // The method a call through this site should invoke, left unbound so the
+  // receiver can go straight into the call's frame. Null if the property is
+  // a field or the method can't be cached, for get() to deal with.
+  LoxFunction method(LoxInstance instance, Token name) {
+    for (int i = 0; i < size; i++) {
+      if (classes[i] == instance.klass && shapes[i] == instance.shape) {
+        if (slots[i] != -1) return null;
+        hits++;
+        return methods[i];
+      }
+    }
+
+    if (instance.shape.slotOf(name.lexeme) != -1) return null;
+    LoxFunction method = instance.klass.lookupMethod(name.lexeme);
+    if (method == null) return null;
+
+    misses++;
+    add(instance.klass, instance.shape, -1, method, null);
+    return method;
+  }
+
+  void set(LoxInstance instance, Token name, Object value) {
+    for (int i = 0; i < size; i++) {
+      if (shapes[i] == instance.shape) {
+        hits++;
+        if (transitions[i] != null) instance.addField(transitions[i]);
+        instance.fields[slots[i]] = value;
+        return;
+      }
+    }
+
+    misses++;
+    Shape shape = instance.shape;
+    int slot = shape.slotOf(name.lexeme);
+    Shape transition = null;
+    if (slot == -1) {
+      transition = shape.withField(name.lexeme);
+      slot = instance.addField(transition);
+    }
+
+    add(null, shape, slot, null, transition);
+    instance.fields[slot] = value;
+  }
+
+  // Looks a method up starting at the superclass a "super" expression names.
+  LoxFunction superMethod(LoxClass superclass, Token name) {
+    for (int i = 0; i < size; i++) {
+      if (classes[i] == superclass) {
+        hits++;
+        return methods[i];
+      }
+    }
+
+    misses++;
+    LoxFunction method = superclass.lookupMethod(name.lexeme);
+    if (method != null) add(superclass, null, -1, method, null);
+    return method;
+  }
+
+  private void add(LoxClass klass, Shape shape, int slot,
+                   LoxFunction method, Shape transition) {
+    if (size == MAX_ENTRIES) return;
+
+    if (size == 0) {
+      classes = new LoxClass[MAX_ENTRIES];
+      shapes = new Shape[MAX_ENTRIES];
+      slots = new int[MAX_ENTRIES];
+      methods = new LoxFunction[MAX_ENTRIES];
+      transitions = new Shape[MAX_ENTRIES];
+    }
+
+    classes[size] = klass;
+    shapes[size] = shape;
+    slots[size] = slot;
+    methods[size] = method;
+    transitions[size] = transition;
+    size++;
+  }
+
+  static String stats() {
+    long total = hits + misses;
+    double rate = total == 0 ? 0 : 100.0 * hits / total;
+    return String.format("Inline caches: %d hits, %d misses (%.1f%% hit rate).",
+        hits, misses, rate);
+  }
+}
\ No newline at end of file
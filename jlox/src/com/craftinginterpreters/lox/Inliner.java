@@ -0,0 +1,311 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Optimizes code again, replacing calls to small functions with what they
+// return. A function can be inlined if its body just returns an expression
+// of its parameters and globals, of at most MAX_SIZE nodes, with nothing in
+// it that runs Lox code or makes or changes a variable: no calls,
+// assignments, functions, this or super. So it can't be recursive, and
+// nothing can tell it wasn't called.
+//
+// The call must also be sure to reach that function. The declaration must
+// be right in a block or at the top level, not the branch of an if or the
+// body of a loop, and the call must come after it. For a local, the
+// Resolver shows no assignment changes the variable the function declares.
+// For a global, that the whole program declares or assigns it only once,
+// in that declaration, and the call is later in the same file or in a file
+// that runs after it.
+//
+// The arguments are evaluated first and in order, as they would be for the
+// call. Literals go right where the parameters are used, and other values
+// go in temporary slots at the end of the caller's frame, with the comma
+// operator: sq(i + 1) becomes (x = i + 1, x * x).
+class Inliner extends Optimizer {
+  private static final int MAX_SIZE = 16;
+
+  // How many times each global is declared or assigned in the program, or
+  // null if the program isn't all known and globals can't be inlined.
+  private final Map<String, Integer> globalWrites;
+  // The global functions that can be inlined from here on.
+  private final Map<String, Expr.Function> globals = new HashMap<>();
+  // The local functions of the function being optimized that can be
+  // inlined from here on, by slot.
+  private Map<Integer, Expr.Function> locals;
+  // The slots of those declared in the statements being optimized.
+  private List<Integer> declared = new ArrayList<>();
+  // The slots the function being optimized needs, and the first one not
+  // used by temporaries that are live at this point.
+  private int slotCount;
+  private int nextTemp;
+  private final List<String> inlined = new ArrayList<>();
+
+  Inliner(Map<String, Integer> globalWrites) {
+    this.globalWrites = globalWrites;
+  }
+
+  // Optimizes a file's top-level code, which had slotCount slots.
+  List<Stmt> inline(List<Stmt> statements, int slotCount) {
+    locals = new HashMap<>();
+    this.slotCount = slotCount;
+    nextTemp = slotCount;
+    inlined.clear();
+    return optimize(statements);
+  }
+
+  // The slots the top-level code needs now, with its temporaries.
+  int slotCount() {
+    return slotCount;
+  }
+
+  // Where the calls in the last file optimized were inlined.
+  List<String> inlined() {
+    return inlined;
+  }
+
+  // The statements of a block, function body or file. A local function
+  // declared here can only be inlined until they end, since its slot may
+  // hold another variable after that.
+  @Override
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Integer> enclosingDeclared = declared;
+    declared = new ArrayList<>();
+    List<Stmt> optimized = super.optimize(statements);
+    for (int slot : declared) locals.remove(slot);
+    declared = enclosingDeclared;
+    return optimized;
+  }
+
+  // A function declared right in the list of statements has been made and
+  // stored by the time any code after it runs. One declared as the branch of
+  // an if or the body of a while might never have been, so it isn't
+  // registered.
+  @Override
+  Stmt declaration(Stmt stmt) {
+    Stmt result = super.declaration(stmt);
+    if (!(stmt instanceof Stmt.Expression) ||
+        !(((Stmt.Expression)stmt).expression instanceof Expr.Function)) {
+      return result;
+    }
+
+    Expr.Function function = (Expr.Function)((Stmt.Expression)result).expression;
+    if (function.kind != LoxFunction.Kind.NAMED ||
+        returned(function) == null) {
+      return result;
+    }
+
+    if (function.slot != -1) {
+      if (!function.reassigned) {
+        locals.put(function.slot, function);
+        declared.add(function.slot);
+      }
+    } else if (globalWrites != null &&
+        globalWrites.get(function.name.lexeme) == 1) {
+      globals.put(function.name.lexeme, function);
+    }
+    return result;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Map<Integer, Expr.Function> enclosingLocals = enter();
+    int enclosingSlotCount = slotCount;
+    int enclosingTemp = nextTemp;
+    slotCount = stmt.slotCount;
+    nextTemp = slotCount;
+
+    Stmt.Function function = (Stmt.Function)super.visitFunctionStmt(stmt);
+    function.slotCount = slotCount;
+
+    locals = enclosingLocals;
+    slotCount = enclosingSlotCount;
+    nextTemp = enclosingTemp;
+    return function;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    Map<Integer, Expr.Function> enclosingLocals = enter();
+    int enclosingSlotCount = slotCount;
+    int enclosingTemp = nextTemp;
+    slotCount = expr.slotCount;
+    nextTemp = slotCount;
+
+    Expr.Function function = (Expr.Function)super.visitFunctionExpr(expr);
+    function.slotCount = slotCount;
+
+    locals = enclosingLocals;
+    slotCount = enclosingSlotCount;
+    nextTemp = enclosingTemp;
+    return function;
+  }
+
+  // Starts on the body of a function, and returns the locals of the one
+  // around it.
+  private Map<Integer, Expr.Function> enter() {
+    Map<Integer, Expr.Function> enclosing = locals;
+    locals = new HashMap<>();
+    return enclosing;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr.Function function = callee(expr.callee);
+    if (function == null ||
+        function.parameters.size() != expr.arguments.size()) {
+      return super.visitCallExpr(expr);
+    }
+
+    int firstTemp = nextTemp;
+    Expr[] parameters = new Expr[expr.arguments.size()];
+    List<Expr.Assign> temps = new ArrayList<>();
+    for (int i = 0; i < parameters.length; i++) {
+      Expr argument = optimize(expr.arguments.get(i));
+      if (argument instanceof Expr.Literal) {
+        parameters[i] = argument;
+        continue;
+      }
+
+      Token name = function.parameters.get(i);
+      Expr.Assign temp = new Expr.Assign(name, argument);
+      temp.slot = nextTemp++;
+      slotCount = Math.max(slotCount, nextTemp);
+      temps.add(temp);
+
+      Expr.Variable parameter = new Expr.Variable(name);
+      parameter.slot = temp.slot;
+      parameters[i] = parameter;
+    }
+
+    Expr result = optimize(substitute(returned(function), parameters));
+    nextTemp = firstTemp;
+
+    Token comma = new Token(TokenType.COMMA, ",", null, expr.paren.line);
+    for (int i = temps.size() - 1; i >= 0; i--) {
+      result = new Expr.Binary(temps.get(i), comma, result);
+    }
+
+    inlined.add("[line " + expr.paren.line + "] Inlined call to '" +
+        function.name.lexeme + "'.");
+    return result;
+  }
+
+  // The function a call is sure to reach, if it can be inlined.
+  private Expr.Function callee(Expr callee) {
+    if (!(callee instanceof Expr.Variable)) return null;
+
+    Expr.Variable variable = (Expr.Variable)callee;
+    if (variable.upvalue != -1) return null;
+    if (variable.slot != -1) return locals.get(variable.slot);
+    return globals.get(variable.name.lexeme);
+  }
+
+  // The expression the function returns, or null if it can't be inlined.
+  private static Expr returned(Expr.Function function) {
+    if (function.captures.length > 0) return null;
+    // Its only locals are its parameters.
+    int arity = function.parameters.size();
+    if (function.slotCount != arity + 1) return null;
+
+    if (function.body.isEmpty()) return new Expr.Literal(null);
+    if (function.body.size() > 1) return null;
+    if (!(function.body.get(0) instanceof Stmt.Return)) return null;
+
+    Expr value = ((Stmt.Return)function.body.get(0)).value;
+    if (value == null) return new Expr.Literal(null);
+
+    int size = size(value);
+    if (size == -1 || size > MAX_SIZE) return null;
+    return value;
+  }
+
+  // The number of nodes in the expression, or -1 if it has one that can't
+  // be inlined.
+  private static int size(Expr expr) {
+    if (expr instanceof Expr.Literal) return 1;
+
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      // Slot zero is the receiver.
+      if (variable.upvalue != -1 || variable.slot == 0) return -1;
+      return 1;
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      return add(size(binary.left), size(binary.right));
+    }
+
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      return add(size(logical.left), size(logical.right));
+    }
+
+    if (expr instanceof Expr.Unary) {
+      return add(size(((Expr.Unary)expr).right), 0);
+    }
+
+    if (expr instanceof Expr.Get) {
+      return add(size(((Expr.Get)expr).object), 0);
+    }
+
+    if (expr instanceof Expr.Index) {
+      Expr.Index index = (Expr.Index)expr;
+      return add(size(index.object), size(index.index));
+    }
+
+    return -1;
+  }
+
+  private static int add(int left, int right) {
+    if (left == -1 || right == -1) return -1;
+    return left + right + 1;
+  }
+
+  // A copy of a returned expression, with the parameters replaced. The
+  // nodes are new, so each call site has its own caches.
+  private static Expr substitute(Expr expr, Expr[] parameters) {
+    if (expr instanceof Expr.Literal) return expr;
+
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      Expr.Variable copy = new Expr.Variable(variable.name);
+      if (variable.slot == -1) return copy;
+
+      Expr parameter = parameters[variable.slot - 1];
+      if (parameter instanceof Expr.Literal) return parameter;
+      copy.slot = ((Expr.Variable)parameter).slot;
+      return copy;
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      return new Expr.Binary(substitute(binary.left, parameters),
+          binary.operator, substitute(binary.right, parameters));
+    }
+
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      return new Expr.Logical(substitute(logical.left, parameters),
+          logical.operator, substitute(logical.right, parameters));
+    }
+
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      return new Expr.Unary(unary.operator,
+          substitute(unary.right, parameters));
+    }
+
+    if (expr instanceof Expr.Index) {
+      Expr.Index index = (Expr.Index)expr;
+      return new Expr.Index(substitute(index.object, parameters),
+          index.bracket, substitute(index.index, parameters));
+    }
+
+    Expr.Get get = (Expr.Get)expr;
+    return new Expr.Get(substitute(get.object, parameters), get.name);
+  }
+}
@@ -0,0 +1,231 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Where the read natives and the REPL read from. There is one buffer over
+// stdin, so nothing that reads can take input another reader was due, and
+// lines and numbers are picked out of the bytes by hand rather than with
+// java.util.Scanner's regular expressions. Text is decoded as UTF-8.
+//
+// Every read returns null once the input has run out.
+final class Input {
+  private static final int BUFFER_SIZE = 1 << 16;
+  // Powers of ten a double holds exactly, for parseNumber().
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+    1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private final InputStream stream = new FileInputStream(FileDescriptor.in);
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position = 0;
+  private int limit = 0;
+  // Bytes of a line or token that didn't fit in what the buffer held.
+  private byte[] pending = new byte[256];
+  private int pendingLength = 0;
+
+  // The next line, without its line ending.
+  String readLine() {
+    if (!fill()) return null;
+
+    pendingLength = 0;
+    for (;;) {
+      for (int i = position; i < limit; i++) {
+        if (buffer[i] != '\n') continue;
+
+        int end = i;
+        String line;
+        if (pendingLength == 0) {
+          if (end > position && buffer[end - 1] == '\r') end--;
+          line = new String(buffer, position, end - position,
+              StandardCharsets.UTF_8);
+        } else {
+          keep(position, end);
+          if (pendingLength > 0 && pending[pendingLength - 1] == '\r') {
+            pendingLength--;
+          }
+          line = new String(pending, 0, pendingLength,
+              StandardCharsets.UTF_8);
+        }
+        position = i + 1;
+        return line;
+      }
+
+      keep(position, limit);
+      position = limit;
+      // The last line needn't end with a newline.
+      if (!fill()) {
+        return new String(pending, 0, pendingLength, StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  // The next character, as a string.
+  String readCharacter() {
+    if (!fill()) return null;
+
+    // The first byte of a UTF-8 sequence says how many follow it.
+    int first = buffer[position] & 0xff;
+    int length = first < 0x80 ? 1 : first < 0xe0 ? 2 : first < 0xf0 ? 3 : 4;
+    pendingLength = 0;
+    for (int i = 0; i < length && fill(); i++) keep(position, ++position);
+    return new String(pending, 0, pendingLength, StandardCharsets.UTF_8);
+  }
+
+  // The next number after any whitespace, which is left after it.
+  Double readNumber() {
+    if (!nextToken()) return null;
+    return parseNumber();
+  }
+
+  // Everything left.
+  String readAll() {
+    if (!fill()) return null;
+
+    pendingLength = 0;
+    do {
+      keep(position, limit);
+      position = limit;
+    } while (fill());
+    return new String(pending, 0, pendingLength, StandardCharsets.UTF_8);
+  }
+
+  // Whether there is input left, reading more into the buffer if it has
+  // all been used.
+  private boolean fill() {
+    if (position < limit) return true;
+
+    try {
+      int count;
+      do {
+        count = stream.read(buffer, 0, buffer.length);
+      } while (count == 0);
+      position = 0;
+      limit = Math.max(count, 0);
+    } catch (IOException error) {
+      // An input that can't be read has run out, as far as Lox can tell.
+      limit = 0;
+      position = 0;
+    }
+    return limit > 0;
+  }
+
+  // Adds the buffer's bytes from start to end to what is pending.
+  private void keep(int start, int end) {
+    int count = end - start;
+    if (pendingLength + count > pending.length) {
+      pending = Arrays.copyOf(pending,
+          Math.max(pending.length * 2, pendingLength + count));
+    }
+    System.arraycopy(buffer, start, pending, pendingLength, count);
+    pendingLength += count;
+  }
+
+  // Skips whitespace and leaves the token after it in pending. Returns
+  // false if there is none.
+  private boolean nextToken() {
+    for (;;) {
+      if (!fill()) return false;
+      if (!isWhitespace(buffer[position])) break;
+      position++;
+    }
+
+    pendingLength = 0;
+    while (fill() && !isWhitespace(buffer[position])) {
+      int end = position;
+      while (end < limit && !isWhitespace(buffer[end])) end++;
+      keep(position, end);
+      position = end;
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f' ||
+        c == 0x0b;
+  }
+
+  // Parses the token in pending. Up to 18 digits with an exponent of at most
+  // 22 either way are worked out exactly from a long and a power of ten, so
+  // the result is the nearest double, as Double.parseDouble() gives for
+  // everything else.
+  private Double parseNumber() {
+    int i = 0;
+    boolean negative = false;
+    if (pending[i] == '-' || pending[i] == '+') {
+      negative = pending[i] == '-';
+      i++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean seenDigit = false;
+    boolean seenPoint = false;
+    for (; i < pendingLength; i++) {
+      byte c = pending[i];
+      if (c >= '0' && c <= '9') {
+        seenDigit = true;
+        if (mantissa == 0 && c == '0') {
+          // Leading zeros don't count toward the digits a long holds.
+        } else {
+          mantissa = mantissa * 10 + (c - '0');
+          digits++;
+        }
+        if (seenPoint) exponent--;
+        if (digits > 18) return parseSlowly();
+      } else if (c == '.' && !seenPoint) {
+        seenPoint = true;
+      } else {
+        break;
+      }
+    }
+    if (!seenDigit) return parseSlowly();
+
+    if (i < pendingLength) {
+      if (pending[i] != 'e' && pending[i] != 'E') return parseSlowly();
+      i++;
+      boolean negativeExponent = false;
+      if (i < pendingLength && (pending[i] == '-' || pending[i] == '+')) {
+        negativeExponent = pending[i] == '-';
+        i++;
+      }
+      if (i == pendingLength) return parseSlowly();
+
+      int written = 0;
+      for (; i < pendingLength; i++) {
+        byte c = pending[i];
+        if (c < '0' || c > '9' || written > 1000) return parseSlowly();
+        written = written * 10 + (c - '0');
+      }
+      exponent += negativeExponent ? -written : written;
+    }
+
+    double value;
+    if (mantissa == 0) {
+      value = 0;
+    } else if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+      value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+          : mantissa * POWERS_OF_TEN[exponent];
+    } else {
+      return parseSlowly();
+    }
+    return negative ? -value : value;
+  }
+
+  private Double parseSlowly() {
+    String token = new String(pending, 0, pendingLength,
+        StandardCharsets.UTF_8);
+    try {
+      return Double.parseDouble(token);
+    } catch (NumberFormatException error) {
+      throw new RuntimeError(null, "Expected a number but got '" + token +
+          "'.");
+    }
+  }
+}
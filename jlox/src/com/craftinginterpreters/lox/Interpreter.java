@@ -4,9 +4,30 @@ import java.util.*;
 
 // This class is modified so that statements *do* return values
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+  static final Upvalue[] NO_UPVALUES = new Upvalue[0];
+
   final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  // Where print writes, line by line when it is a terminal.
+  final Output out = new Output(System.console() != null);
+  // Where the read natives and the REPL read from.
+  final Input in = new Input();
+  // Set when evaluateNumber() got something other than a number, which is
+  // held in unexpected until the caller takes it.
+  private boolean notNumber = false;
+  private Object unexpected = null;
+  // Locals of the function being run, in the slots the Resolver assigned.
+  // A slot holds an Upvalue instead once a closure has captured it.
+  private Object[] frame = new Object[1];
+  // What the running function captured from the functions around it.
+  private Upvalue[] upvalues = NO_UPVALUES;
+  // Set by a return statement, for the call it completes to pick up.
+  Object returnValue = null;
+  // What a call in tail position evaluates to. The function it returns
+  // from then calls the callee set here, with its frame already filled in.
+  static final Object TAIL_CALL = new Object();
+  LoxFunction tailFunction = null;
+  Object[] tailFrame = null;
+  LoxInstance tailReceiver = null;
 
   Interpreter() {
     globals.define("NEWLINE_CHAR", "\n");
@@ -23,10 +44,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
       }
     });
 
-    java.util.Scanner scanner = new java.util.Scanner(System.in);
-    java.util.Scanner charScanner = new java.util.Scanner(System.in);
-    charScanner.useDelimiter("");
-
+    // Pending output is written first, in case it asks for the input.
     globals.define("readDouble", new LoxCallable() {
       @Override
       public int arity() {
@@ -35,14 +53,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
-        double value = scanner.nextDouble();
-
-        return value;
+        interpreter.out.flush();
+        return interpreter.in.readNumber();
       }
     });
 
     globals.define("readInt", new LoxCallable() {
-
       @Override
       public int arity() {
         return 0;
@@ -50,14 +66,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
-        double value = scanner.nextInt();
-
+        interpreter.out.flush();
+        Double value = interpreter.in.readNumber();
+        if (value != null && value != Math.rint(value)) {
+          throw new RuntimeError(null,
+              "Expected a whole number but got " + stringify(value) + ".");
+        }
         return value;
       }
     });
 
     globals.define("readLine", new LoxCallable() {
-
       @Override
       public int arity() {
         return 0;
@@ -65,14 +84,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
-        String value = scanner.nextLine();
-
-        return value;
+        interpreter.out.flush();
+        return interpreter.in.readLine();
       }
     });
 
     globals.define("readByte", new LoxCallable() {
+      @Override
+      public int arity() {
+        return 0;
+      }
+
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.out.flush();
+        return interpreter.in.readCharacter();
+      }
+    });
 
+    globals.define("readAll", new LoxCallable() {
       @Override
       public int arity() {
         return 0;
@@ -80,9 +110,30 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
-        String value = charScanner.next();
+        interpreter.out.flush();
+        return interpreter.in.readAll();
+      }
+    });
 
-        return value;
+    // The Array class, which the lists natives return are instances of.
+    LoxArray array = new LoxArray();
+
+    // The lines left, in an Array.
+    globals.define("readLines", new LoxCallable() {
+      @Override
+      public int arity() {
+        return 0;
+      }
+
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.out.flush();
+        LoxArray.Instance lines = new LoxArray.Instance(array);
+        for (String line = interpreter.in.readLine(); line != null;
+             line = interpreter.in.readLine()) {
+          lines.push(line);
+        }
+        return lines;
       }
     });
 
@@ -99,11 +150,27 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
       }
     });
 
-    globals.define("HashMap", new LoxHashMap());
+    globals.define("flush", new LoxCallable() {
+      @Override
+      public int arity() {
+        return 0;
+      }
+
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.out.flush();
+        return null;
+      }
+    });
+
+    globals.define("HashMap", new LoxHashMap(array));
+    globals.define("Array", array);
   }
 
-  List<Object> interpret(List<Stmt> statements) {
+  List<Object> interpret(List<Stmt> statements, int slotCount) {
     List<Object> results = new ArrayList<>();
+    frame = new Object[slotCount];
+    upvalues = NO_UPVALUES;
     try {
       for (Stmt statement : statements) {
         results.add(execute(statement));
@@ -114,36 +181,130 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     return results;
   }
 
+  // Runs the next top-level statement of a script that is streamed in, in
+  // the frame the statements before it ran in, grown for the slots the
+  // Resolver has handed out to top-level blocks since. Returns the frame
+  // for the next statement.
+  Object[] interpret(Stmt statement, Object[] frame, int slotCount) {
+    if (frame.length < slotCount) frame = Arrays.copyOf(frame, slotCount);
+    this.frame = frame;
+    upvalues = NO_UPVALUES;
+    try {
+      execute(statement);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+    return frame;
+  }
+
   private Object execute(Stmt stmt) {
     return stmt.accept(this);
   }
 
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  // Defines a variable either in its local slot or, if the Resolver left it
+  // unresolved, by name in the globals.
+  private void define(int slot, Token name, Object value) {
+    if (slot != -1) {
+      // A new variable, even if a closure captured the slot's last one.
+      frame[slot] = value;
+      return;
+    }
+
+    defineGlobal(name, value);
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
-    Environment previous = this.environment;
+  void defineGlobal(Token name, Object value) {
     try {
-      this.environment = environment;
+      if (value == Environment.UNINITIALIZED) {
+        globals.define(name.lexeme);
+      } else {
+        globals.define(name.lexeme, value);
+      }
+    } catch (Environment.RedefineVariableError variableError) {
+      throw new Environment.RedefineVariableError(name, variableError.getMessage());
+    } // Environment doesn't know the token we're redefining a variable at.
+      // So, we catch it here and throw an identical error, but with the token defined.
+  }
 
-      for (Stmt statement : statements) {
-        execute(statement);
+  private Object getLocal(int slot, Token name) {
+    Object value = frame[slot];
+    if (value instanceof Upvalue) value = ((Upvalue)value).value;
+    return checkInitialized(value, name);
+  }
+
+  private void assignLocal(int slot, Object value) {
+    if (frame[slot] instanceof Upvalue) {
+      ((Upvalue)frame[slot]).value = value;
+    } else {
+      frame[slot] = value;
+    }
+  }
+
+  static Object checkInitialized(Object value, Token name) {
+    // Assert this variable has been assigned to first!
+    if (value == Environment.UNINITIALIZED)
+      throw new RuntimeError(name, "Attempting to access uninitialized variable '" + name.lexeme + "'.");
+    return value;
+  }
+
+  // Collects the variables a new closure captures. Locals of the running
+  // function are moved into an Upvalue the first time they are captured.
+  private Upvalue[] capture(int[] captures) {
+    return capture(captures, frame, upvalues);
+  }
+
+  static Upvalue[] capture(int[] captures, Object[] frame, Upvalue[] upvalues) {
+    if (captures.length == 0) return NO_UPVALUES;
+
+    Upvalue[] captured = new Upvalue[captures.length];
+    for (int i = 0; i < captures.length; i++) {
+      int capture = captures[i];
+      if (capture < 0) {
+        captured[i] = upvalues[~capture];
+        continue;
       }
-    } finally {
-      this.environment = previous;
+
+      if (!(frame[capture] instanceof Upvalue)) {
+        frame[capture] = new Upvalue(frame[capture]);
+      }
+      captured[i] = (Upvalue)frame[capture];
     }
+    return captured;
   }
 
-  @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
+  // Returns a Completion if a statement didn't run to its end. Only a
+  // RuntimeError can leave here some other way, and that ends the script,
+  // so the caller's frame needs no finally to put it back.
+  Object executeBlock(List<Stmt> statements, Object[] frame, Upvalue[] upvalues) {
+    Object[] previousFrame = this.frame;
+    Upvalue[] previousUpvalues = this.upvalues;
+    this.frame = frame;
+    this.upvalues = upvalues;
+
+    Object result = execute(statements);
+
+    this.frame = previousFrame;
+    this.upvalues = previousUpvalues;
+    return result;
+  }
+
+  private Object execute(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      Object result = execute(statement);
+      if (result instanceof Completion) return result;
+    }
     return null;
   }
 
+  @Override
+  public Object visitBlockStmt(Stmt.Block stmt) {
+    // Block-scoped locals have their own slots in the enclosing frame.
+    return execute(stmt.statements);
+  }
+
   @Override
   public Void visitClassStmt(Stmt.Class stmt) {
-    environment.define(stmt.name.lexeme, null);
+    define(stmt.slot, stmt.name, null);
 
     Object superclass = null;
     if (stmt.superclass != null) {
@@ -153,27 +314,27 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
             "Superclass must be a class.");
       }
 
-      environment = new Environment(environment);
-      environment.define("super", superclass);
+      frame[stmt.superSlot] = superclass;
     }
 
     Map<String, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+      LoxFunction function = new LoxFunction(method, capture(method.captures), method.name.lexeme.equals("init"));
       methods.put(method.name.lexeme, function);
     }
     Map<String, LoxFunction> staticMethods = new HashMap<>();
     for (Stmt.Function method : stmt.staticMethods) {
-      LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+      LoxFunction function = new LoxFunction(method, capture(method.captures), method.name.lexeme.equals("init"));
       staticMethods.put(method.name.lexeme, function);
     }
 
     LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods, staticMethods);
 
-    if (superclass != null) {
-      environment = environment.enclosing;
+    if (stmt.slot != -1) {
+      assignLocal(stmt.slot, klass);
+    } else {
+      globals.assign(stmt.name, klass);
     }
-    environment.assign(stmt.name, klass);
 
     // Run static initializer on class load.
     LoxCallable staticInitializer = klass.findStaticMethod("init");
@@ -184,14 +345,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
   @Override
   public Object visitFunctionExpr(Expr.Function expr) {
-    LoxFunction function = new LoxFunction(expr, environment);
+    if (expr.kind == LoxFunction.Kind.NAMED && expr.slot != -1) {
+      // Declared before the closure is made, so it can capture itself.
+      define(expr.slot, expr.name, Environment.UNINITIALIZED);
+      LoxFunction function = new LoxFunction(expr, capture(expr.captures));
+      assignLocal(expr.slot, function);
+      return function;
+    }
+
+    LoxFunction function = new LoxFunction(expr, capture(expr.captures));
     if (function.getKind() == LoxFunction.Kind.NAMED) {
-      try {
-      environment.define(expr.name.lexeme, function);
-    } catch (Environment.RedefineVariableError variableError) {
-      throw new Environment.RedefineVariableError(expr.name, variableError.getMessage());
-    } // Environment doesn't know the token we're redefining a variable at.
-    // So, we catch it here and throw an identical error, but with the token defined.
+      define(expr.slot, expr.name, function);
     }
 
     return function;
@@ -224,19 +388,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     }
 
     Object value = evaluate(expr.value);
-    ((LoxInstance)object).set(expr.name, value);
+    expr.cache.set((LoxInstance)object, expr.name, value);
     return value;
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass)environment.getAt(
-        distance, "super");
+    LoxClass superclass = superclass(expr);
+
+    // "super" is only used in methods, which keep "this" in slot 0.
+    LoxInstance object = (LoxInstance)frame[0];
 
-    // "this" is always one level nearer than "super"'s environment.
-    LoxInstance object = (LoxInstance)environment.getAt(
-        distance - 1, "this");
+    LoxFunction cached = expr.cache.superMethod(superclass, expr.method);
+    if (cached != null) return cached.bind(object);
 
     LoxCallable method = superclass.findMethod(
         object, expr.method.lexeme);
@@ -249,9 +413,16 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     return method;
   }
 
+  private LoxClass superclass(Expr.Super expr) {
+    if (expr.upvalue != -1) {
+      return (LoxClass)upvalues[expr.upvalue].value;
+    }
+    return (LoxClass)getLocal(expr.slot, expr.keyword);
+  }
+
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return frame[0];
   }
 
   @Override
@@ -272,15 +443,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
-  }
-
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
+    if (expr.slot != -1) {
+      return getLocal(expr.slot, expr.name);
+    } else if (expr.upvalue != -1) {
+      return checkInitialized(upvalues[expr.upvalue].value, expr.name);
     } else {
-      return globals.get(name);
+      return globals.get(expr.name);
     }
   }
 
@@ -296,7 +464,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     throw new RuntimeError(operator, "Operands must be numbers.");
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     if (object instanceof Double) return (double)object != 0;
@@ -305,46 +473,173 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
+    if (expr.numeric && hasNestedArithmetic(expr)) {
+      // Only the result of the whole arithmetic expression is boxed.
+      double value = numberBinary(expr);
+      if (notNumber) return takeUnexpected();
+      return value;
+    }
+
     Object left = evaluate(expr.left);
     Object right = evaluate(expr.right);
+    return binary(expr.operator, left, right);
+  }
+
+  // Unboxed evaluation only pays off when an operand is itself arithmetic,
+  // whose result would otherwise be boxed just to be unboxed again.
+  private static boolean hasNestedArithmetic(Expr.Binary expr) {
+    return isArithmetic(expr) &&
+        (isNested(expr.left) || isNested(expr.right));
+  }
+
+  private static boolean isNested(Expr expr) {
+    return expr instanceof Expr.Binary || expr instanceof Expr.Grouping;
+  }
 
+  private static boolean isArithmetic(Expr.Binary expr) {
     switch (expr.operator.type) {
       case MINUS:
-        checkNumberOperands(expr.operator, left, right);
+      case SLASH:
+      case STAR:
+      case PERCENT:
+      case PLUS:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Evaluates an expression expected to produce a number, keeping arithmetic
+  // in primitive doubles. If the value turns out not to be a number, it sets
+  // notNumber and leaves the value for takeUnexpected().
+  private double evaluateNumber(Expr expr) {
+    Object value;
+    // Operands are mostly variables and literals, which are read here rather
+    // than through a visitor call.
+    if (expr instanceof Expr.Variable) {
+      value = visitVariableExpr((Expr.Variable)expr);
+    } else if (expr instanceof Expr.Literal) {
+      value = ((Expr.Literal)expr).value;
+    } else if (expr instanceof Expr.Binary && ((Expr.Binary)expr).numeric &&
+        isArithmetic((Expr.Binary)expr)) {
+      return numberBinary((Expr.Binary)expr);
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateNumber(((Expr.Grouping)expr).expression);
+    } else {
+      value = evaluate(expr);
+    }
+
+    return numberResult(value);
+  }
+
+  private double numberBinary(Expr.Binary expr) {
+    double left = evaluateNumber(expr.left);
+    if (notNumber) {
+      return numberResult(
+          slowBinary(expr, takeUnexpected(), evaluate(expr.right)));
+    }
+
+    double right = evaluateNumber(expr.right);
+    if (notNumber) {
+      return numberResult(slowBinary(expr, left, takeUnexpected()));
+    }
+
+    switch (expr.operator.type) {
+      case MINUS: return left - right;
+      case SLASH: return left / right;
+      case STAR: return left * right;
+      case PERCENT: return remainder(left, right);
+      default: return left + right;
+    }
+  }
+
+  // Lox code mostly takes remainders of whole numbers, which the long
+  // instruction does far faster than the floating-point one. The result is
+  // the same: both are exact, and the sign follows the dividend.
+  static double remainder(double left, double right) {
+    long dividend = (long)left;
+    long divisor = (long)right;
+    if (dividend == left && divisor == right && divisor != 0) {
+      long result = dividend % divisor;
+      // The sign of a zero result is the dividend's, even negative zero's.
+      if (result == 0) return Math.copySign(0.0, left);
+      return result;
+    }
+
+    return left % right;
+  }
+
+  // An operand wasn't a number after all. From now on the expression is
+  // evaluated the generic way.
+  private Object slowBinary(Expr.Binary expr, Object left, Object right) {
+    expr.numeric = false;
+    return binary(expr.operator, left, right);
+  }
+
+  private double numberResult(Object value) {
+    if (value instanceof Double) return (double)value;
+    notNumber = true;
+    unexpected = value;
+    return 0;
+  }
+
+  private Object takeUnexpected() {
+    Object value = unexpected;
+    notNumber = false;
+    unexpected = null;
+    return value;
+  }
+
+  Object binary(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case MINUS:
+        checkNumberOperands(operator, left, right);
         return (double)left - (double)right;
       case SLASH:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left / (double)right;
       case STAR:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left * (double)right;
       case PERCENT:
-        checkNumberOperands(expr.operator, left, right);
-        return (double)left % (double)right;
+        checkNumberOperands(operator, left, right);
+        return remainder((double)left, (double)right);
       case PLUS:
         if (left instanceof Double && right instanceof Double) {
           return (double)left + (double)right;
         }
 
-        if (left instanceof String || right instanceof String) {
-          return stringify(left) + stringify(right);
+        if (Rope.isString(left) || Rope.isString(right)) {
+          return Rope.concat(left, right);
         }
 
-        throw new RuntimeError(expr.operator,
+        throw new RuntimeError(operator,
             "Operands must be two numbers or one of them must be a string.");
       case GREATER:
-        return compare(expr, left, right) > 0;
+        if (left instanceof Double && right instanceof Double) {
+          return (double)left > (double)right;
+        }
+        return compare(operator, left, right) > 0;
       case GREATER_EQUAL:
-        return compare(expr, left, right) >= 0;
+        if (left instanceof Double && right instanceof Double) {
+          return (double)left >= (double)right;
+        }
+        return compare(operator, left, right) >= 0;
       case LESS:
-        return compare(expr, left, right) < 0;
+        if (left instanceof Double && right instanceof Double) {
+          return (double)left < (double)right;
+        }
+        return compare(operator, left, right) < 0;
       case LESS_EQUAL:
-        return compare(expr, left, right) <= 0;
+        if (left instanceof Double && right instanceof Double) {
+          return (double)left <= (double)right;
+        }
+        return compare(operator, left, right) <= 0;
       case INSTANCEOF:
         if (!(right instanceof LoxClass))
-          throw new RuntimeError(expr.operator, "Right operand must be a class type.");
+          throw new RuntimeError(operator, "Right operand must be a class type.");
         if (!(left instanceof LoxInstance))
-          throw new RuntimeError(expr.operator, "Left operand must be a class instance.");
+          throw new RuntimeError(operator, "Left operand must be a class instance.");
         return (((LoxInstance) left).isInstanceOf((LoxClass) right));
       case BANG_EQUAL: return !isEqual(left, right);
       case EQUAL_EQUAL: return isEqual(left, right);
@@ -359,7 +654,35 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
   @Override
   public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
+    Object callee;
+    if (expr.callee instanceof Expr.Get) {
+      // Call methods with the receiver passed directly, rather than binding
+      // them just to call the bound method once.
+      Expr.Get get = (Expr.Get)expr.callee;
+      Object object = evaluate(get.object);
+      if (!(object instanceof LoxInstance)) {
+        throw new RuntimeError(get.name,
+            "Only instances have properties.");
+      }
+
+      LoxInstance instance = (LoxInstance)object;
+      LoxFunction method = get.cache.method(instance, get.name);
+      if (method != null) return invoke(method, instance, expr);
+      callee = get.cache.get(instance, get.name);
+    } else if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super)expr.callee;
+      LoxFunction method = superExpr.cache.superMethod(
+          superclass(superExpr), superExpr.method);
+      if (method != null) return invoke(method, (LoxInstance)frame[0], expr);
+      callee = evaluate(superExpr);
+    } else {
+      callee = evaluate(expr.callee);
+    }
+
+    if (callee instanceof LoxFunction) {
+      LoxFunction function = (LoxFunction)callee;
+      return invoke(function, function.receiver, expr);
+    }
 
     List<Object> arguments = new ArrayList<>();
     for (Expr argument : expr.arguments) {
@@ -379,14 +702,69 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
           arguments.size() + ".");
     }
 
-    return function.call(this, arguments);
+    try {
+      return function.call(this, arguments);
+    } catch (StackOverflowError error) {
+      throw stackOverflow(expr.paren);
+    } catch (RuntimeError error) {
+      throw error.at(expr.paren);
+    }
+  }
+
+  // Evaluates the arguments straight into the function's frame.
+  private Object invoke(LoxFunction function, LoxInstance receiver, Expr.Call expr) {
+    List<Expr> arguments = expr.arguments;
+    if (arguments.size() != function.arity()) {
+      for (Expr argument : arguments) {
+        evaluate(argument);
+      }
+      throw new RuntimeError(expr.paren, "Expected " +
+          function.arity() + " arguments but got " +
+          arguments.size() + ".");
+    }
+
+    Object[] frame = function.newFrame();
+    for (int i = 0; i < arguments.size(); i++) {
+      frame[i + 1] = evaluate(arguments.get(i));
+    }
+    try {
+      if (expr.tail) return tailCall(function, frame, receiver);
+      return function.call(this, frame, receiver);
+    } catch (StackOverflowError error) {
+      throw stackOverflow(expr.paren);
+    } catch (RuntimeError error) {
+      throw error.at(expr.paren);
+    }
+  }
+
+  // Leaves a call in tail position for LoxFunction.call to make, once the
+  // function it is in has returned.
+  Object tailCall(LoxFunction function, Object[] frame, LoxInstance receiver) {
+    // A native method needs no more stack in place of the caller than it
+    // does in it, and runs now so the call's line goes on its errors.
+    if (function instanceof NativeMethod) {
+      return function.run(this, frame, receiver);
+    }
+
+    tailFunction = function;
+    tailFrame = frame;
+    tailReceiver = receiver;
+    return TAIL_CALL;
+  }
+
+  // Calls recurse on the Java stack, so a program that goes too deep runs
+  // out of it. The call that does reports it like the VM does, as a Lox
+  // error. Making the error may need more stack than is left, in which case
+  // the call it was called from tries again.
+  static RuntimeError stackOverflow(Token paren) {
+    return new RuntimeError(paren, "Stack overflow.");
   }
 
   @Override
   public Object visitGetExpr(Expr.Get expr) {
     Object object = evaluate(expr.object);
     if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
+      return expr.cache.get((LoxInstance) object, expr.name);
     }
 
     throw new RuntimeError(expr.name,
@@ -394,31 +772,39 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
   }
 
   // This is added by me, so we can compare strings lexicographically.
-  private int compare(Expr.Binary expr, Object left, Object right) {
-    if (left instanceof Double && right instanceof Double)
-      return (int)((double)left - (double)right);
-    if (left instanceof String && right instanceof String)
-      return ((String) left).compareTo((String) right);
+  // Numbers are compared directly by the callers, as doubles.
+  private int compare(Token operator, Object left, Object right) {
+    if (Rope.isString(left) && Rope.isString(right))
+      return left.toString().compareTo(right.toString());
 
-    throw new RuntimeError(expr.operator,
+    throw new RuntimeError(operator,
         "Operands must be two numbers or two strings.");
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     // nil is only equal to nil.
     if (a == null && b == null) return true;
     if (a == null) return false;
 
-    boolean result = a.equals(b);
-
-    return result;
+    if (a.equals(b)) return true;
+    // A String doesn't know it equals a rope with the same characters.
+    return b instanceof Rope && b.equals(a);
   }
 
-  String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null) return "nil";
 
-    // Hack. Work around Java adding ".0" to integer-valued doubles.
     if (object instanceof Double) {
+      // Most numbers are small whole ones, which print as an int would.
+      // Bigger ones are written in exponent form, and -0 keeps its sign.
+      double number = (double)object;
+      int integer = (int)number;
+      if (integer == number && integer > -10000000 && integer < 10000000 &&
+          (integer != 0 || Double.doubleToRawLongBits(number) == 0)) {
+        return Integer.toString(integer);
+      }
+
+      // Hack. Work around Java adding ".0" to integer-valued doubles.
       String text = object.toString();
       if (text.endsWith(".0")) {
         text = text.substring(0, text.length() - 2);
@@ -434,18 +820,39 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     return evaluate(expr.expression);
   }
 
+  // Indexes are numbers, so they are evaluated unboxed.
+  @Override
+  public Object visitIndexExpr(Expr.Index expr) {
+    Object array = evaluate(expr.object);
+    double index = evaluateNumber(expr.index);
+    if (notNumber) return LoxArray.get(array, takeUnexpected(), expr.bracket);
+    return LoxArray.get(array, index, expr.bracket);
+  }
+
+  @Override
+  public Object visitSetIndexExpr(Expr.SetIndex expr) {
+    Object array = evaluate(expr.object);
+    double index = evaluateNumber(expr.index);
+    if (notNumber) {
+      Object unexpected = takeUnexpected();
+      return LoxArray.set(array, unexpected, evaluate(expr.value),
+          expr.bracket);
+    }
+    return LoxArray.set(array, index, evaluate(expr.value), expr.bracket);
+  }
+
   private Object evaluate(Expr expr) {
     return expr.accept(this);
   }
 
   @Override
   public Object visitBreakStmt(Stmt.Break stmt) {
-    throw new Break();
+    return Completion.BREAK;
   }
 
   @Override
   public Object visitContinueStmt(Stmt.Continue stmt) {
-    throw new Continue();
+    return Completion.CONTINUE;
   }
 
   @Override
@@ -456,17 +863,23 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment, false);
-    environment.define(stmt.name.lexeme, function);
+    if (stmt.slot == -1) {
+      define(stmt.slot, stmt.name, new LoxFunction(stmt, capture(stmt.captures), false));
+      return null;
+    }
+
+    // Declared before the closure is made, so it can capture itself.
+    define(stmt.slot, stmt.name, Environment.UNINITIALIZED);
+    assignLocal(stmt.slot, new LoxFunction(stmt, capture(stmt.captures), false));
     return null;
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
+  public Object visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
     return null;
   }
@@ -474,46 +887,59 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
   @Override
   public Object visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
-    System.out.println(stringify(value));
+    out.println(stringify(value));
     return value;
   }
 
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
+  public Object visitReturnStmt(Stmt.Return stmt) {
     Object value = null;
     if (stmt.value != null) value = evaluate(stmt.value);
 
-    throw new Return(value); // Clever, haha.
+    returnValue = value;
+    return Completion.RETURN;
   }
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    Object value = null;
-    try {
-      if (stmt.initializer != null) {
-        value = evaluate(stmt.initializer);
-        environment.define(stmt.name.lexeme, value);
-      } else {
-        environment.define(stmt.name.lexeme);
-      }
-    } catch (Environment.RedefineVariableError variableError) {
-      throw new Environment.RedefineVariableError(stmt.name, variableError.getMessage());
-    } // Environment doesn't know the token we're redefining a variable at.
-      // So, we catch it here and throw an identical error, but with the token defined.
+    Object value = Environment.UNINITIALIZED;
+    if (stmt.initializer != null) {
+      value = evaluate(stmt.initializer);
+    }
+    define(stmt.slot, stmt.name, value);
     return null;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition))) {
-      try {
-        execute(stmt.body);
-      } catch (Break breakException) {
-        break;
-      } catch (Continue continueException) {
-        continue;
+  public Object visitWhileStmt(Stmt.While stmt) {
+    CountedLoop counted = CountedLoop.of(stmt);
+    if (counted != null && frame[counted.slot] instanceof Double &&
+        counted.canStart(frame)) {
+      Object limit = evaluate(counted.limit);
+      if (limit instanceof Double) {
+        return count(counted, (double)frame[counted.slot], (double)limit);
       }
     }
+
+    while (isTruthy(evaluate(stmt.condition))) {
+      Object result = execute(stmt.body);
+      if (result == Completion.BREAK) break;
+      if (result == Completion.RETURN) return result;
+    }
+    return null;
+  }
+
+  private Object count(CountedLoop loop, double counter, double limit) {
+    while (loop.test(counter, limit)) {
+      Object result = execute(loop.body);
+      if (result == Completion.BREAK) break;
+      if (result == Completion.RETURN) return result;
+      // Like the increment of a for loop, the step is skipped by continue.
+      if (result == Completion.CONTINUE) continue;
+
+      counter += loop.step;
+      frame[loop.slot] = counter;
+    }
     return null;
   }
 
@@ -521,9 +947,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
 
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
+    if (expr.slot != -1) {
+      assignLocal(expr.slot, value);
+    } else if (expr.upvalue != -1) {
+      upvalues[expr.upvalue].value = value;
     } else {
       globals.assign(expr.name, value);
     }
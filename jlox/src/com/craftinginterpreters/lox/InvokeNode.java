@@ -0,0 +1,135 @@
+package com.craftinginterpreters.lox;
+
+// Method calls, "object.name(arguments)", for the node tree. A new node is
+// Uninitialized. If the first instance it sees has a method by that name, it
+// becomes a Cached node that calls that method directly, with the instance
+// as the receiver, for as long as instances keep the same class and shape.
+// Otherwise, or once they change, it becomes the Generic node, which goes
+// through an inline cache like the Interpreter does.
+abstract class InvokeNode extends Node.ExprNode {
+  final Interpreter interpreter;
+  Node.ExprNode object;
+  final Token name;
+  final Token paren;
+  final Node.ExprNode[] arguments;
+  // Whether the call is in tail position.
+  final boolean tail;
+
+  InvokeNode(Interpreter interpreter, Node.ExprNode object, Token name,
+             Token paren, Node.ExprNode[] arguments, boolean tail) {
+    this.interpreter = interpreter;
+    this.object = adopt(object);
+    this.name = name;
+    this.paren = paren;
+    this.arguments = adopt(arguments);
+    this.tail = tail;
+  }
+
+  // Takes over the receiver and arguments of the node it replaces.
+  InvokeNode(InvokeNode node) {
+    this(node.interpreter, node.object, node.name, node.paren, node.arguments,
+        node.tail);
+  }
+
+  static InvokeNode create(Interpreter interpreter, Node.ExprNode object,
+                           Token name, Token paren,
+                           Node.ExprNode[] arguments, boolean tail) {
+    return new Uninitialized(interpreter, object, name, paren, arguments,
+        tail);
+  }
+
+  @Override
+  void replaceChild(Node child, Node replacement) {
+    object = replaced(object, child, replacement);
+    replaced(arguments, child, replacement);
+  }
+
+  LoxInstance instance(Object[] frame, Upvalue[] upvalues) {
+    Object instance = object.execute(frame, upvalues);
+    if (instance instanceof LoxInstance) return (LoxInstance)instance;
+
+    throw new RuntimeError(name,
+        "Only instances have properties.");
+  }
+
+  Object invoke(LoxFunction method, LoxInstance instance,
+                Object[] frame, Upvalue[] upvalues) {
+    return Node.invoke(interpreter, method, instance, paren, arguments, tail,
+        frame, upvalues);
+  }
+
+  Object generalize(LoxInstance instance, Object[] frame, Upvalue[] upvalues) {
+    if (isReplaced()) {
+      return Node.call(interpreter, instance.get(name), paren, arguments,
+          tail, frame, upvalues);
+    }
+    return replace(new Generic(this)).invoke(instance, frame, upvalues);
+  }
+
+  static class Uninitialized extends InvokeNode {
+    Uninitialized(Interpreter interpreter, Node.ExprNode object, Token name,
+                  Token paren, Node.ExprNode[] arguments, boolean tail) {
+      super(interpreter, object, name, paren, arguments, tail);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      LoxInstance instance = instance(frame, upvalues);
+      LoxFunction method = null;
+      if (!instance.hasField(name.lexeme)) {
+        method = instance.klass.lookupMethod(name.lexeme);
+      }
+      if (method == null) return generalize(instance, frame, upvalues);
+
+      if (!isReplaced()) {
+        replace(new Cached(this, instance.klass, instance.shape, method));
+      }
+      return invoke(method, instance, frame, upvalues);
+    }
+  }
+
+  static class Cached extends InvokeNode {
+    private final LoxClass klass;
+    private final Shape shape;
+    private final LoxFunction method;
+
+    Cached(InvokeNode node, LoxClass klass, Shape shape, LoxFunction method) {
+      super(node);
+      this.klass = klass;
+      this.shape = shape;
+      this.method = method;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      LoxInstance instance = instance(frame, upvalues);
+      if (instance.klass == klass && instance.shape == shape) {
+        InlineCache.hits++;
+        return invoke(method, instance, frame, upvalues);
+      }
+      return generalize(instance, frame, upvalues);
+    }
+  }
+
+  static class Generic extends InvokeNode {
+    private final InlineCache cache = new InlineCache();
+
+    Generic(InvokeNode node) {
+      super(node);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return invoke(instance(frame, upvalues), frame, upvalues);
+    }
+
+    Object invoke(LoxInstance instance, Object[] frame, Upvalue[] upvalues) {
+      LoxFunction method = cache.method(instance, name);
+      if (method != null) return invoke(method, instance, frame, upvalues);
+
+      Object callee = cache.get(instance, name);
+      return Node.call(interpreter, callee, paren, arguments, tail, frame,
+          upvalues);
+    }
+  }
+}
@@ -0,0 +1,929 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.ClassWriter.*;
+
+// Compiles hot functions to JVM bytecode, for --jit. A function runs as
+// nodes until its calls and loop iterations pass THRESHOLD, and is then
+// compiled to a hidden class whose static "call" method takes the closure's
+// upvalues, the receiver and the arguments, and keeps each local in a JVM
+// local. The tokens, constants, caches and call sites the code needs are
+// handed to the class as class data and kept in static final fields, which
+// HotSpot treats as constants.
+//
+// Functions that closures capture locals from, or that use "super", are
+// left running as nodes.
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  static boolean enabled = false;
+  static final int THRESHOLD = 1000;
+
+  private static final String LOX = "com/craftinginterpreters/lox/";
+  private static final String RUNTIME = LOX + "JvmRuntime";
+  private static final String INTERPRETER = LOX + "Interpreter";
+  private static final String OBJECT = "Ljava/lang/Object;";
+  private static final String TOKEN = LOX + "Token";
+  private static final String UPVALUES = "[L" + LOX + "Upvalue;";
+
+  // Thrown when the function uses something the compiler doesn't handle.
+  private static class Unsupported extends RuntimeException {
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static class Loop {
+    final Loop enclosing;
+    final Label start = new Label();
+    final Label end = new Label();
+
+    Loop(Loop enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  // A counted loop whose body is being written, and the JVM locals that
+  // hold its counter and limit as doubles.
+  private static class Counter {
+    final CountedLoop counted;
+    final int local;
+    final int limit;
+
+    Counter(CountedLoop counted, int local, int limit) {
+      this.counted = counted;
+      this.local = local;
+      this.limit = limit;
+    }
+  }
+
+  // Where the nodes can resume a loop. A loop in the body of counted loops
+  // is entered there after setting up their counters, or else in a copy
+  // that keeps every counter in its slot.
+  private static class Resume {
+    Label usual = null;
+    Label counted = null;
+    // The counted loops around that one, outermost first.
+    List<Counter> enclosing = null;
+  }
+
+  private final LoxFunction.Declaration declaration;
+  private final String className;
+  private final ClassWriter writer;
+  private final List<Object> constants = new ArrayList<>();
+  private final List<String> constantTypes = new ArrayList<>();
+  private final Map<Object, Integer> constantIndexes = new HashMap<>();
+  private ClassWriter.Code code;
+  private Loop loop = null;
+  // Where each loop in the method being written can resume, in the order
+  // the NodeBuilder numbers them, and the number of the next loop.
+  private final List<Resume> loops = new ArrayList<>();
+  private int nextLoop;
+  // The counted loops whose bodies are being written, innermost last, and
+  // the first JVM local past theirs.
+  private final List<Counter> counters = new ArrayList<>();
+  private int nextLocal;
+  // Set while writing the copy of a counted loop that runs the usual way.
+  private boolean copying = false;
+  // The top of the body being written, where a call of the function itself
+  // in tail position jumps back to.
+  private Label bodyStart;
+  // Whether the function has calls in tail position, so its code can return
+  // Interpreter.TAIL_CALL.
+  private boolean tailCalls = false;
+
+  private JvmCompiler(LoxFunction.Declaration declaration) {
+    this.declaration = declaration;
+    this.className = LOX + "JvmFunction$" + declaration.name;
+    this.writer = new ClassWriter(className);
+  }
+
+  static void compile(LoxFunction.Declaration declaration) {
+    try {
+      new JvmCompiler(declaration).compile();
+    } catch (Unsupported | IllegalStateException error) {
+      declaration.uncompilable = true;
+    }
+  }
+
+  private void compile() {
+    int arity = declaration.parameters.size();
+    if (arity > 250) throw new Unsupported();
+
+    String descriptor = descriptor(arity);
+    code = writer.method(ACC_STATIC, "call", descriptor);
+    // The verifier wants every local assigned before the code reads it.
+    for (int slot = arity + 1; slot < declaration.slotCount; slot++) {
+      code.op(ACONST_NULL, 1);
+      code.astore(local(slot));
+    }
+    body();
+    code.end();
+
+    resume();
+    initializeConstants();
+
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup()
+          .defineHiddenClassWithClassData(writer.toByteArray(), constants,
+              true);
+      MethodType type = MethodType.genericMethodType(arity + 1)
+          .insertParameterTypes(0, Upvalue[].class);
+      declaration.compiled = lookup.findStatic(lookup.lookupClass(), "call",
+          type);
+      if (tailCalls) {
+        declaration.compiled = MethodHandles.filterReturnValue(
+            declaration.compiled, JvmRuntime.COMPLETE);
+      }
+      declaration.resume = lookup.findStatic(lookup.lookupClass(), "resume",
+          MethodType.methodType(Object.class, Upvalue[].class,
+              Object[].class, int.class));
+    } catch (IllegalAccessException | NoSuchMethodException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
+  private void body() {
+    loops.clear();
+    nextLoop = 0;
+    // Past the locals "resume" uses to load the frame.
+    nextLocal = local(declaration.slotCount) + 2;
+    bodyStart = new Label();
+    code.bind(bodyStart);
+    for (Stmt statement : declaration.body) {
+      execute(statement);
+    }
+    returnValue(null);
+  }
+
+  // Writes "resume", which runs the function on a frame the nodes set up,
+  // from the start or, given a loop's number, from the top of that loop.
+  // The body is written again after a jump to code that loads the frame
+  // into the locals and then jumps to where the function resumes.
+  private void resume() {
+    code = writer.method(ACC_STATIC, "resume",
+        "(" + UPVALUES + "[" + OBJECT + "I)" + OBJECT);
+    Label start = new Label();
+    Label load = new Label();
+    code.jump(GOTO, load);
+    code.bind(start);
+    body();
+
+    // The frame and loop number move out of the way of the slots. The
+    // frame can land on the loop number's local, so that moves first.
+    int frame = local(declaration.slotCount);
+    int resumeLoop = frame + 1;
+    code.bind(load);
+    code.iload(2);
+    code.istore(resumeLoop);
+    code.aload(1);
+    code.astore(frame);
+    for (int slot = 0; slot < declaration.slotCount; slot++) {
+      code.aload(frame);
+      code.pushInt(slot);
+      code.op(AALOAD, -1);
+      code.astore(local(slot));
+    }
+
+    List<Label> targets = new ArrayList<>();
+    for (int i = 0; i < loops.size(); i++) {
+      Resume resume = loops.get(i);
+      Label target = resume.counted != null ? new Label() : resume.usual;
+      targets.add(target);
+      code.iload(resumeLoop);
+      code.pushInt(i);
+      code.jump(IF_ICMPEQ, target);
+    }
+    code.jump(GOTO, start);
+
+    for (int i = 0; i < loops.size(); i++) {
+      Resume resume = loops.get(i);
+      if (resume.counted == null) continue;
+
+      code.bind(targets.get(i));
+      for (Counter counter : resume.enclosing) {
+        startCounting(counter, resume.usual);
+      }
+      code.jump(GOTO, resume.counted);
+    }
+    code.end();
+  }
+
+  // Notes where the next loop starts in the code being written.
+  private void resumeAt(Label label) {
+    int number = nextLoop++;
+    while (loops.size() <= number) loops.add(new Resume());
+    Resume resume = loops.get(number);
+    if (counters.isEmpty()) {
+      resume.usual = label;
+    } else if (!copying) {
+      resume.counted = label;
+      resume.enclosing = new ArrayList<>(counters);
+    }
+  }
+
+  // The call method's upvalues, receiver and arguments.
+  private static String descriptor(int arity) {
+    return "(" + UPVALUES + OBJECT + OBJECT.repeat(arity) + ")" + OBJECT;
+  }
+
+  // The receiver is in slot zero, and JVM local zero has the upvalues.
+  private static int local(int slot) {
+    return slot + 1;
+  }
+
+  // Copies the class data into the static final fields in <clinit>.
+  private void initializeConstants() {
+    code = writer.method(ACC_STATIC, "<clinit>", "()V");
+    code.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+        "()Ljava/lang/invoke/MethodHandles$Lookup;");
+    code.astore(0);
+
+    for (int i = 0; i < constants.size(); i++) {
+      String type = constantTypes.get(i);
+      writer.field(ACC_STATIC | ACC_FINAL, "K" + i, "L" + type + ";");
+
+      code.aload(0);
+      code.ldc(writer.string("_"));
+      code.ldc(writer.classRef(type));
+      code.pushInt(i);
+      code.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles",
+          "classDataAt", "(Ljava/lang/invoke/MethodHandles$Lookup;" +
+          "Ljava/lang/String;Ljava/lang/Class;I)" + OBJECT);
+      code.type(CHECKCAST, type);
+      code.field(PUTSTATIC, className, "K" + i, "L" + type + ";");
+    }
+
+    code.op(RETURN, 0);
+    code.end();
+  }
+
+  private void constant(Object value, String type) {
+    Integer index = constantIndexes.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantTypes.add(type);
+      constantIndexes.put(value, index);
+    }
+
+    code.field(GETSTATIC, className, "K" + index, "L" + type + ";");
+  }
+
+  private void execute(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void evaluate(Expr expr) {
+    expr.accept(this);
+  }
+
+  private void runtime(String name, String descriptor) {
+    code.invoke(INVOKESTATIC, RUNTIME, name, descriptor);
+  }
+
+  private void isTruthy() {
+    code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(" + OBJECT + ")Z");
+  }
+
+  private void checkInitialized(Token name) {
+    constant(name, TOKEN);
+    code.invoke(INVOKESTATIC, INTERPRETER, "checkInitialized",
+        "(" + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+  }
+
+  private void upvalue(int index) {
+    code.aload(0);
+    code.pushInt(index);
+    code.op(AALOAD, -1);
+  }
+
+  private void returnValue(Expr value) {
+    if (declaration.isInitializer) {
+      code.aload(local(0));
+    } else if (value != null) {
+      evaluate(value);
+    } else {
+      code.op(ACONST_NULL, 1);
+    }
+    code.op(ARETURN, -1);
+  }
+
+  // Jumps to target if the condition's truthiness is "when". Comparisons
+  // and logical operators jump on the JVM boolean, without boxing it.
+  private void branch(Expr condition, boolean when, Label target) {
+    if (condition instanceof Expr.Grouping) {
+      branch(((Expr.Grouping)condition).expression, when, target);
+      return;
+    }
+
+    if (condition instanceof Expr.Unary &&
+        ((Expr.Unary)condition).operator.type == TokenType.BANG) {
+      branch(((Expr.Unary)condition).right, !when, target);
+      return;
+    }
+
+    if (condition instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)condition;
+      boolean isOr = logical.operator.type == TokenType.OR;
+      if (isOr == when) {
+        branch(logical.left, when, target);
+        branch(logical.right, when, target);
+      } else {
+        Label skip = new Label();
+        branch(logical.left, !when, skip);
+        branch(logical.right, when, target);
+        code.bind(skip);
+      }
+      return;
+    }
+
+    if (condition instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)condition;
+      String test = comparison(binary.operator.type);
+      if (test != null) {
+        evaluate(binary.left);
+        evaluate(binary.right);
+        test(binary.operator, test);
+        code.jump(when ? IFNE : IFEQ, target);
+        return;
+      }
+    }
+
+    evaluate(condition);
+    isTruthy();
+    code.jump(when ? IFNE : IFEQ, target);
+  }
+
+  private static String comparison(TokenType type) {
+    switch (type) {
+      case GREATER: return "greater";
+      case GREATER_EQUAL: return "greaterEqual";
+      case LESS: return "less";
+      case LESS_EQUAL: return "lessEqual";
+      case EQUAL_EQUAL: return "isEqual";
+      case BANG_EQUAL: return "isNotEqual";
+      default: return null;
+    }
+  }
+
+  // Leaves the comparison's result on the stack as a JVM boolean.
+  private void test(Token operator, String test) {
+    if (test.equals("isEqual") || test.equals("isNotEqual")) {
+      code.invoke(INVOKESTATIC, INTERPRETER, "isEqual",
+          "(" + OBJECT + OBJECT + ")Z");
+      if (test.equals("isNotEqual")) {
+        code.op(ICONST_1, 1);
+        code.op(IXOR, -1);
+      }
+      return;
+    }
+
+    constant(operator, TOKEN);
+    runtime(test, "(" + OBJECT + OBJECT + "L" + TOKEN + ";)Z");
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      execute(statement);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    code.jump(GOTO, loop.end);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    code.jump(GOTO, loop.start);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    evaluate(stmt.expression);
+    code.op(POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    Label elseBranch = new Label();
+    branch(stmt.condition, false, elseBranch);
+    execute(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      code.bind(elseBranch);
+      return null;
+    }
+
+    Label end = new Label();
+    code.jump(GOTO, end);
+    code.bind(elseBranch);
+    execute(stmt.elseBranch);
+    code.bind(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    evaluate(stmt.expression);
+    runtime("print", "(" + OBJECT + ")V");
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    returnValue(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.slot == -1) throw new Unsupported();
+
+    if (stmt.initializer != null) {
+      evaluate(stmt.initializer);
+    } else {
+      code.field(GETSTATIC, LOX + "Environment", "UNINITIALIZED", OBJECT);
+    }
+    code.astore(local(stmt.slot));
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    CountedLoop counted = copying ? null : CountedLoop.of(stmt);
+    if (counted != null) {
+      countedLoop(stmt, counted);
+    } else {
+      whileLoop(stmt, true);
+    }
+    return null;
+  }
+
+  private void whileLoop(Stmt.While stmt, boolean resumable) {
+    loop = new Loop(loop);
+    if (resumable) resumeAt(loop.start);
+    code.bind(loop.start);
+    branch(stmt.condition, false, loop.end);
+    execute(stmt.body);
+    code.jump(GOTO, loop.start);
+    code.bind(loop.end);
+    loop = loop.enclosing;
+  }
+
+  // Counts in a JVM double, if the counter and the limit are numbers when
+  // the loop starts, and otherwise jumps to a copy of the loop written the
+  // usual way. The loops in that copy are written the usual way too.
+  private void countedLoop(Stmt.While stmt, CountedLoop counted) {
+    Counter counter = new Counter(counted, nextLocal, nextLocal + 2);
+    nextLocal += 4;
+    Label entry = new Label();
+    Label usual = new Label();
+    Label done = new Label();
+
+    int number = nextLoop;
+    resumeAt(entry);
+    code.bind(entry);
+    startCounting(counter, usual);
+
+    loop = new Loop(loop);
+    code.bind(loop.start);
+    code.dload(counter.local);
+    code.dload(counter.limit);
+    switch (counted.comparison) {
+      // A NaN ends the loop, as it fails any comparison.
+      case LESS:
+        code.op(DCMPG, -3);
+        code.jump(IFGE, loop.end);
+        break;
+      case LESS_EQUAL:
+        code.op(DCMPG, -3);
+        code.jump(IFGT, loop.end);
+        break;
+      case GREATER:
+        code.op(DCMPL, -3);
+        code.jump(IFLE, loop.end);
+        break;
+      default:
+        code.op(DCMPL, -3);
+        code.jump(IFLT, loop.end);
+        break;
+    }
+
+    counters.add(counter);
+    for (Stmt statement : counted.body) {
+      execute(statement);
+    }
+    counters.remove(counters.size() - 1);
+
+    code.dload(counter.local);
+    code.ldc2(writer.doubleConstant(counted.step));
+    code.op(DADD, -2);
+    code.dstore(counter.local);
+    code.jump(GOTO, loop.start);
+    code.bind(loop.end);
+    loop = loop.enclosing;
+
+    // The counter's slot is left with its last value.
+    code.dload(counter.local);
+    box();
+    code.astore(local(counted.slot));
+    code.jump(GOTO, done);
+
+    // The copy numbers its loops the same way.
+    code.bind(usual);
+    nextLoop = number + 1;
+    copying = true;
+    whileLoop(stmt, false);
+    copying = false;
+    code.bind(done);
+    nextLocal -= 4;
+  }
+
+  // Loads the counter and the limit into their double locals, or jumps to
+  // usual if they aren't both numbers. The limit's local holds the boxed
+  // limit until it is checked.
+  private void startCounting(Counter counter, Label usual) {
+    int slot = counter.counted.slot;
+    code.aload(local(slot));
+    code.type(INSTANCEOF, "java/lang/Double");
+    code.jump(IFEQ, usual);
+    evaluate(counter.counted.limit);
+    code.astore(counter.limit);
+    code.aload(counter.limit);
+    code.type(INSTANCEOF, "java/lang/Double");
+    code.jump(IFEQ, usual);
+    code.aload(counter.limit);
+    unbox();
+    code.dstore(counter.limit);
+    code.aload(local(slot));
+    unbox();
+    code.dstore(counter.local);
+  }
+
+  // The counted loop being written whose counter is in the slot, if any.
+  private Counter counter(int slot) {
+    for (Counter counter : counters) {
+      if (counter.counted.slot == slot) return counter;
+    }
+    return null;
+  }
+
+  private void unbox() {
+    code.type(CHECKCAST, "java/lang/Double");
+    code.invoke(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D");
+  }
+
+  private void box() {
+    code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf",
+        "(D)Ljava/lang/Double;");
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    evaluate(expr.value);
+    code.op(DUP, 1);
+
+    if (expr.slot != -1) {
+      code.astore(local(expr.slot));
+    } else if (expr.upvalue != -1) {
+      upvalue(expr.upvalue);
+      code.op(SWAP, 0);
+      code.field(PUTFIELD, LOX + "Upvalue", "value", OBJECT);
+    } else {
+      Environment.Cell cell = JvmRuntime.interpreter.globals.cell(
+          expr.name.lexeme);
+      if (cell != null) {
+        constant(cell, LOX + "Environment$Cell");
+        code.op(SWAP, 0);
+        code.field(PUTFIELD, LOX + "Environment$Cell", "value", OBJECT);
+      } else {
+        constant(expr.name, TOKEN);
+        runtime("assignGlobal", "(" + OBJECT + "L" + TOKEN + ";)V");
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (expr.operator.type == TokenType.COMMA) {
+      evaluate(expr.left);
+      code.op(POP, -1);
+      evaluate(expr.right);
+      return null;
+    }
+
+    evaluate(expr.left);
+    evaluate(expr.right);
+
+    String test = comparison(expr.operator.type);
+    if (test != null) {
+      test(expr.operator, test);
+      code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf",
+          "(Z)Ljava/lang/Boolean;");
+      return null;
+    }
+
+    String operation;
+    switch (expr.operator.type) {
+      case PLUS: operation = "add"; break;
+      case MINUS: operation = "subtract"; break;
+      case STAR: operation = "multiply"; break;
+      case SLASH: operation = "divide"; break;
+      case PERCENT: operation = "remainder"; break;
+      default: operation = "binary"; break;
+    }
+    constant(expr.operator, TOKEN);
+    runtime(operation, "(" + OBJECT + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    int argCount = expr.arguments.size();
+    if (argCount > 250) throw new Unsupported();
+
+    if (expr.callee instanceof Expr.Super) {
+      throw new Unsupported();
+    } else if (expr.tail) {
+      tailCall(expr);
+      return null;
+    } else if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      JvmRuntime.InvokeSite site = new JvmRuntime.InvokeSite(get.name,
+          expr.paren, argCount, false);
+      constant(JvmRuntime.invoker(site, expr.paren),
+          "java/lang/invoke/MethodHandle");
+      evaluate(get.object);
+      constant(get.name, TOKEN);
+      runtime("checkGet", "(" + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+    } else {
+      JvmRuntime.CallSite site = new JvmRuntime.CallSite(expr.paren,
+          argCount, false);
+      constant(JvmRuntime.invoker(site, expr.paren),
+          "java/lang/invoke/MethodHandle");
+      evaluate(expr.callee);
+    }
+
+    for (Expr argument : expr.arguments) {
+      evaluate(argument);
+    }
+    code.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact",
+        "(" + OBJECT.repeat(argCount + 1) + ")" + OBJECT);
+    return null;
+  }
+
+  // A call in tail position. When it calls the function being compiled,
+  // it jumps back to the top of the body with the callee's upvalues,
+  // receiver and arguments in the locals, so the recursion runs as a loop.
+  // Any other callee is called as usual, unless too many such calls are
+  // running already. Then it goes through a site that leaves the call to
+  // whoever called this function.
+  private void tailCall(Expr.Call expr) {
+    tailCalls = true;
+    int argCount = expr.arguments.size();
+    int callee = nextLocal;
+    nextLocal += argCount + 1;
+    Expr.Get get = null;
+    if (expr.callee instanceof Expr.Get) {
+      // The instance stands in for the callee.
+      get = (Expr.Get)expr.callee;
+      evaluate(get.object);
+      constant(get.name, TOKEN);
+      runtime("checkGet", "(" + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+    } else {
+      evaluate(expr.callee);
+    }
+    code.astore(callee);
+    for (int i = 0; i < argCount; i++) {
+      evaluate(expr.arguments.get(i));
+      code.astore(callee + 1 + i);
+    }
+
+    if (get == null) {
+      Label other = new Label();
+      code.aload(callee);
+      constant(declaration, LOX + "LoxFunction$Declaration");
+      runtime("isDeclaration",
+          "(" + OBJECT + "L" + LOX + "LoxFunction$Declaration;)Z");
+      code.jump(IFEQ, other);
+      code.aload(callee);
+      runtime("upvalues", "(" + OBJECT + ")" + UPVALUES);
+      code.astore(0);
+      code.aload(callee);
+      runtime("receiver", "(" + OBJECT + ")" + OBJECT);
+      code.astore(local(0));
+      for (int i = 0; i < argCount; i++) {
+        code.aload(callee + 1 + i);
+        code.astore(local(i + 1));
+      }
+      code.jump(GOTO, bodyStart);
+      code.bind(other);
+    }
+
+    Label tail = new Label();
+    runtime("enterTailCall", "()Z");
+    code.jump(IFEQ, tail);
+    call(site(expr, get, false), expr.paren, callee, argCount);
+    runtime("exitTailCall", "()V");
+    code.op(ARETURN, -1);
+
+    code.bind(tail);
+    call(site(expr, get, true), expr.paren, callee, argCount);
+    nextLocal = callee;
+  }
+
+  private static MutableCallSite site(Expr.Call expr, Expr.Get get,
+                                      boolean tail) {
+    int argCount = expr.arguments.size();
+    if (get == null) {
+      return new JvmRuntime.CallSite(expr.paren, argCount, tail);
+    }
+    return new JvmRuntime.InvokeSite(get.name, expr.paren, argCount, tail);
+  }
+
+  // Calls through the site with the callee and arguments in the locals from
+  // first on.
+  private void call(MutableCallSite site, Token paren, int first,
+                    int argCount) {
+    constant(JvmRuntime.invoker(site, paren),
+        "java/lang/invoke/MethodHandle");
+    for (int i = 0; i <= argCount; i++) code.aload(first + i);
+    code.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact",
+        "(" + OBJECT.repeat(argCount + 1) + ")" + OBJECT);
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    constant(new InlineCache(), LOX + "InlineCache");
+    constant(expr.name, TOKEN);
+    evaluate(expr.object);
+    constant(expr.name, TOKEN);
+    runtime("checkGet", "(" + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+    runtime("get", "(L" + LOX + "InlineCache;L" + TOKEN + ";" + OBJECT + ")" +
+        OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitIndexExpr(Expr.Index expr) {
+    evaluate(expr.object);
+    String index = index(expr.index);
+    constant(expr.bracket, TOKEN);
+    code.invoke(INVOKESTATIC, LOX + "LoxArray", "get",
+        "(" + OBJECT + index + "L" + TOKEN + ";)" + OBJECT);
+    return null;
+  }
+
+  // Pushes an index, unboxed if it is a loop counter. Returns its type.
+  private String index(Expr expr) {
+    if (expr instanceof Expr.Variable) {
+      Counter counter = counter(((Expr.Variable)expr).slot);
+      if (counter != null) {
+        code.dload(counter.local);
+        return "D";
+      }
+    }
+
+    evaluate(expr);
+    return OBJECT;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    evaluate(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      code.op(ACONST_NULL, 1);
+    } else if (expr.value instanceof Boolean) {
+      code.field(GETSTATIC, "java/lang/Boolean",
+          (boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+    } else {
+      constant(expr.value, "java/lang/Object");
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    Label end = new Label();
+    evaluate(expr.left);
+    code.op(DUP, 1);
+    isTruthy();
+    code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+    code.op(POP, -1);
+    evaluate(expr.right);
+    code.bind(end);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    constant(new InlineCache(), LOX + "InlineCache");
+    constant(expr.name, TOKEN);
+    evaluate(expr.object);
+    constant(expr.name, TOKEN);
+    runtime("checkSet", "(" + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+    evaluate(expr.value);
+    runtime("set", "(L" + LOX + "InlineCache;L" + TOKEN + ";" + OBJECT +
+        OBJECT + ")" + OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitSetIndexExpr(Expr.SetIndex expr) {
+    evaluate(expr.object);
+    String index = index(expr.index);
+    evaluate(expr.value);
+    constant(expr.bracket, TOKEN);
+    code.invoke(INVOKESTATIC, LOX + "LoxArray", "set",
+        "(" + OBJECT + index + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    code.aload(local(0));
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    evaluate(expr.right);
+    if (expr.operator.type == TokenType.BANG) {
+      runtime("not", "(" + OBJECT + ")" + OBJECT);
+    } else {
+      constant(expr.operator, TOKEN);
+      runtime("negate", "(" + OBJECT + "L" + TOKEN + ";)" + OBJECT);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    Counter counter = counter(expr.slot);
+    if (counter != null) {
+      code.dload(counter.local);
+      box();
+    } else if (expr.slot != -1) {
+      code.aload(local(expr.slot));
+      // Parameters are always initialized.
+      if (expr.slot > declaration.parameters.size()) {
+        checkInitialized(expr.name);
+      }
+    } else if (expr.upvalue != -1) {
+      upvalue(expr.upvalue);
+      code.field(GETFIELD, LOX + "Upvalue", "value", OBJECT);
+      checkInitialized(expr.name);
+    } else {
+      Environment.Cell cell = JvmRuntime.interpreter.globals.cell(
+          expr.name.lexeme);
+      if (cell != null) {
+        constant(cell, LOX + "Environment$Cell");
+        code.field(GETFIELD, LOX + "Environment$Cell", "value", OBJECT);
+        checkInitialized(expr.name);
+      } else {
+        constant(expr.name, TOKEN);
+        runtime("getGlobal", "(L" + TOKEN + ";)" + OBJECT);
+      }
+    }
+    return null;
+  }
+}
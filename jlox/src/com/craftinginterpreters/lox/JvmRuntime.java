@@ -0,0 +1,405 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+// What the code JvmCompiler generates calls into. The operators are small
+// static methods with the number case first, so HotSpot inlines them into
+// the compiled function and only the rare cases call back to the Interpreter.
+// Calls go through call sites that link straight to the callee's compiled
+// method once they have seen it, so HotSpot can inline across Lox calls.
+final class JvmRuntime {
+  static Interpreter interpreter;
+
+  private static final MethodHandle CALL_FALLBACK;
+  private static final MethodHandle INVOKE_FALLBACK;
+  private static final MethodHandle IS_DECLARATION;
+  private static final MethodHandle IS_SHAPE;
+  private static final MethodHandle UPVALUES;
+  private static final MethodHandle RECEIVER;
+  private static final MethodHandle STACK_OVERFLOW;
+  // Finishes the tail call a compiled function may return.
+  static final MethodHandle COMPLETE;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      MethodType fallback = MethodType.methodType(Object.class,
+          Object.class, Object[].class);
+      CALL_FALLBACK = lookup.findVirtual(CallSite.class, "fallback", fallback);
+      INVOKE_FALLBACK = lookup.findVirtual(InvokeSite.class, "fallback",
+          fallback);
+      IS_DECLARATION = lookup.findStatic(JvmRuntime.class, "isDeclaration",
+          MethodType.methodType(boolean.class, Object.class,
+              LoxFunction.Declaration.class));
+      IS_SHAPE = lookup.findStatic(JvmRuntime.class, "isShape",
+          MethodType.methodType(boolean.class, Object.class, LoxClass.class,
+              Shape.class));
+      UPVALUES = lookup.findStatic(JvmRuntime.class, "upvalues",
+          MethodType.methodType(Upvalue[].class, Object.class));
+      RECEIVER = lookup.findStatic(JvmRuntime.class, "receiver",
+          MethodType.methodType(Object.class, Object.class));
+      COMPLETE = lookup.findStatic(JvmRuntime.class, "complete",
+          MethodType.methodType(Object.class, Object.class));
+      STACK_OVERFLOW = lookup.findStatic(JvmRuntime.class, "stackOverflow",
+          MethodType.methodType(Object.class, Token.class,
+              StackOverflowError.class));
+    } catch (ReflectiveOperationException error) {
+      throw new ExceptionInInitializerError(error);
+    }
+  }
+
+  private JvmRuntime() {}
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left + (double)right;
+    }
+    return interpreter.binary(operator, left, right);
+  }
+
+  static Object subtract(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left - (double)right;
+    }
+    return interpreter.binary(operator, left, right);
+  }
+
+  static Object multiply(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left * (double)right;
+    }
+    return interpreter.binary(operator, left, right);
+  }
+
+  static Object divide(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left / (double)right;
+    }
+    return interpreter.binary(operator, left, right);
+  }
+
+  static Object remainder(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return Interpreter.remainder((double)left, (double)right);
+    }
+    return interpreter.binary(operator, left, right);
+  }
+
+  static boolean greater(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left > (double)right;
+    }
+    return Interpreter.isTruthy(interpreter.binary(operator, left, right));
+  }
+
+  static boolean greaterEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left >= (double)right;
+    }
+    return Interpreter.isTruthy(interpreter.binary(operator, left, right));
+  }
+
+  static boolean less(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left < (double)right;
+    }
+    return Interpreter.isTruthy(interpreter.binary(operator, left, right));
+  }
+
+  static boolean lessEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left <= (double)right;
+    }
+    return Interpreter.isTruthy(interpreter.binary(operator, left, right));
+  }
+
+  // The operators that have no fast path of their own.
+  static Object binary(Object left, Object right, Token operator) {
+    return interpreter.binary(operator, left, right);
+  }
+
+  static Object negate(Object right, Token operator) {
+    if (right instanceof Double) return -(double)right;
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  static Object not(Object right) {
+    return !Interpreter.isTruthy(right);
+  }
+
+  static void print(Object value) {
+    interpreter.out.println(Interpreter.stringify(value));
+  }
+
+  // Globals the function uses that weren't defined yet when it compiled.
+  static Object getGlobal(Token name) {
+    return interpreter.globals.get(name);
+  }
+
+  static void assignGlobal(Object value, Token name) {
+    interpreter.globals.assign(name, value);
+  }
+
+  // Checks the object of a property access before anything else in the
+  // expression runs, as the Interpreter does.
+  static Object checkGet(Object object, Token name) {
+    if (object instanceof LoxInstance) return object;
+
+    throw new RuntimeError(name,
+        "Only instances have properties.");
+  }
+
+  static Object checkSet(Object object, Token name) {
+    if (object instanceof LoxInstance) return object;
+
+    throw new RuntimeError(name, "Only instances have fields.");
+  }
+
+  static Object get(InlineCache cache, Token name, Object object) {
+    return cache.get((LoxInstance)object, name);
+  }
+
+  static Object set(InlineCache cache, Token name, Object object,
+                    Object value) {
+    cache.set((LoxInstance)object, name, value);
+    return value;
+  }
+
+  // Runs a compiled function on a frame the nodes set up, from the start if
+  // loop is -1 or else from the top of that loop.
+  static Object resume(LoxFunction.Declaration declaration, Upvalue[] upvalues,
+                       Object[] frame, int loop) {
+    try {
+      return (Object)declaration.resume.invokeExact(upvalues, frame, loop);
+    } catch (RuntimeException | Error error) {
+      throw error;
+    } catch (Throwable error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
+  static boolean isDeclaration(Object callee,
+                                       LoxFunction.Declaration declaration) {
+    return callee instanceof LoxFunction &&
+        ((LoxFunction)callee).declaration == declaration;
+  }
+
+  private static boolean isShape(Object object, LoxClass klass, Shape shape) {
+    if (!(object instanceof LoxInstance)) return false;
+    LoxInstance instance = (LoxInstance)object;
+    return instance.klass == klass && instance.shape == shape;
+  }
+
+  static Upvalue[] upvalues(Object function) {
+    return ((LoxFunction)function).upvalues;
+  }
+
+  static Object receiver(Object function) {
+    return ((LoxFunction)function).receiver;
+  }
+
+  private static void checkArity(int arity, Token paren, int argCount) {
+    if (argCount != arity) {
+      throw new RuntimeError(paren, "Expected " +
+          arity + " arguments but got " + argCount + ".");
+    }
+  }
+
+  private static Object callFunction(LoxFunction function,
+                                     LoxInstance receiver,
+                                     Object[] arguments) {
+    Object[] frame = function.newFrame();
+    System.arraycopy(arguments, 0, frame, 1, arguments.length);
+    return function.call(interpreter, frame, receiver);
+  }
+
+  private static Object call(Object callee, Token paren, Object[] arguments) {
+    if (callee instanceof LoxFunction) {
+      LoxFunction function = (LoxFunction)callee;
+      checkArity(function.arity(), paren, arguments.length);
+      return callFunction(function, function.receiver, arguments);
+    }
+
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren,
+          "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable)callee;
+    checkArity(function.arity(), paren, arguments.length);
+    return function.call(interpreter, Arrays.asList(arguments));
+  }
+
+  // What compiled code calls a site through. A call that runs out of Java
+  // stack is reported at that call, as the Interpreter's calls do, rather
+  // than at whichever interpreted call the error reaches first.
+  static MethodHandle invoker(MutableCallSite site, Token paren) {
+    return MethodHandles.catchException(site.dynamicInvoker(),
+        StackOverflowError.class,
+        MethodHandles.insertArguments(STACK_OVERFLOW, 0, paren));
+  }
+
+  private static Object stackOverflow(Token paren, StackOverflowError error) {
+    throw Interpreter.stackOverflow(paren);
+  }
+
+  // Compiled code makes a call in tail position as an ordinary call while
+  // fewer than MAX_TAIL_DEPTH of those are running. Past that, it leaves
+  // the call to be made after it returns, so a long chain of them unwinds
+  // to a loop that makes the rest.
+  private static final int MAX_TAIL_DEPTH = 1000;
+  private static int tailDepth = 0;
+
+  static boolean enterTailCall() {
+    if (tailDepth == MAX_TAIL_DEPTH) return false;
+    tailDepth++;
+    return true;
+  }
+
+  static void exitTailCall() {
+    tailDepth--;
+  }
+
+  // Leaves a call in tail position for LoxFunction.call to make, once the
+  // compiled function has returned. Other callees are called right away.
+  private static Object tailCall(Object callee, Token paren,
+                                 Object[] arguments) {
+    if (!(callee instanceof LoxFunction)) return call(callee, paren, arguments);
+
+    LoxFunction function = (LoxFunction)callee;
+    checkArity(function.arity(), paren, arguments.length);
+    return tailCall(function, function.receiver, arguments);
+  }
+
+  private static Object tailCall(LoxFunction function, LoxInstance receiver,
+                                 Object[] arguments) {
+    Object[] frame = function.newFrame();
+    System.arraycopy(arguments, 0, frame, 1, arguments.length);
+    return interpreter.tailCall(function, frame, receiver);
+  }
+
+  // Makes the tail call a compiled function returned, when it was called
+  // straight from a call site rather than through LoxFunction.call.
+  private static Object complete(Object result) {
+    if (result != Interpreter.TAIL_CALL) return result;
+    return interpreter.tailFunction.call(interpreter, interpreter.tailFrame,
+        interpreter.tailReceiver);
+  }
+
+  // A call whose callee is any expression. Until it sees a compiled
+  // function, it calls through the generic path. Then it links straight to
+  // that function's compiled method, behind a check that the callee is
+  // still a closure of the same declaration. It links only once, so a site
+  // that sees many functions doesn't keep throwing away the code using it.
+  // A site in tail position never links, and leaves calls to Lox functions
+  // for the caller's caller to make.
+  static final class CallSite extends MutableCallSite {
+    private final Token paren;
+    private final boolean tail;
+    private boolean linked = false;
+
+    CallSite(Token paren, int argCount, boolean tail) {
+      super(MethodType.genericMethodType(argCount + 1));
+      this.paren = paren;
+      this.tail = tail;
+      setTarget(CALL_FALLBACK.bindTo(this)
+          .asCollector(Object[].class, argCount));
+    }
+
+    private Object fallback(Object callee, Object[] arguments) {
+      try {
+        if (tail) return tailCall(callee, paren, arguments);
+
+        if (!linked && callee instanceof LoxFunction) {
+          LoxFunction function = (LoxFunction)callee;
+          if (function.declaration.compiled != null &&
+              function.arity() == arguments.length) {
+            link(function.declaration);
+          }
+        }
+
+        return call(callee, paren, arguments);
+      } catch (RuntimeError error) {
+        throw error.at(paren);
+      }
+    }
+
+    private void link(LoxFunction.Declaration declaration) {
+      int argCount = type().parameterCount() - 1;
+
+      // Pass the callee as both the upvalues and the receiver.
+      MethodHandle target = MethodHandles.filterArguments(
+          declaration.compiled, 0, UPVALUES, RECEIVER);
+      int[] order = new int[argCount + 2];
+      for (int i = 2; i < order.length; i++) order[i] = i - 1;
+      target = MethodHandles.permuteArguments(target, type(), order);
+
+      MethodHandle test = MethodHandles.insertArguments(IS_DECLARATION, 1,
+          declaration);
+      test = MethodHandles.dropArguments(test, 1,
+          type().parameterList().subList(1, argCount + 1));
+
+      setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+      linked = true;
+    }
+  }
+
+  // A method call on an instance. It looks the method up through an inline
+  // cache and, once the method is compiled, links straight to it for
+  // instances of the class and shape it was found on. Like a CallSite, a
+  // site in tail position never links.
+  static final class InvokeSite extends MutableCallSite {
+    private final Token name;
+    private final Token paren;
+    private final boolean tail;
+    private final InlineCache cache = new InlineCache();
+    private boolean linked = false;
+
+    InvokeSite(Token name, Token paren, int argCount, boolean tail) {
+      super(MethodType.genericMethodType(argCount + 1));
+      this.name = name;
+      this.paren = paren;
+      this.tail = tail;
+      setTarget(INVOKE_FALLBACK.bindTo(this)
+          .asCollector(Object[].class, argCount));
+    }
+
+    private Object fallback(Object object, Object[] arguments) {
+      try {
+        LoxInstance instance = (LoxInstance)object;
+        LoxFunction method = cache.method(instance, name);
+        if (method == null) {
+          Object callee = cache.get(instance, name);
+          if (tail) return tailCall(callee, paren, arguments);
+          return call(callee, paren, arguments);
+        }
+
+        checkArity(method.arity(), paren, arguments.length);
+        if (tail) return tailCall(method, instance, arguments);
+        if (!linked && method.declaration.compiled != null) {
+          link(instance, method);
+        }
+        return callFunction(method, instance, arguments);
+      } catch (RuntimeError error) {
+        throw error.at(paren);
+      }
+    }
+
+    private void link(LoxInstance instance, LoxFunction method) {
+      MethodHandle target = MethodHandles.insertArguments(
+          method.declaration.compiled, 0, (Object)method.upvalues);
+
+      MethodHandle test = MethodHandles.insertArguments(IS_SHAPE, 1,
+          instance.klass, instance.shape);
+      test = MethodHandles.dropArguments(test, 1,
+          type().parameterList().subList(1, type().parameterCount()));
+
+      setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+      linked = true;
+    }
+  }
+}
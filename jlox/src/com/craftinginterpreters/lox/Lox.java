@@ -1,31 +1,156 @@
 package com.craftinginterpreters.lox;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import com.craftinginterpreters.lox.ModuleLoader.Module;
+
 public class Lox {
   private static final Interpreter interpreter = new Interpreter();
+  // Compiles the scripts and the files they import.
+  private static ModuleLoader loader;
+  // Set when running with --vm, in which case code is compiled to bytecode.
+  private static VM vm = null;
+  // Set by --nodes, to run the script as a tree of self-specializing nodes.
+  private static boolean nodes = false;
+  // Set by --stream, to run each top-level statement as soon as it has been
+  // read and parsed, instead of reading the whole script first.
+  private static boolean stream = false;
+  // Set by --ast-cache, to keep resolved scripts in that directory so later
+  // runs of them skip scanning, parsing and resolving.
+  private static AstCache astCache = null;
+  // Set by --dump-ast, to print each script as the Optimizer leaves it
+  // instead of running it.
+  private static boolean dumpAst = false;
+  // Set by --print-inlining, to report which calls the Inliner replaced.
+  private static boolean printInlining = false;
+  // Set by --cache-stats, to report how well the inline caches did.
+  private static boolean cacheStats = false;
+  // Set by --line-buffered, to write out every line print prints, even when
+  // the output isn't a terminal.
+  private static boolean lineBuffered = false;
+  // Set by --max-depth, the number of calls deep a program can go before it
+  // fails with a stack overflow.
+  private static int maxDepth = 1 << 16;
+  // The Java stack the tree-walking modes use for each Lox call, at most.
+  // They recurse on the Java stack, so the program runs on a thread with
+  // room for maxDepth calls.
+  private static final long STACK_BYTES_PER_CALL = 2048;
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-    } else if (args.length == 1) {
-      runFile(args[0]);
-    } else {
-      runPrompt();
+  public static void main(String[] args)
+      throws IOException, InterruptedException {
+    boolean bytecode = false;
+    int flags = 0;
+    while (flags < args.length && args[flags].startsWith("--")) {
+      switch (args[flags]) {
+        case "--vm":
+          bytecode = true;
+          break;
+        case "--nodes":
+          nodes = true;
+          break;
+        case "--jit":
+          // Hot functions tier up from nodes to JVM bytecode.
+          nodes = true;
+          JvmCompiler.enabled = true;
+          JvmRuntime.interpreter = interpreter;
+          break;
+        case "--stream":
+          stream = true;
+          break;
+        case "--ast-cache":
+          if (++flags == args.length) usage();
+          astCache = new AstCache(Paths.get(args[flags]));
+          break;
+        case "--dump-ast":
+          dumpAst = true;
+          break;
+        case "--print-inlining":
+          printInlining = true;
+          break;
+        case "--cache-stats":
+          cacheStats = true;
+          break;
+        case "--line-buffered":
+          lineBuffered = true;
+          break;
+        case "--max-depth":
+          if (++flags == args.length) usage();
+          try {
+            maxDepth = Integer.parseInt(args[flags]);
+          } catch (NumberFormatException error) {
+            usage();
+          }
+          if (maxDepth < 1) usage();
+          break;
+        default:
+          usage();
+      }
+      flags++;
+    }
+    List<String> paths = Arrays.asList(
+        Arrays.copyOfRange(args, flags, args.length));
+    if (lineBuffered) interpreter.out.lineBuffered = true;
+    if (bytecode) vm = new VM(interpreter, maxDepth);
+    loader = new ModuleLoader(vm != null, printInlining, astCache);
+
+    // The VM keeps its frames on the heap, so only the other modes need the
+    // bigger stack. Whatever the program fails with is rethrown here.
+    Throwable[] failure = new Throwable[1];
+    Thread main = new Thread(null, () -> {
+      try {
+        if (paths.size() > 0) {
+          runFiles(paths);
+        } else {
+          runPrompt();
+        }
+      } catch (Throwable error) {
+        failure[0] = error;
+      } finally {
+        interpreter.out.flush();
+      }
+    }, "lox", vm != null ? 0 : maxDepth * STACK_BYTES_PER_CALL);
+    main.start();
+    main.join();
+    if (failure[0] instanceof IOException) throw (IOException)failure[0];
+    if (failure[0] instanceof RuntimeException) {
+      throw (RuntimeException)failure[0];
     }
+    if (failure[0] != null) throw (Error)failure[0];
   }
 
-  private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+  private static void usage() {
+    System.out.println("Usage: jlox [--vm] [--nodes] [--jit] [--stream] [--ast-cache dir] [--dump-ast] [--print-inlining] [--cache-stats] [--line-buffered] [--max-depth n] [script...]");
+    System.exit(64);
+  }
+
+  // Runs the scripts one after another, as one program.
+  private static void runFiles(List<String> paths) throws IOException {
+    // The VM compiles each script as a whole, so it can't stream.
+    if (stream && vm == null) {
+      for (String path : paths) {
+        runStream(path);
+        if (hadError || hadRuntimeError) break;
+      }
+    } else {
+      List<Module> scripts = new ArrayList<>();
+      for (String path : paths) {
+        scripts.add(loader.module(path));
+      }
+      run(loader.load(scripts, null, true));
+    }
+    interpreter.out.flush();
+    if (cacheStats) System.err.println(InlineCache.stats());
 
     // Indicate an error in the exit code.
     if (hadError) System.exit(65);
@@ -33,56 +158,114 @@ public class Lox {
   }
 
   private static void runPrompt() throws IOException {
-    InputStreamReader input = new InputStreamReader(System.in);
-    BufferedReader reader = new BufferedReader(input);
-
     for (;;) {
+      interpreter.out.flush();
       System.out.print("> ");
-      run(reader.readLine());
+      // The program's reads share the input with the prompt.
+      String line = interpreter.in.readLine();
+      if (line == null) break;
+
+      Module module = new Module(null);
+      run(loader.load(Collections.singletonList(module), line, false));
       hadError = false;
       hadRuntimeError = false;
     }
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-    Parser parser = new Parser(tokens);
-    List<Stmt> statements = parser.parse();
-
-    // Stop if there was a syntax error.
+  // Runs the modules in order, unless any of them had compile errors.
+  private static void run(List<Module> modules) {
     if (hadError) return;
 
-    Resolver resolver = new Resolver(interpreter);
-    resolver.resolve(statements);
-
-    // Stop if there was a resolution error.
-    if (hadError) return;
+    for (Module module : modules) {
+      if (dumpAst) {
+        System.out.print(new AstPrinter().print(module.statements));
+      } else if (vm != null) {
+        vm.interpret(module.script);
+      } else if (nodes) {
+        new NodeBuilder(interpreter)
+            .build(module.statements, module.slotCount).run();
+      } else {
+        interpreter.interpret(module.statements, module.slotCount);
+      }
 
-    interpreter.interpret(statements);
+      if (hadRuntimeError) return;
+    }
   }
 
-  static void error(int line, String message) {
-    report(line, "", message);
-  }
+  // Reads, parses, resolves and runs one top-level statement at a time, so
+  // the script starts running before the rest of it has been read, and
+  // only the code still reachable from what ran stays in memory. Unlike
+  // run(), a syntax error only stops the statements after it from running.
+  // The files the script imports are loaded and run first.
+  private static void runStream(String path) throws IOException {
+    Module script = loader.module(path);
+    // Already run, as an import of an earlier script.
+    if (script.imports != null) return;
 
-  static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
+    try (Reader reader = new InputStreamReader(
+        Files.newInputStream(Paths.get(path)), Charset.defaultCharset())) {
+      ErrorReporter errors = script.errors;
+      Parser parser = new Parser(new Scanner(reader, errors), errors);
+      script.imports = parser.imports();
+      List<Module> imports = loader.load(Collections.singletonList(script),
+          null, false);
+      // The script itself comes last in the order.
+      run(imports.subList(0, imports.size() - 1));
+      if (hadError || hadRuntimeError) return;
+
+      Resolver resolver = new Resolver(errors);
+      // The rest of the script isn't known yet, so only calls to local
+      // functions are inlined.
+      Inliner inliner = new Inliner(null);
+      NodeBuilder builder = new NodeBuilder(interpreter);
+      Object[] frame = new Object[1];
+      for (Stmt statement = parser.next(); statement != null;
+           statement = parser.next()) {
+        // Keep parsing after an error, to report any more syntax errors.
+        if (report(errors)) continue;
+
+        List<Stmt> statements = Collections.singletonList(statement);
+        resolver.resolve(statements);
+        if (report(errors)) continue;
+
+        statements = inliner.inline(statements, resolver.slotCount());
+        if (printInlining) {
+          for (String call : inliner.inlined()) System.err.println(call);
+        }
+
+        // The frame grows for the temporaries of the calls inlined.
+        int slotCount = inliner.slotCount();
+        if (dumpAst) {
+          System.out.print(new AstPrinter().print(statements));
+        } else if (nodes) {
+          frame = builder.build(statements, slotCount).run(frame);
+        } else {
+          // The statement may have been optimized away.
+          for (Stmt optimized : statements) {
+            frame = interpreter.interpret(optimized, frame, slotCount);
+          }
+        }
+
+        if (hadRuntimeError) return;
+      }
+      report(errors);
     }
   }
 
+  // Prints any errors found in a streamed script so far, and returns
+  // whether it has had any.
+  private static boolean report(ErrorReporter errors) {
+    interpreter.out.flush();
+    errors.print();
+    if (errors.hadError()) hadError = true;
+    return hadError;
+  }
+
   static void runtimeError(RuntimeError error) {
+    // What the program printed before it failed comes first.
+    interpreter.out.flush();
     System.err.println(error.getMessage() +
         "\n[line " + error.token.line + "]");
     hadRuntimeError = true;
   }
-
-  private static void report(int line, String where, String message) {
-    System.err.println(
-        "[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
-  }
-}
\ No newline at end of file
+}
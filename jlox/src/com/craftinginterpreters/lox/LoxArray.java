@@ -0,0 +1,165 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The native Array class, a list that grows as elements are pushed and whose
+// elements "a[i]" reads and "a[i] = value" writes. While every element is a
+// number they are kept in a double[], which holds them without a Double
+// object each. Storing anything else moves them to an Object[] for good.
+public class LoxArray extends LoxClass {
+  LoxArray() {
+    super("Array", null, methods(), new HashMap<>());
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    return new Instance(this);
+  }
+
+  private static Map<String, LoxFunction> methods() {
+    Map<String, LoxFunction> methods = new HashMap<>();
+    add(methods, "push", 1, (receiver, frame) -> {
+      array(receiver).push(frame[1]);
+      return null;
+    });
+    add(methods, "pop", 0, (receiver, frame) -> array(receiver).pop());
+    add(methods, "length", 0, (receiver, frame) ->
+        (double)array(receiver).length);
+    return methods;
+  }
+
+  private static void add(Map<String, LoxFunction> methods, String name,
+                          int arity, NativeMethod.Body body) {
+    methods.put(name, new NativeMethod(name, arity, body));
+  }
+
+  // A class that inherits from Array makes plain instances, which have no
+  // elements for the methods to work on.
+  private static Instance array(LoxInstance receiver) {
+    if (!(receiver instanceof Instance)) {
+      throw new RuntimeError(null,
+          "Only Array instances have Array methods.");
+    }
+    return (Instance)receiver;
+  }
+
+  // Reads "array[index]", for every way of running code.
+  static Object get(Object array, Object index, Token bracket) {
+    Instance instance = indexed(array, bracket);
+    return instance.get(instance.index(index, bracket));
+  }
+
+  // Writes "array[index] = value" and returns the value.
+  static Object set(Object array, Object index, Object value,
+                    Token bracket) {
+    Instance instance = indexed(array, bracket);
+    instance.set(instance.index(index, bracket), value);
+    return value;
+  }
+
+  // The same with an index known to be a number, which the Interpreter and
+  // compiled code have without a Double when it is arithmetic or a counter.
+  static Object get(Object array, double index, Token bracket) {
+    Instance instance = indexed(array, bracket);
+    return instance.get(instance.index(index, bracket));
+  }
+
+  static Object set(Object array, double index, Object value,
+                    Token bracket) {
+    Instance instance = indexed(array, bracket);
+    instance.set(instance.index(index, bracket), value);
+    return value;
+  }
+
+  private static Instance indexed(Object array, Token bracket) {
+    if (array instanceof Instance) return (Instance)array;
+    throw new RuntimeError(bracket, "Only arrays can be indexed.");
+  }
+
+  static class Instance extends LoxInstance {
+    private static final int MIN_CAPACITY = 8;
+
+    // Exactly one of these holds the elements.
+    private double[] numbers = new double[MIN_CAPACITY];
+    private Object[] values = null;
+    private int length = 0;
+
+    Instance(LoxClass klass) {
+      super(klass);
+    }
+
+    // The index as an int, if it is a whole number within the array.
+    int index(Object index, Token bracket) {
+      if (!(index instanceof Double)) {
+        throw new RuntimeError(bracket, "Index must be a number.");
+      }
+
+      return index((double)index, bracket);
+    }
+
+    int index(double index, Token bracket) {
+      int i = (int)index;
+      if (i != index) {
+        throw new RuntimeError(bracket, "Index must be a whole number.");
+      }
+      if (i < 0 || i >= length) {
+        throw new RuntimeError(bracket, "Index out of bounds.");
+      }
+      return i;
+    }
+
+    Object get(int index) {
+      if (numbers != null) return numbers[index];
+      return values[index];
+    }
+
+    void set(int index, Object value) {
+      if (numbers != null) {
+        if (value instanceof Double) {
+          numbers[index] = (double)value;
+          return;
+        }
+        generalize();
+      }
+      values[index] = value;
+    }
+
+    void push(Object value) {
+      if (numbers != null) {
+        if (value instanceof Double) {
+          if (length == numbers.length) {
+            numbers = Arrays.copyOf(numbers, length * 2);
+          }
+          numbers[length++] = (double)value;
+          return;
+        }
+        generalize();
+      }
+
+      if (length == values.length) values = Arrays.copyOf(values, length * 2);
+      values[length++] = value;
+    }
+
+    Object pop() {
+      if (length == 0) {
+        throw new RuntimeError(null, "Can't pop from an empty array.");
+      }
+
+      length--;
+      if (numbers != null) return numbers[length];
+      Object value = values[length];
+      values[length] = null;
+      return value;
+    }
+
+    // Boxes the numbers, so elements of any type can go in.
+    private void generalize() {
+      values = new Object[numbers.length];
+      for (int i = 0; i < length; i++) values[i] = numbers[i];
+      numbers = null;
+    }
+  }
+}
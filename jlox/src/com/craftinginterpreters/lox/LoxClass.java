@@ -15,7 +15,7 @@ class LoxClass extends LoxInstance implements LoxCallable {
   }
 
   // Only used for meta classes.
-  private LoxClass(String name, Map<String, LoxFunction> staticMethods) {
+  LoxClass(String name, Map<String, LoxFunction> staticMethods) {
     super(null);
     this.name = name;
     this.methods = staticMethods;
@@ -23,11 +23,15 @@ class LoxClass extends LoxInstance implements LoxCallable {
   }
 
   LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods, Map<String, LoxFunction> staticMethods) {
+    this(name, superclass, methods, new LoxClass(name + " (metaclass)" , staticMethods));
+  }
+
+  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods, LoxClass metaClass) {
     super(MetaClass);
     this.name = name;
     this.methods = methods;
     this.superclass = superclass;
-    this.klass = new LoxClass(name + " (metaclass)" , staticMethods);
+    this.klass = metaClass;
 
     // Create NOOP initializer, if otherwise there's none.
     if (!methods.containsKey("init"))
@@ -46,6 +50,19 @@ class LoxClass extends LoxInstance implements LoxCallable {
     return null;
   }
 
+  // Finds the method without binding it, for caches to hold on to. Null
+  // means there is no such method or it can't be cached.
+  LoxFunction lookupMethod(String name) {
+    LoxFunction method = methods.get(name);
+    if (method != null) return method;
+
+    if (superclass != null) {
+      return superclass.lookupMethod(name);
+    }
+
+    return null;
+  }
+
   LoxCallable findStaticMethod(String name) {
     LoxClass metaClass = klass;
     return metaClass.findMethod(this, name);
@@ -61,7 +78,7 @@ class LoxClass extends LoxInstance implements LoxCallable {
     LoxInstance instance = new LoxInstance(this);
     LoxFunction initializer = methods.get("init");
     if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
+      initializer.call(interpreter, arguments, instance);
     }
 
     return instance;
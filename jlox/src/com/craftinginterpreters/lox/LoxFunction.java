@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.lang.invoke.MethodHandle;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,52 +10,105 @@ class LoxFunction implements LoxCallable {
     final List<Stmt> body;
     final String name;
     final Kind kind;
-
-    Declaration(Kind kind, String name, List<Token> parameters, List<Stmt> body) {
+    // Size of a call frame: the receiver, parameters and every local.
+    final int slotCount;
+
+    // Whether calls return the receiver. It is the same for every closure
+    // of a declaration, and the closures set it for the JIT to see.
+    boolean isInitializer = false;
+
+    // For --jit: how many calls and loop iterations the function has run,
+    // and once they pass the threshold, its compiled code. The compiled
+    // method takes the upvalues, receiver and arguments, and resume runs
+    // the function on a frame, from the start or from the top of a loop.
+    int heat = 0;
+    boolean uncompilable = false;
+    MethodHandle compiled = null;
+    MethodHandle resume = null;
+
+    Declaration(Kind kind, String name, List<Token> parameters, List<Stmt> body, int slotCount) {
       this.kind = kind;
       this.name = name;
       this.parameters = parameters;
       this.body = body;
+      this.slotCount = slotCount;
     }
   }
   static enum Kind {
     NAMED, ANONYMOUS
   }
 
-  private final Declaration declaration;
-  private final Environment closure;
+  final Declaration declaration;
+  // Only the variables the function actually captured, as the Resolver found.
+  final Upvalue[] upvalues;
+  // The instance a method is bound to, which goes in slot zero.
+  final LoxInstance receiver;
   private final boolean isInitializer;
+  // The body as nodes, when the function was made by a node tree rather
+  // than by the Interpreter.
+  private final Node.Block body;
+
+  LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer) {
+    this(declaration, upvalues, isInitializer, null);
+  }
 
-  LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
-    this.declaration = new Declaration(Kind.NAMED, declaration.name.lexeme, declaration.parameters, declaration.body);
-    this.closure = closure;
+  LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer, Node.Block body) {
+    this.declaration = declaration(declaration);
+    this.declaration.isInitializer = isInitializer;
+    this.upvalues = upvalues;
+    this.receiver = null;
     this.isInitializer = isInitializer;
+    this.body = body;
   }
 
   // Overload for receiving function expressions (anonymous methods)
-  LoxFunction(Expr.Function declaration, Environment closure) {
-    this.declaration = new Declaration(declaration.kind, declaration.kind != Kind.ANONYMOUS ? declaration.name.lexeme : "", declaration.parameters, declaration.body);
-    this.closure = closure;
+  LoxFunction(Expr.Function declaration, Upvalue[] upvalues) {
+    this(declaration, upvalues, null);
+  }
+
+  LoxFunction(Expr.Function declaration, Upvalue[] upvalues, Node.Block body) {
+    this.declaration = declaration(declaration);
+    this.upvalues = upvalues;
+    this.receiver = null;
     this.isInitializer = false;
+    this.body = body;
   }
 
-  // Private overload for receiving a declaration object
-  private LoxFunction(Declaration declaration, Environment closure, boolean isInitializer) {
+  // Overload for receiving a declaration object
+  LoxFunction(Declaration declaration, Upvalue[] upvalues, LoxInstance receiver, boolean isInitializer, Node.Block body) {
     this.declaration = declaration;
-    this.closure = closure;
+    this.upvalues = upvalues;
+    this.receiver = receiver;
     this.isInitializer = isInitializer;
+    this.body = body;
+  }
+
+  // Every closure of a function shares one Declaration, kept on the AST, so
+  // the JIT counts and compiles the function once rather than per closure.
+  static Declaration declaration(Stmt.Function function) {
+    if (function.declaration == null) {
+      function.declaration = new Declaration(Kind.NAMED, function.name.lexeme, function.parameters, function.body, function.slotCount);
+    }
+    return function.declaration;
+  }
+
+  static Declaration declaration(Expr.Function function) {
+    if (function.declaration == null) {
+      function.declaration = new Declaration(function.kind, function.kind != Kind.ANONYMOUS ? function.name.lexeme : "", function.parameters, function.body, function.slotCount);
+    }
+    return function.declaration;
   }
 
   static LoxFunction getNOOP(boolean isInitializer) {
-    return new LoxFunction(new Declaration(Kind.NAMED, "",
-        new ArrayList<>(), new ArrayList<>()),
-        new Environment(), isInitializer);
+    Declaration declaration = new Declaration(Kind.NAMED, "",
+        new ArrayList<>(), new ArrayList<>(), 1);
+    declaration.isInitializer = isInitializer;
+    return new LoxFunction(declaration, new Upvalue[0], null, isInitializer,
+        null);
   }
 
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define("this", instance);
-    return new LoxFunction(declaration, environment, isInitializer);
+    return new LoxFunction(declaration, upvalues, instance, isInitializer, body);
   }
 
   @Override
@@ -64,20 +118,61 @@ class LoxFunction implements LoxCallable {
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
+    return call(interpreter, arguments, receiver);
+  }
+
+  // Calls the function as a method of receiver, without binding it first.
+  Object call(Interpreter interpreter, List<Object> arguments, LoxInstance receiver) {
+    Object[] frame = newFrame();
     for (int i = 0; i < declaration.parameters.size(); i++) {
-      environment.define(declaration.parameters.get(i).lexeme,
-          arguments.get(i));
+      frame[i + 1] = arguments.get(i);
+    }
+
+    return call(interpreter, frame, receiver);
+  }
+
+  // A frame for a call, with the arguments going in the slots after zero.
+  Object[] newFrame() {
+    return new Object[declaration.slotCount];
+  }
+
+  Object call(Interpreter interpreter, Object[] frame, LoxInstance receiver) {
+    LoxFunction function = this;
+    for (;;) {
+      Object result = function.run(interpreter, frame, receiver);
+      if (result != Interpreter.TAIL_CALL) return result;
+
+      // The function ended in a tail call, which runs here, in place of
+      // the function, so a chain of them needs no more stack than one.
+      function = interpreter.tailFunction;
+      frame = interpreter.tailFrame;
+      receiver = interpreter.tailReceiver;
+      interpreter.tailFrame = null;
+    }
+  }
+
+  // Runs the function once, for call(), which also makes the tail call it
+  // may end in.
+  Object run(Interpreter interpreter, Object[] frame, LoxInstance receiver) {
+    frame[0] = receiver;
+    if (JvmCompiler.enabled && declaration.resume == null &&
+        ++declaration.heat >= JvmCompiler.THRESHOLD &&
+        !declaration.uncompilable) {
+      JvmCompiler.compile(declaration);
+    }
+    if (declaration.resume != null) {
+      return JvmRuntime.resume(declaration, upvalues, frame, -1);
     }
 
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      if (isInitializer) return closure.getAt(0, "this");
-      return returnValue.value;
+    Object result;
+    if (body != null) {
+      result = body.execute(frame, upvalues);
+    } else {
+      result = interpreter.executeBlock(declaration.body, frame, upvalues);
     }
 
-    if (isInitializer) return closure.getAt(0, "this");
+    if (isInitializer) return receiver;
+    if (result == Completion.RETURN) return interpreter.returnValue;
 
     return null;
   }
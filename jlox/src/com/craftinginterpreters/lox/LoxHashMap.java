@@ -4,56 +4,186 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+// The native HashMap class. Any value can be a key, compared the way == does,
+// and the entries live in an open-addressing table in the instance itself.
+// The methods are NativeMethods, so calls to them are found and cached like
+// calls to methods written in Lox.
 public class LoxHashMap extends LoxClass {
-  LoxHashMap() {
-    super("HashMap", null, new HashMap<>(), new HashMap<>());
+  // The Array class, for the lists of keys keys() returns.
+  LoxHashMap(LoxArray array) {
+    super("HashMap", null, methods(array), new HashMap<>());
   }
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    LoxInstance instance = new LoxInstance(this);
-    instance.set("map", new HashMap<String, Object>());
+    return new Instance(this);
+  }
 
-    return instance;
+  private static Map<String, LoxFunction> methods(LoxArray array) {
+    Map<String, LoxFunction> methods = new HashMap<>();
+    add(methods, "put", 2, (receiver, frame) ->
+        table(receiver).put(frame[1], frame[2]));
+    add(methods, "get", 1, (receiver, frame) ->
+        table(receiver).get(frame[1]));
+    add(methods, "remove", 1, (receiver, frame) ->
+        table(receiver).remove(frame[1]));
+    add(methods, "has", 1, (receiver, frame) ->
+        table(receiver).find(frame[1]) != -1);
+    add(methods, "size", 0, (receiver, frame) ->
+        (double)table(receiver).size);
+    add(methods, "keys", 0, (receiver, frame) ->
+        table(receiver).keys(array));
+    add(methods, "reserve", 1, (receiver, frame) -> {
+      if (!(frame[1] instanceof Double)) {
+        throw new RuntimeError(null, "Capacity must be a number.");
+      }
+      table(receiver).reserve((int)Math.min((double)frame[1], 1 << 28));
+      return null;
+    });
+    return methods;
   }
 
+  private static void add(Map<String, LoxFunction> methods, String name,
+                          int arity, NativeMethod.Body body) {
+    methods.put(name, new NativeMethod(name, arity, body));
+  }
 
-  @Override
-  LoxCallable findMethod(LoxInstance instance, String name) {
-    switch (name) {
-      case "put":
-        return new LoxCallable() {
-          @Override
-          public Object call(Interpreter interpreter, List<Object> arguments) {
-            String key = (String)arguments.get(0);
-            Object value = arguments.get(1);
-
-            Map<String, Object> map = (Map<String, Object>)instance.get("map");
-            return map.put(key, value);
-          }
-
-          @Override
-          public int arity() {
-            return 2;
-          }
-        };
-      case "get":
-        return new LoxCallable() {
-          @Override
-          public Object call(Interpreter interpreter, List<Object> arguments) {
-            String key = (String)arguments.get(0);
-
-            Map<String, Object> map = (Map<String, Object>)instance.get("map");
-            return map.get(key);
-          }
-
-          @Override
-          public int arity() {
-            return 1;
-          }
-        };
-      default:
-        return LoxFunction.getNOOP(false);
+  // A class that inherits from HashMap makes plain instances, which have no
+  // table for the methods to work on.
+  private static Instance table(LoxInstance receiver) {
+    if (!(receiver instanceof Instance)) {
+      throw new RuntimeError(null,
+          "Only HashMap instances have HashMap methods.");
+    }
+    return (Instance)receiver;
+  }
+
+  static class Instance extends LoxInstance {
+    // Stands in for nil as a key, since a null key marks an empty slot.
+    private static final Object NIL = new Object();
+    private static final int MIN_CAPACITY = 8;
+
+    // The keys and their values, at the slot each key hashes to or the
+    // next free one after it. The capacity is a power of two and at most
+    // three quarters of it are used.
+    private Object[] keys = new Object[MIN_CAPACITY];
+    private Object[] values = new Object[MIN_CAPACITY];
+    private int size = 0;
+
+    Instance(LoxClass klass) {
+      super(klass);
+    }
+
+    // Returns the value the key had, or nil if it had none.
+    Object put(Object key, Object value) {
+      key = key(key);
+      int slot = find(key);
+      if (slot != -1) {
+        Object previous = values[slot];
+        values[slot] = value;
+        return previous;
+      }
+
+      if ((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+      slot = home(key, keys.length);
+      while (keys[slot] != null) slot = (slot + 1) & (keys.length - 1);
+      keys[slot] = key;
+      values[slot] = value;
+      size++;
+      return null;
+    }
+
+    Object get(Object key) {
+      int slot = find(key);
+      return slot == -1 ? null : values[slot];
+    }
+
+    // Returns the value the key had, or nil if it had none.
+    Object remove(Object key) {
+      int slot = find(key);
+      if (slot == -1) return null;
+
+      Object value = values[slot];
+      int mask = keys.length - 1;
+      // Rather than leave a marker, move back any later key in the run whose
+      // search would have gone past the slot, so lookups can still stop at
+      // the first empty one.
+      int next = slot;
+      for (;;) {
+        next = (next + 1) & mask;
+        if (keys[next] == null) break;
+        int home = home(keys[next], keys.length);
+        if (((next - home) & mask) >= ((next - slot) & mask)) {
+          keys[slot] = keys[next];
+          values[slot] = values[next];
+          slot = next;
+        }
+      }
+      keys[slot] = null;
+      values[slot] = null;
+      size--;
+      return value;
+    }
+
+    // The slot holding the key, or -1 if it isn't there.
+    int find(Object key) {
+      key = key(key);
+      int mask = keys.length - 1;
+      int slot = home(key, keys.length);
+      for (;;) {
+        Object k = keys[slot];
+        if (k == null) return -1;
+        if (k == key || k.equals(key)) return slot;
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    // Strings built by "+" are flattened, so they hash and compare like the
+    // String keys they equal.
+    private static Object key(Object key) {
+      if (key == null) return NIL;
+      if (key instanceof Rope) return key.toString();
+      return key;
+    }
+
+    // An Array of the keys.
+    LoxArray.Instance keys(LoxArray array) {
+      LoxArray.Instance result = new LoxArray.Instance(array);
+      for (Object key : keys) {
+        if (key == null) continue;
+        result.push(key == NIL ? null : key);
+      }
+      return result;
+    }
+
+    // Makes room for count entries without growing again.
+    void reserve(int count) {
+      int capacity = keys.length;
+      while (count * 4 > capacity * 3) capacity *= 2;
+      if (capacity != keys.length) resize(capacity);
+    }
+
+    private void resize(int capacity) {
+      Object[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new Object[capacity];
+      values = new Object[capacity];
+      for (int i = 0; i < oldKeys.length; i++) {
+        Object key = oldKeys[i];
+        if (key == null) continue;
+        int slot = home(key, capacity);
+        while (keys[slot] != null) slot = (slot + 1) & (capacity - 1);
+        keys[slot] = key;
+        values[slot] = oldValues[i];
+      }
+    }
+
+    // Where the key's search starts. Whole numbers hash to values whose low
+    // bits are all zero, so the hash is multiplied through and the slot
+    // taken from the top bits, which all of it goes into.
+    private static int home(Object key, int capacity) {
+      return (key.hashCode() * 0x9e3779b9) >>>
+          Integer.numberOfLeadingZeros(capacity - 1);
     }
   }
 }
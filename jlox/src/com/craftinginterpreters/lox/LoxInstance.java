@@ -1,19 +1,23 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
+  private static final Object[] NO_FIELDS = new Object[0];
+
   protected LoxClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+  // Field values, in the slots the shape gives their names.
+  Shape shape = Shape.EMPTY;
+  Object[] fields = NO_FIELDS;
 
   LoxInstance(LoxClass klass) {
     this.klass = klass;
   }
 
   Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+    int slot = shape.slotOf(name.lexeme);
+    if (slot != -1) {
+      return fields[slot];
     }
 
     LoxCallable method = klass.findMethod(this, name.lexeme);
@@ -24,8 +28,9 @@ class LoxInstance {
   }
 
   Object get(String name) {
-    if (fields.containsKey(name)) {
-      return fields.get(name);
+    int slot = shape.slotOf(name);
+    if (slot != -1) {
+      return fields[slot];
     }
 
     LoxCallable method = klass.findMethod(this, name);
@@ -35,10 +40,34 @@ class LoxInstance {
         "Undefined property '" + name + "'.");
   }
 
+  boolean hasField(String name) {
+    return shape.slotOf(name) != -1;
+  }
+
+  Object getField(String name) {
+    int slot = shape.slotOf(name);
+    return slot == -1 ? null : fields[slot];
+  }
+
   void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+    set(name.lexeme, value);
+  }
+  void set(String name, Object value) {
+    int slot = shape.slotOf(name);
+    if (slot == -1) {
+      slot = addField(shape.withField(name));
+    }
+    fields[slot] = value;
+  }
+
+  // Moves the instance to a shape with one more field and returns its slot.
+  int addField(Shape shape) {
+    this.shape = shape;
+    if (shape.size() > fields.length) {
+      fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+    }
+    return shape.size() - 1;
   }
-  void set(String name, Object value) { fields.put(name, value); }
 
   @Override
   public String toString() {
@@ -0,0 +1,271 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// Compiles the files of a program: the scripts it was given and the files
+// they import. Each file is scanned, parsed and resolved by a task on a
+// fork-join pool, which forks a task for each file it imports that no other
+// task has taken, so files compile in parallel. Only running them is
+// ordered: each file runs once, after the files it imports. With a cache,
+// a file that was resolved before is read back instead.
+class ModuleLoader {
+  // A source file and what compiling it produced.
+  static class Module {
+    // Null for code typed at the prompt.
+    final Path path;
+    final ErrorReporter errors = new ErrorReporter();
+    // The import declarations and the module each names, in order. Null
+    // until the module has been parsed.
+    List<Token> imports = null;
+    final List<Module> imported = new ArrayList<>();
+    // Left null if there were compile errors.
+    List<Stmt> statements = null;
+    int slotCount = 0;
+    // The globals the module declares or assigns, once for each time.
+    List<String> globalWrites = null;
+    // The compiled script, with --vm.
+    VmFunction script = null;
+    IOException readError = null;
+
+    Module(Path path) {
+      this.path = path;
+    }
+
+    private Path directory() {
+      if (path == null) return Paths.get("").toAbsolutePath();
+      return path.getParent();
+    }
+  }
+
+  private final boolean vm;
+  // Whether to print where calls were inlined.
+  private final boolean printInlining;
+  // Where resolved files are kept between runs, or null.
+  private final AstCache cache;
+  private final Map<Path, Module> modules = new ConcurrentHashMap<>();
+  // Modules already put in order to run, by this load or an earlier one.
+  private final Set<Module> ordered = new HashSet<>();
+
+  ModuleLoader(boolean vm, boolean printInlining, AstCache cache) {
+    this.vm = vm;
+    this.printInlining = printInlining;
+    this.cache = cache;
+  }
+
+  // The module for a script file, which is compiled from the file if it
+  // hasn't been already.
+  Module module(String path) {
+    Path absolute = Paths.get(path).toAbsolutePath().normalize();
+    return modules.computeIfAbsent(absolute, Module::new);
+  }
+
+  // Compiles the modules, and the files they import, and returns the ones
+  // that haven't run before in the order to run them in. Their errors are
+  // printed in that order too, and set Lox.hadError. A module that has
+  // been parsed already only has its imports loaded, and source is the
+  // code of a module that isn't a file. If they are the whole program,
+  // calls to global functions can be inlined too.
+  List<Module> load(List<Module> roots, String source, boolean whole)
+      throws IOException {
+    List<Compile> tasks = new ArrayList<>();
+    for (Module root : roots) {
+      tasks.add(new Compile(root, source));
+    }
+    ForkJoinPool.commonPool().invoke(
+        ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+    for (Module root : roots) {
+      if (root.readError != null) throw root.readError;
+    }
+
+    List<Module> order = new ArrayList<>();
+    Set<Module> importing = new HashSet<>();
+    for (Module root : roots) {
+      order(root, order, importing);
+    }
+
+    for (Module module : order) {
+      if (!module.errors.hadError()) continue;
+
+      Lox.hadError = true;
+      module.errors.print(order.size() > 1 ? name(module) : null);
+    }
+
+    // The VM's compiler looks variables up by name, not by the slots the
+    // Inliner uses for arguments.
+    if (!vm && !Lox.hadError) inline(order, whole);
+    return order;
+  }
+
+  // Inlines calls in the modules, which run in the order given. A global
+  // function declared in one module can be inlined in those after it.
+  private void inline(List<Module> order, boolean whole) {
+    Map<String, Integer> writes = null;
+    if (whole) {
+      writes = new HashMap<>();
+      for (Module module : order) {
+        for (String name : module.globalWrites) {
+          writes.merge(name, 1, Integer::sum);
+        }
+      }
+    }
+
+    Inliner inliner = new Inliner(writes);
+    for (Module module : order) {
+      // A streamed script is optimized a statement at a time instead.
+      if (module.statements == null) continue;
+
+      module.statements = inliner.inline(module.statements,
+          module.slotCount);
+      module.slotCount = inliner.slotCount();
+      if (!printInlining) continue;
+
+      String file = order.size() > 1 ? name(module) + ": " : "";
+      for (String call : inliner.inlined()) {
+        System.err.println(file + call);
+      }
+    }
+  }
+
+  private class Compile extends RecursiveAction {
+    private final Module module;
+    private final String source;
+
+    Compile(Module module, String source) {
+      this.module = module;
+      this.source = source;
+    }
+
+    @Override
+    protected void compute() {
+      if (module.imports == null) compile(module, source);
+      if (module.imports == null) return;
+
+      List<Compile> tasks = new ArrayList<>();
+      for (Token name : module.imports) {
+        Path path = module.directory().resolve((String)name.literal)
+            .normalize();
+        Module imported = new Module(path);
+        Module existing = modules.putIfAbsent(path, imported);
+        if (existing == null) {
+          tasks.add(new Compile(imported, null));
+        } else {
+          imported = existing;
+        }
+        module.imported.add(imported);
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  private void compile(Module module, String source) {
+    String key = null;
+    AstCache.Entry entry = null;
+    if (source == null) {
+      byte[] bytes;
+      try {
+        bytes = Files.readAllBytes(module.path);
+      } catch (IOException error) {
+        module.readError = error;
+        return;
+      }
+
+      if (cache != null) {
+        key = cache.key(bytes);
+        entry = cache.load(key);
+      }
+      if (entry == null) source = new String(bytes, Charset.defaultCharset());
+    }
+
+    ErrorReporter errors = module.errors;
+    if (entry == null) {
+      entry = resolve(source, errors);
+      if (key != null && !errors.hadError()) cache.store(key, entry);
+    }
+    module.imports = entry.imports;
+
+    // Stop if there was a syntax or resolution error.
+    if (errors.hadError()) return;
+
+    if (vm) {
+      module.script = new Compiler(errors).compile(entry.statements);
+
+      // Stop if there was a compile error.
+      if (errors.hadError()) return;
+    }
+
+    module.statements = entry.statements;
+    module.slotCount = entry.slotCount;
+    module.globalWrites = entry.globalWrites;
+  }
+
+  // Scans, parses, resolves and optimizes the source.
+  private AstCache.Entry resolve(String source, ErrorReporter errors) {
+    Scanner scanner = new Scanner(source, errors);
+    scanner.scanTokens();
+    Parser parser = new Parser(scanner, errors);
+    List<Stmt> statements = parser.parse();
+    List<Token> imports = parser.imports();
+    if (errors.hadError()) {
+      return new AstCache.Entry(imports, statements, 0, null);
+    }
+
+    Resolver resolver = new Resolver(errors);
+    resolver.resolve(statements);
+    if (errors.hadError()) {
+      return new AstCache.Entry(imports, statements, 0, null);
+    }
+
+    statements = new Optimizer().optimize(statements);
+    return new AstCache.Entry(imports, statements, resolver.slotCount(),
+        resolver.globalWrites());
+  }
+
+  // Puts the module after the modules it imports, reporting imports that
+  // can't be read and imports of a file that is itself still importing.
+  private void order(Module module, List<Module> order,
+                     Set<Module> importing) {
+    if (ordered.contains(module)) return;
+
+    importing.add(module);
+    for (int i = 0; i < module.imported.size(); i++) {
+      Module imported = module.imported.get(i);
+      Token name = module.imports.get(i);
+      if (imported.readError != null) {
+        module.errors.error(name, "Cannot read file.");
+      } else if (importing.contains(imported)) {
+        module.errors.error(name,
+            "Cannot import a file that imports this one.");
+      } else {
+        order(imported, order, importing);
+      }
+    }
+    importing.remove(module);
+
+    ordered.add(module);
+    order.add(module);
+  }
+
+  private static String name(Module module) {
+    if (module.path == null) return "prompt";
+    Path directory = Paths.get("").toAbsolutePath();
+    if (module.path.startsWith(directory)) {
+      return directory.relativize(module.path).toString();
+    }
+    return module.path.toString();
+  }
+}
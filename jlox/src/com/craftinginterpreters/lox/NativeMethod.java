@@ -0,0 +1,55 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A method of a native class, written in Java. It is a LoxFunction, so the
+// inline caches, call nodes and JIT call sites look it up once and call it
+// like a method written in Lox, with the receiver and arguments in a frame,
+// rather than binding a new callable each time.
+class NativeMethod extends LoxFunction {
+  interface Body {
+    // The arguments are in the frame's slots after zero.
+    Object call(LoxInstance receiver, Object[] frame);
+  }
+
+  private final Body body;
+
+  NativeMethod(String name, int arity, Body body) {
+    this(declaration(name, arity), null, body);
+  }
+
+  private NativeMethod(Declaration declaration, LoxInstance receiver,
+                       Body body) {
+    super(declaration, new Upvalue[0], receiver, false, null);
+    this.body = body;
+  }
+
+  // The declaration only needs the name and arity. Its frame has a slot for
+  // the receiver and one for each argument, and it is never compiled.
+  private static Declaration declaration(String name, int arity) {
+    List<Token> parameters = new ArrayList<>();
+    for (int i = 0; i < arity; i++) {
+      parameters.add(new Token(TokenType.IDENTIFIER, "arg" + i, null, 0));
+    }
+    Declaration declaration = new Declaration(Kind.NAMED, name, parameters,
+        new ArrayList<>(), arity + 1);
+    declaration.uncompilable = true;
+    return declaration;
+  }
+
+  @Override
+  LoxFunction bind(LoxInstance instance) {
+    return new NativeMethod(declaration, instance, body);
+  }
+
+  @Override
+  Object run(Interpreter interpreter, Object[] frame, LoxInstance receiver) {
+    return body.call(receiver, frame);
+  }
+
+  @Override
+  public String toString() {
+    return "<native fn " + declaration.name + ">";
+  }
+}
@@ -0,0 +1,1012 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A tree that runs itself, built by NodeBuilder from the resolved AST for
+// --nodes. Each node calls execute() on its children directly instead of
+// going through a visitor. Nodes that depend on the types they see start out
+// uninitialized and replace themselves in the tree with a specialized node
+// once they have run, and that one replaces itself with a generic node if
+// what it assumed stops holding.
+abstract class Node {
+  Node parent = null;
+
+  // Expressions produce a value from the running frame and upvalues.
+  abstract static class ExprNode extends Node {
+    abstract Object execute(Object[] frame, Upvalue[] upvalues);
+
+    // For conditions, which comparisons answer without a Boolean.
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      return Interpreter.isTruthy(execute(frame, upvalues));
+    }
+  }
+
+  // Statements return null when they run to their end.
+  abstract static class StmtNode extends Node {
+    abstract Completion execute(Object[] frame, Upvalue[] upvalues);
+  }
+
+  <T extends Node> T adopt(T child) {
+    if (child != null) child.parent = this;
+    return child;
+  }
+
+  <T extends Node> T[] adopt(T[] children) {
+    for (T child : children) {
+      adopt(child);
+    }
+    return children;
+  }
+
+  // Puts replacement where this node is in the tree and returns it.
+  <T extends Node> T replace(T replacement) {
+    parent.replaceChild(this, replacement);
+    replacement.parent = parent;
+    parent = null;
+    return replacement;
+  }
+
+  // A node in a recursive function can be replaced by an inner call while
+  // an outer call is still running it. The outer call must then leave the
+  // tree alone, since the replacement has taken over its children.
+  boolean isReplaced() {
+    return parent == null;
+  }
+
+  // Overridden by every node with an expression child, since that child may
+  // replace itself.
+  void replaceChild(Node child, Node replacement) {
+    throw new IllegalStateException("Node has no expression children.");
+  }
+
+  static ExprNode replaced(ExprNode node, Node child, Node replacement) {
+    return node == child ? (ExprNode)replacement : node;
+  }
+
+  static void replaced(ExprNode[] nodes, Node child, Node replacement) {
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = replaced(nodes[i], child, replacement);
+    }
+  }
+
+  // The top level of a script, which runs in a frame of its own.
+  static class Script {
+    private final Block body;
+    private final int slotCount;
+
+    Script(Block body, int slotCount) {
+      this.body = body;
+      this.slotCount = slotCount;
+    }
+
+    void run() {
+      run(new Object[slotCount]);
+    }
+
+    // Runs in the frame of the part of a streamed script before this one,
+    // grown to fit, and returns the frame for the next part.
+    Object[] run(Object[] frame) {
+      if (frame.length < slotCount) frame = Arrays.copyOf(frame, slotCount);
+      try {
+        body.execute(frame, Interpreter.NO_UPVALUES);
+      } catch (RuntimeError error) {
+        Lox.runtimeError(error);
+      }
+      return frame;
+    }
+  }
+
+  static class Block extends StmtNode {
+    private final StmtNode[] statements;
+
+    Block(StmtNode[] statements) {
+      this.statements = adopt(statements);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      for (StmtNode statement : statements) {
+        Completion completion = statement.execute(frame, upvalues);
+        if (completion != null) return completion;
+      }
+      return null;
+    }
+  }
+
+  static class Expression extends StmtNode {
+    private ExprNode expression;
+
+    Expression(ExprNode expression) {
+      this.expression = adopt(expression);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      expression.execute(frame, upvalues);
+      return null;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      expression = replaced(expression, child, replacement);
+    }
+  }
+
+  static class Print extends StmtNode {
+    private final Interpreter interpreter;
+    private ExprNode expression;
+
+    Print(Interpreter interpreter, ExprNode expression) {
+      this.interpreter = interpreter;
+      this.expression = adopt(expression);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      Object value = expression.execute(frame, upvalues);
+      interpreter.out.println(Interpreter.stringify(value));
+      return null;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      expression = replaced(expression, child, replacement);
+    }
+  }
+
+  static class DefineLocal extends StmtNode {
+    private final int slot;
+    private ExprNode initializer;
+
+    DefineLocal(int slot, ExprNode initializer) {
+      this.slot = slot;
+      this.initializer = adopt(initializer);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      Object value = Environment.UNINITIALIZED;
+      if (initializer != null) value = initializer.execute(frame, upvalues);
+
+      // A new variable, even if a closure captured the slot's last one.
+      frame[slot] = value;
+      return null;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      initializer = replaced(initializer, child, replacement);
+    }
+  }
+
+  static class DefineGlobal extends StmtNode {
+    private final Interpreter interpreter;
+    private final Token name;
+    private ExprNode initializer;
+
+    DefineGlobal(Interpreter interpreter, Token name, ExprNode initializer) {
+      this.interpreter = interpreter;
+      this.name = name;
+      this.initializer = adopt(initializer);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      Object value = Environment.UNINITIALIZED;
+      if (initializer != null) value = initializer.execute(frame, upvalues);
+      interpreter.defineGlobal(name, value);
+      return null;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      initializer = replaced(initializer, child, replacement);
+    }
+  }
+
+  static class If extends StmtNode {
+    private ExprNode condition;
+    private final StmtNode thenBranch;
+    private final StmtNode elseBranch;
+
+    If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+      this.condition = adopt(condition);
+      this.thenBranch = adopt(thenBranch);
+      this.elseBranch = adopt(elseBranch);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      if (condition.executeCondition(frame, upvalues)) {
+        return thenBranch.execute(frame, upvalues);
+      } else if (elseBranch != null) {
+        return elseBranch.execute(frame, upvalues);
+      }
+      return null;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      condition = replaced(condition, child, replacement);
+    }
+  }
+
+  static class While extends StmtNode {
+    private ExprNode condition;
+    final StmtNode body;
+    // For a for loop whose increment a CountedWhile runs itself, and
+    // otherwise null.
+    private final StmtNode increment;
+    // With --jit, the function the loop is in, and the loop's number in it.
+    final LoxFunction.Declaration function;
+    private final int loop;
+
+    While(ExprNode condition, StmtNode body, StmtNode increment,
+          LoxFunction.Declaration function, int loop) {
+      this.condition = adopt(condition);
+      this.body = adopt(body);
+      this.increment = adopt(increment);
+      this.function = function;
+      this.loop = loop;
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      for (;;) {
+        if (function != null && ++function.heat >= JvmCompiler.THRESHOLD &&
+            resume(frame, upvalues)) {
+          return Completion.RETURN;
+        }
+
+        if (!condition.executeCondition(frame, upvalues)) break;
+        Completion completion = body.execute(frame, upvalues);
+        if (completion == Completion.BREAK) break;
+        if (completion == Completion.RETURN) return completion;
+        if (completion == null && increment != null) {
+          increment.execute(frame, upvalues);
+        }
+      }
+      return null;
+    }
+
+    // The loop got hot in the middle of a call, so the rest of the call
+    // runs as compiled code, from the top of the loop. Its result returns
+    // from the call the same way a return statement would.
+    boolean resume(Object[] frame, Upvalue[] upvalues) {
+      if (function.resume == null && !function.uncompilable) {
+        JvmCompiler.compile(function);
+      }
+      if (function.resume == null) return false;
+
+      JvmRuntime.interpreter.returnValue =
+          JvmRuntime.resume(function, upvalues, frame, loop);
+      return true;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      condition = replaced(condition, child, replacement);
+    }
+  }
+
+  // A CountedLoop. When its counter and limit are numbers as it starts, it
+  // counts in a double and evaluates the limit just that once. Otherwise it
+  // runs like any other loop.
+  static class CountedWhile extends While {
+    private final CountedLoop counted;
+    private ExprNode limit;
+
+    CountedWhile(CountedLoop counted, ExprNode condition, ExprNode limit,
+                 StmtNode body, StmtNode increment,
+                 LoxFunction.Declaration function, int loop) {
+      super(condition, body, increment, function, loop);
+      this.counted = counted;
+      this.limit = adopt(limit);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      Object counter = frame[counted.slot];
+      if (counter instanceof Double && counted.canStart(frame)) {
+        Object limit = this.limit.execute(frame, upvalues);
+        if (limit instanceof Double) {
+          return count(frame, upvalues, (double)counter, (double)limit);
+        }
+      }
+      return super.execute(frame, upvalues);
+    }
+
+    private Completion count(Object[] frame, Upvalue[] upvalues,
+                             double counter, double limit) {
+      for (;;) {
+        if (function != null && ++function.heat >= JvmCompiler.THRESHOLD &&
+            resume(frame, upvalues)) {
+          return Completion.RETURN;
+        }
+
+        if (!counted.test(counter, limit)) break;
+        Completion completion = body.execute(frame, upvalues);
+        if (completion == Completion.BREAK) break;
+        if (completion == Completion.RETURN) return completion;
+        // Like the increment of a for loop, the step is skipped by continue.
+        if (completion == Completion.CONTINUE) continue;
+
+        counter += counted.step;
+        frame[counted.slot] = counter;
+      }
+      return null;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      super.replaceChild(child, replacement);
+      limit = replaced(limit, child, replacement);
+    }
+  }
+
+  static class ReturnValue extends StmtNode {
+    private final Interpreter interpreter;
+    private ExprNode value;
+
+    ReturnValue(Interpreter interpreter, ExprNode value) {
+      this.interpreter = interpreter;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      Object result = null;
+      if (value != null) result = value.execute(frame, upvalues);
+      interpreter.returnValue = result;
+      return Completion.RETURN;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      value = replaced(value, child, replacement);
+    }
+  }
+
+  static class BreakLoop extends StmtNode {
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      return Completion.BREAK;
+    }
+  }
+
+  static class ContinueLoop extends StmtNode {
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      return Completion.CONTINUE;
+    }
+  }
+
+
+  static class DeclareFunction extends StmtNode {
+    private final Interpreter interpreter;
+    private final Stmt.Function declaration;
+    private final Block body;
+
+    DeclareFunction(Interpreter interpreter, Stmt.Function declaration, Block body) {
+      this.interpreter = interpreter;
+      this.declaration = declaration;
+      this.body = adopt(body);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      int slot = declaration.slot;
+      if (slot == -1) {
+        interpreter.defineGlobal(declaration.name, new LoxFunction(declaration,
+            Interpreter.capture(declaration.captures, frame, upvalues), false, body));
+        return null;
+      }
+
+      // Declared before the closure is made, so it can capture itself.
+      frame[slot] = Environment.UNINITIALIZED;
+      assignLocal(frame, slot, new LoxFunction(declaration,
+          Interpreter.capture(declaration.captures, frame, upvalues), false, body));
+      return null;
+    }
+  }
+
+  static class DeclareClass extends StmtNode {
+    private final Interpreter interpreter;
+    private final Stmt.Class declaration;
+    private ExprNode superclass;
+    private final Block[] methods;
+    private final Block[] staticMethods;
+
+    DeclareClass(Interpreter interpreter, Stmt.Class declaration,
+                 ExprNode superclass, Block[] methods, Block[] staticMethods) {
+      this.interpreter = interpreter;
+      this.declaration = declaration;
+      this.superclass = adopt(superclass);
+      this.methods = adopt(methods);
+      this.staticMethods = adopt(staticMethods);
+    }
+
+    @Override
+    Completion execute(Object[] frame, Upvalue[] upvalues) {
+      int slot = declaration.slot;
+      if (slot != -1) {
+        frame[slot] = null;
+      } else {
+        interpreter.defineGlobal(declaration.name, null);
+      }
+
+      Object superclass = null;
+      if (this.superclass != null) {
+        superclass = this.superclass.execute(frame, upvalues);
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(declaration.superclass.name,
+              "Superclass must be a class.");
+        }
+
+        frame[declaration.superSlot] = superclass;
+      }
+
+      LoxClass klass = new LoxClass(declaration.name.lexeme,
+          (LoxClass)superclass,
+          methods(declaration.methods, methods, frame, upvalues),
+          methods(declaration.staticMethods, staticMethods, frame, upvalues));
+
+      if (slot != -1) {
+        assignLocal(frame, slot, klass);
+      } else {
+        interpreter.globals.assign(declaration.name, klass);
+      }
+
+      // Run static initializer on class load.
+      LoxCallable staticInitializer = klass.findStaticMethod("init");
+      if (staticInitializer != null)
+        staticInitializer.call(interpreter, new ArrayList<>());
+      return null;
+    }
+
+    private static Map<String, LoxFunction> methods(
+        List<Stmt.Function> declarations, Block[] bodies,
+        Object[] frame, Upvalue[] upvalues) {
+      Map<String, LoxFunction> methods = new HashMap<>();
+      for (int i = 0; i < bodies.length; i++) {
+        Stmt.Function method = declarations.get(i);
+        methods.put(method.name.lexeme, new LoxFunction(method,
+            Interpreter.capture(method.captures, frame, upvalues),
+            method.name.lexeme.equals("init"), bodies[i]));
+      }
+      return methods;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      superclass = replaced(superclass, child, replacement);
+    }
+  }
+
+  static void assignLocal(Object[] frame, int slot, Object value) {
+    if (frame[slot] instanceof Upvalue) {
+      ((Upvalue)frame[slot]).value = value;
+    } else {
+      frame[slot] = value;
+    }
+  }
+
+  static class Literal extends ExprNode {
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return value;
+    }
+  }
+
+  static class ReadLocal extends ExprNode {
+    private final int slot;
+    private final Token name;
+
+    ReadLocal(int slot, Token name) {
+      this.slot = slot;
+      this.name = name;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object value = frame[slot];
+      if (value instanceof Upvalue) value = ((Upvalue)value).value;
+      return Interpreter.checkInitialized(value, name);
+    }
+  }
+
+  static class ReadUpvalue extends ExprNode {
+    private final int index;
+    private final Token name;
+
+    ReadUpvalue(int index, Token name) {
+      this.index = index;
+      this.name = name;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return Interpreter.checkInitialized(upvalues[index].value, name);
+    }
+  }
+
+  // Looks the global up by name until it exists, then keeps its cell.
+  static class ReadGlobal extends ExprNode {
+    private final Environment globals;
+    private final Token name;
+    private Environment.Cell cell = null;
+
+    ReadGlobal(Environment globals, Token name) {
+      this.globals = globals;
+      this.name = name;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      if (cell == null) {
+        cell = globals.cell(name.lexeme);
+        if (cell == null) return globals.get(name);
+      }
+      return Interpreter.checkInitialized(cell.value, name);
+    }
+  }
+
+  static class WriteLocal extends ExprNode {
+    private final int slot;
+    private ExprNode value;
+
+    WriteLocal(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object result = value.execute(frame, upvalues);
+      assignLocal(frame, slot, result);
+      return result;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      value = replaced(value, child, replacement);
+    }
+  }
+
+  static class WriteUpvalue extends ExprNode {
+    private final int index;
+    private ExprNode value;
+
+    WriteUpvalue(int index, ExprNode value) {
+      this.index = index;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object result = value.execute(frame, upvalues);
+      upvalues[index].value = result;
+      return result;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      value = replaced(value, child, replacement);
+    }
+  }
+
+  static class WriteGlobal extends ExprNode {
+    private final Environment globals;
+    private final Token name;
+    private ExprNode value;
+    private Environment.Cell cell = null;
+
+    WriteGlobal(Environment globals, Token name, ExprNode value) {
+      this.globals = globals;
+      this.name = name;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object result = value.execute(frame, upvalues);
+      if (cell == null) {
+        cell = globals.cell(name.lexeme);
+        if (cell == null) {
+          globals.assign(name, result);
+          return result;
+        }
+      }
+      cell.value = result;
+      return result;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      value = replaced(value, child, replacement);
+    }
+  }
+
+  static class Logical extends ExprNode {
+    private ExprNode left;
+    private ExprNode right;
+    private final boolean isOr;
+
+    Logical(ExprNode left, ExprNode right, boolean isOr) {
+      this.left = adopt(left);
+      this.right = adopt(right);
+      this.isOr = isOr;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object value = left.execute(frame, upvalues);
+      if (Interpreter.isTruthy(value) == isOr) return value;
+      return right.execute(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      if (left.executeCondition(frame, upvalues) == isOr) return isOr;
+      return right.executeCondition(frame, upvalues);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      left = replaced(left, child, replacement);
+      right = replaced(right, child, replacement);
+    }
+  }
+
+  static class Not extends ExprNode {
+    private ExprNode right;
+
+    Not(ExprNode right) {
+      this.right = adopt(right);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return executeCondition(frame, upvalues);
+    }
+
+    @Override
+    boolean executeCondition(Object[] frame, Upvalue[] upvalues) {
+      return !right.executeCondition(frame, upvalues);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      right = replaced(right, child, replacement);
+    }
+  }
+
+  static class Negate extends ExprNode {
+    private final Token operator;
+    private ExprNode right;
+
+    Negate(Token operator, ExprNode right) {
+      this.operator = operator;
+      this.right = adopt(right);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object value = right.execute(frame, upvalues);
+      if (value instanceof Double) return -(double)value;
+      throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      right = replaced(right, child, replacement);
+    }
+  }
+
+  static class This extends ExprNode {
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      return frame[0];
+    }
+  }
+
+  static LoxClass superclass(Expr.Super expr, Object[] frame, Upvalue[] upvalues) {
+    if (expr.upvalue != -1) {
+      return (LoxClass)upvalues[expr.upvalue].value;
+    }
+
+    Object value = frame[expr.slot];
+    if (value instanceof Upvalue) value = ((Upvalue)value).value;
+    return (LoxClass)Interpreter.checkInitialized(value, expr.keyword);
+  }
+
+  static class Super extends ExprNode {
+    private final Expr.Super expr;
+    private final InlineCache cache = new InlineCache();
+
+    Super(Expr.Super expr) {
+      this.expr = expr;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      LoxClass superclass = superclass(expr, frame, upvalues);
+
+      // "super" is only used in methods, which keep "this" in slot 0.
+      LoxInstance object = (LoxInstance)frame[0];
+
+      LoxFunction cached = cache.superMethod(superclass, expr.method);
+      if (cached != null) return cached.bind(object);
+
+      LoxCallable method = superclass.findMethod(object, expr.method.lexeme);
+      if (method == null) {
+        throw new RuntimeError(expr.method,
+            "Undefined property '" + expr.method.lexeme + "'.");
+      }
+
+      return method;
+    }
+  }
+
+  static class SetProperty extends ExprNode {
+    private ExprNode object;
+    private final Token name;
+    private ExprNode value;
+    private final InlineCache cache = new InlineCache();
+
+    SetProperty(ExprNode object, Token name, ExprNode value) {
+      this.object = adopt(object);
+      this.name = name;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object instance = object.execute(frame, upvalues);
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields.");
+      }
+
+      Object result = value.execute(frame, upvalues);
+      cache.set((LoxInstance)instance, name, result);
+      return result;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      object = replaced(object, child, replacement);
+      value = replaced(value, child, replacement);
+    }
+  }
+
+  static class GetIndex extends ExprNode {
+    private ExprNode array;
+    private final Token bracket;
+    private ExprNode index;
+
+    GetIndex(ExprNode array, Token bracket, ExprNode index) {
+      this.array = adopt(array);
+      this.bracket = bracket;
+      this.index = adopt(index);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object array = this.array.execute(frame, upvalues);
+      return LoxArray.get(array, index.execute(frame, upvalues), bracket);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      array = replaced(array, child, replacement);
+      index = replaced(index, child, replacement);
+    }
+  }
+
+  static class SetIndex extends ExprNode {
+    private ExprNode array;
+    private final Token bracket;
+    private ExprNode index;
+    private ExprNode value;
+
+    SetIndex(ExprNode array, Token bracket, ExprNode index, ExprNode value) {
+      this.array = adopt(array);
+      this.bracket = bracket;
+      this.index = adopt(index);
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object array = this.array.execute(frame, upvalues);
+      Object index = this.index.execute(frame, upvalues);
+      return LoxArray.set(array, index, value.execute(frame, upvalues),
+          bracket);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      array = replaced(array, child, replacement);
+      index = replaced(index, child, replacement);
+      value = replaced(value, child, replacement);
+    }
+  }
+
+  static class Function extends ExprNode {
+    private final Interpreter interpreter;
+    private final Expr.Function declaration;
+    private final Block body;
+
+    Function(Interpreter interpreter, Expr.Function declaration, Block body) {
+      this.interpreter = interpreter;
+      this.declaration = declaration;
+      this.body = adopt(body);
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      int slot = declaration.slot;
+      boolean named = declaration.kind == LoxFunction.Kind.NAMED;
+      if (named && slot != -1) {
+        // Declared before the closure is made, so it can capture itself.
+        frame[slot] = Environment.UNINITIALIZED;
+      }
+
+      LoxFunction function = new LoxFunction(declaration,
+          Interpreter.capture(declaration.captures, frame, upvalues), body);
+      if (named && slot != -1) {
+        assignLocal(frame, slot, function);
+      } else if (named) {
+        interpreter.defineGlobal(declaration.name, function);
+      }
+      return function;
+    }
+  }
+
+  // Evaluates the arguments straight into the function's frame.
+  static Object invoke(Interpreter interpreter, LoxFunction function,
+                       LoxInstance receiver, Token paren,
+                       ExprNode[] arguments, boolean tail,
+                       Object[] frame, Upvalue[] upvalues) {
+    if (arguments.length != function.arity()) {
+      for (ExprNode argument : arguments) {
+        argument.execute(frame, upvalues);
+      }
+      throw new RuntimeError(paren, "Expected " +
+          function.arity() + " arguments but got " +
+          arguments.length + ".");
+    }
+
+    Object[] callFrame = function.newFrame();
+    for (int i = 0; i < arguments.length; i++) {
+      callFrame[i + 1] = arguments[i].execute(frame, upvalues);
+    }
+    try {
+      if (tail) return interpreter.tailCall(function, callFrame, receiver);
+      return function.call(interpreter, callFrame, receiver);
+    } catch (StackOverflowError error) {
+      throw Interpreter.stackOverflow(paren);
+    } catch (RuntimeError error) {
+      throw error.at(paren);
+    }
+  }
+
+  static Object call(Interpreter interpreter, Object callee, Token paren,
+                     ExprNode[] arguments, boolean tail,
+                     Object[] frame, Upvalue[] upvalues) {
+    if (callee instanceof LoxFunction) {
+      LoxFunction function = (LoxFunction)callee;
+      return invoke(interpreter, function, function.receiver, paren,
+          arguments, tail, frame, upvalues);
+    }
+
+    List<Object> values = new ArrayList<>();
+    for (ExprNode argument : arguments) {
+      values.add(argument.execute(frame, upvalues));
+    }
+
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren,
+          "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable)callee;
+
+    if (values.size() != function.arity()) {
+      throw new RuntimeError(paren, "Expected " +
+          function.arity() + " arguments but got " +
+          values.size() + ".");
+    }
+
+    try {
+      return function.call(interpreter, values);
+    } catch (StackOverflowError error) {
+      throw Interpreter.stackOverflow(paren);
+    } catch (RuntimeError error) {
+      throw error.at(paren);
+    }
+  }
+
+  static class Call extends ExprNode {
+    private final Interpreter interpreter;
+    private ExprNode callee;
+    private final Token paren;
+    private final ExprNode[] arguments;
+    private final boolean tail;
+
+    Call(Interpreter interpreter, ExprNode callee, Token paren,
+         ExprNode[] arguments, boolean tail) {
+      this.interpreter = interpreter;
+      this.callee = adopt(callee);
+      this.paren = paren;
+      this.arguments = adopt(arguments);
+      this.tail = tail;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      Object function = callee.execute(frame, upvalues);
+      return call(interpreter, function, paren, arguments, tail, frame,
+          upvalues);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      callee = replaced(callee, child, replacement);
+      replaced(arguments, child, replacement);
+    }
+  }
+
+  static class SuperCall extends ExprNode {
+    private final Interpreter interpreter;
+    private final Expr.Super expr;
+    private final Token paren;
+    private final ExprNode[] arguments;
+    private final boolean tail;
+    private final InlineCache cache = new InlineCache();
+
+    SuperCall(Interpreter interpreter, Expr.Super expr, Token paren,
+              ExprNode[] arguments, boolean tail) {
+      this.interpreter = interpreter;
+      this.expr = expr;
+      this.paren = paren;
+      this.arguments = adopt(arguments);
+      this.tail = tail;
+    }
+
+    @Override
+    Object execute(Object[] frame, Upvalue[] upvalues) {
+      LoxClass superclass = superclass(expr, frame, upvalues);
+      LoxInstance object = (LoxInstance)frame[0];
+
+      LoxFunction method = cache.superMethod(superclass, expr.method);
+      if (method != null) {
+        return invoke(interpreter, method, object, paren,
+            arguments, tail, frame, upvalues);
+      }
+
+      Object callee = superclass.findMethod(object, expr.method.lexeme);
+      if (callee == null) {
+        throw new RuntimeError(expr.method,
+            "Undefined property '" + expr.method.lexeme + "'.");
+      }
+      return call(interpreter, callee, paren, arguments, tail, frame,
+          upvalues);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      replaced(arguments, child, replacement);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// Turns resolved statements into a node tree for --nodes. The nodes use the
+// slots and captures the Resolver left on the AST, so they run with the same
+// frames, upvalues and globals as the Interpreter.
+class NodeBuilder implements Expr.Visitor<Node.ExprNode>, Stmt.Visitor<Node.StmtNode> {
+  private final Interpreter interpreter;
+  // The function whose body is being built. With --jit, its loops count
+  // toward compiling it.
+  private LoxFunction.Declaration function = null;
+  // How many loops the function has so far. JvmCompiler numbers them the
+  // same way, so a hot loop can resume in the compiled code.
+  private int loops = 0;
+
+  NodeBuilder(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  Node.Script build(List<Stmt> statements, int slotCount) {
+    return new Node.Script(block(statements), slotCount);
+  }
+
+  private Node.Block block(List<Stmt> statements) {
+    Node.StmtNode[] nodes = new Node.StmtNode[statements.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = build(statements.get(i));
+    }
+    return new Node.Block(nodes);
+  }
+
+  private Node.Block body(LoxFunction.Declaration declaration,
+                          List<Stmt> body) {
+    LoxFunction.Declaration enclosing = function;
+    int enclosingLoops = loops;
+    function = declaration;
+    loops = 0;
+    Node.Block block = block(body);
+    function = enclosing;
+    loops = enclosingLoops;
+    return block;
+  }
+
+  private Node.StmtNode build(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Node.ExprNode build(Expr expr) {
+    if (expr == null) return null;
+    return expr.accept(this);
+  }
+
+  private Node.ExprNode[] build(List<Expr> exprs) {
+    Node.ExprNode[] nodes = new Node.ExprNode[exprs.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = build(exprs.get(i));
+    }
+    return nodes;
+  }
+
+  private Node.Block[] bodies(List<Stmt.Function> functions) {
+    Node.Block[] bodies = new Node.Block[functions.size()];
+    for (int i = 0; i < bodies.length; i++) {
+      Stmt.Function method = functions.get(i);
+      bodies[i] = body(LoxFunction.declaration(method), method.body);
+    }
+    return bodies;
+  }
+
+  @Override
+  public Node.StmtNode visitBlockStmt(Stmt.Block stmt) {
+    return block(stmt.statements);
+  }
+
+  @Override
+  public Node.StmtNode visitBreakStmt(Stmt.Break stmt) {
+    return new Node.BreakLoop();
+  }
+
+  @Override
+  public Node.StmtNode visitClassStmt(Stmt.Class stmt) {
+    return new Node.DeclareClass(interpreter, stmt, build(stmt.superclass),
+        bodies(stmt.methods), bodies(stmt.staticMethods));
+  }
+
+  @Override
+  public Node.StmtNode visitContinueStmt(Stmt.Continue stmt) {
+    return new Node.ContinueLoop();
+  }
+
+  @Override
+  public Node.StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+    return new Node.Expression(build(stmt.expression));
+  }
+
+  @Override
+  public Node.StmtNode visitFunctionStmt(Stmt.Function stmt) {
+    return new Node.DeclareFunction(interpreter, stmt,
+        body(LoxFunction.declaration(stmt), stmt.body));
+  }
+
+  @Override
+  public Node.StmtNode visitIfStmt(Stmt.If stmt) {
+    Node.StmtNode elseBranch = null;
+    if (stmt.elseBranch != null) elseBranch = build(stmt.elseBranch);
+    return new Node.If(build(stmt.condition), build(stmt.thenBranch),
+        elseBranch);
+  }
+
+  @Override
+  public Node.StmtNode visitPrintStmt(Stmt.Print stmt) {
+    return new Node.Print(interpreter, build(stmt.expression));
+  }
+
+  @Override
+  public Node.StmtNode visitReturnStmt(Stmt.Return stmt) {
+    return new Node.ReturnValue(interpreter, build(stmt.value));
+  }
+
+  @Override
+  public Node.StmtNode visitVarStmt(Stmt.Var stmt) {
+    if (stmt.slot != -1) {
+      return new Node.DefineLocal(stmt.slot, build(stmt.initializer));
+    }
+    return new Node.DefineGlobal(interpreter, stmt.name,
+        build(stmt.initializer));
+  }
+
+  @Override
+  public Node.StmtNode visitWhileStmt(Stmt.While stmt) {
+    int loop = loops++;
+    LoxFunction.Declaration function = JvmCompiler.enabled ? this.function
+        : null;
+    CountedLoop counted = CountedLoop.of(stmt);
+    if (counted == null) {
+      return new Node.While(build(stmt.condition), build(stmt.body), null,
+          function, loop);
+    }
+
+    return new Node.CountedWhile(counted, build(stmt.condition),
+        build(counted.limit), block(counted.body), build(counted.increment),
+        function, loop);
+  }
+
+  @Override
+  public Node.ExprNode visitAssignExpr(Expr.Assign expr) {
+    Node.ExprNode value = build(expr.value);
+    if (expr.slot != -1) return new Node.WriteLocal(expr.slot, value);
+    if (expr.upvalue != -1) return new Node.WriteUpvalue(expr.upvalue, value);
+    return new Node.WriteGlobal(interpreter.globals, expr.name, value);
+  }
+
+  @Override
+  public Node.ExprNode visitBinaryExpr(Expr.Binary expr) {
+    return BinaryNode.create(interpreter, build(expr.left), expr.operator,
+        build(expr.right));
+  }
+
+  @Override
+  public Node.ExprNode visitCallExpr(Expr.Call expr) {
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      return InvokeNode.create(interpreter, build(get.object), get.name,
+          expr.paren, build(expr.arguments), expr.tail);
+    }
+
+    if (expr.callee instanceof Expr.Super) {
+      return new Node.SuperCall(interpreter, (Expr.Super)expr.callee,
+          expr.paren, build(expr.arguments), expr.tail);
+    }
+
+    return new Node.Call(interpreter, build(expr.callee), expr.paren,
+        build(expr.arguments), expr.tail);
+  }
+
+  @Override
+  public Node.ExprNode visitGetExpr(Expr.Get expr) {
+    return GetNode.create(build(expr.object), expr.name);
+  }
+
+  @Override
+  public Node.ExprNode visitFunctionExpr(Expr.Function expr) {
+    return new Node.Function(interpreter, expr,
+        body(LoxFunction.declaration(expr), expr.body));
+  }
+
+  @Override
+  public Node.ExprNode visitGroupingExpr(Expr.Grouping expr) {
+    return build(expr.expression);
+  }
+
+  @Override
+  public Node.ExprNode visitIndexExpr(Expr.Index expr) {
+    return new Node.GetIndex(build(expr.object), expr.bracket,
+        build(expr.index));
+  }
+
+  @Override
+  public Node.ExprNode visitLiteralExpr(Expr.Literal expr) {
+    return new Node.Literal(expr.value);
+  }
+
+  @Override
+  public Node.ExprNode visitLogicalExpr(Expr.Logical expr) {
+    return new Node.Logical(build(expr.left), build(expr.right),
+        expr.operator.type == TokenType.OR);
+  }
+
+  @Override
+  public Node.ExprNode visitSetExpr(Expr.Set expr) {
+    return new Node.SetProperty(build(expr.object), expr.name,
+        build(expr.value));
+  }
+
+  @Override
+  public Node.ExprNode visitSetIndexExpr(Expr.SetIndex expr) {
+    return new Node.SetIndex(build(expr.object), expr.bracket,
+        build(expr.index), build(expr.value));
+  }
+
+  @Override
+  public Node.ExprNode visitSuperExpr(Expr.Super expr) {
+    return new Node.Super(expr);
+  }
+
+  @Override
+  public Node.ExprNode visitThisExpr(Expr.This expr) {
+    return new Node.This();
+  }
+
+  @Override
+  public Node.ExprNode visitUnaryExpr(Expr.Unary expr) {
+    Node.ExprNode right = build(expr.right);
+    if (expr.operator.type == TokenType.BANG) return new Node.Not(right);
+    return new Node.Negate(expr.operator, right);
+  }
+
+  @Override
+  public Node.ExprNode visitVariableExpr(Expr.Variable expr) {
+    if (expr.slot != -1) return new Node.ReadLocal(expr.slot, expr.name);
+    if (expr.upvalue != -1) return new Node.ReadUpvalue(expr.upvalue, expr.name);
+    return new Node.ReadGlobal(interpreter.globals, expr.name);
+  }
+}
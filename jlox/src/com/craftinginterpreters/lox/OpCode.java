@@ -0,0 +1,67 @@
+package com.craftinginterpreters.lox;
+
+// The instruction set of the VM. Operands follow the opcode in the chunk:
+// "u8" operands take one byte, "u16" operands two bytes (high byte first).
+final class OpCode {
+  static final int OP_CONSTANT = 0;         // u16 constant
+  static final int OP_NIL = 1;
+  static final int OP_TRUE = 2;
+  static final int OP_FALSE = 3;
+  static final int OP_UNINITIALIZED = 4;    // value of "var a;"
+  static final int OP_POP = 5;
+  static final int OP_DUP = 6;
+
+  static final int OP_GET_LOCAL = 7;        // u8 slot, u16 name string
+  static final int OP_SET_LOCAL = 8;        // u8 slot
+  static final int OP_DEFINE_LOCAL = 9;     // u8 slot
+  static final int OP_GET_UPVALUE = 10;     // u8 index, u16 name string
+  static final int OP_SET_UPVALUE = 11;     // u8 index
+  static final int OP_GET_GLOBAL = 12;      // u16 name
+  static final int OP_SET_GLOBAL = 13;      // u16 name
+  static final int OP_DEFINE_GLOBAL = 14;   // u16 name
+  static final int OP_CLOSE_UPVALUES = 15;  // u8 slot
+
+  static final int OP_GET_PROPERTY = 16;    // u16 name
+  static final int OP_SET_PROPERTY = 17;    // u16 name
+  static final int OP_GET_METHOD = 18;      // u16 name
+  static final int OP_GET_SUPER = 19;       // u16 name
+  static final int OP_GET_SUPER_METHOD = 20; // u16 name
+
+  static final int OP_EQUAL = 21;
+  static final int OP_GREATER = 22;
+  static final int OP_GREATER_EQUAL = 23;
+  static final int OP_LESS = 24;
+  static final int OP_LESS_EQUAL = 25;
+  static final int OP_ADD = 26;
+  static final int OP_SUBTRACT = 27;
+  static final int OP_MULTIPLY = 28;
+  static final int OP_DIVIDE = 29;
+  static final int OP_MODULO = 30;
+  static final int OP_NOT = 31;
+  static final int OP_NEGATE = 32;
+  static final int OP_INSTANCEOF = 33;
+
+  static final int OP_PRINT = 34;
+  static final int OP_JUMP = 35;            // u16 offset
+  static final int OP_JUMP_IF_FALSE = 36;   // u16 offset
+  static final int OP_LOOP = 37;            // u16 offset
+  static final int OP_CALL = 38;            // u8 argument count
+  static final int OP_CALL_METHOD = 39;     // u8 argument count
+  static final int OP_CLOSURE = 40;         // u16 function, (u8 isLocal, u8 index) per upvalue
+  static final int OP_RETURN = 41;
+
+  static final int OP_CLASS = 42;           // u16 name, u8 hasSuperclass (pops it if set)
+  static final int OP_METHOD = 43;          // u16 name
+  static final int OP_STATIC_METHOD = 44;   // u16 name
+  static final int OP_STATIC_INIT = 45;
+
+  // A call in return position. It reuses the returning frame when it calls
+  // a closure, and is followed by OP_RETURN for any other callee.
+  static final int OP_TAIL_CALL = 46;       // u8 argument count
+  static final int OP_TAIL_CALL_METHOD = 47; // u8 argument count
+
+  static final int OP_GET_INDEX = 48;       // u16 bracket
+  static final int OP_SET_INDEX = 49;       // u16 bracket
+
+  private OpCode() {}
+}
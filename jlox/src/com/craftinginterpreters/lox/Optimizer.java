@@ -0,0 +1,382 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Simplifies resolved code before it runs. Operators whose operands are
+// literals are worked out now, the same way the Interpreter would, as long
+// as that can't fail. Parentheses are dropped. Branches that can't run,
+// loops that never do, literals evaluated just to be thrown away and code
+// after a return, break or continue are removed.
+//
+// Nodes that change are rebuilt, keeping what the Resolver filled in, and
+// the rest are left as they are. Block scoping is left alone, since the VM's
+// compiler works out its own locals from the blocks.
+class Optimizer implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+  // What fold() returns for an operation it leaves to run time.
+  private static final Object NOT_CONSTANT = new Object();
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      Stmt result = declaration(statement);
+      if (result == null) continue;
+
+      optimized.add(result);
+      // The rest of the block can't be reached.
+      if (jumps(result)) break;
+    }
+    return optimized;
+  }
+
+  // Whether the statement always returns, breaks or continues, rather than
+  // going on to the one after it.
+  private static boolean jumps(Stmt stmt) {
+    if (stmt instanceof Stmt.Return ||
+        stmt instanceof Stmt.Break ||
+        stmt instanceof Stmt.Continue) {
+      return true;
+    }
+
+    if (stmt instanceof Stmt.Block) {
+      // Anything after a jump has been removed already.
+      List<Stmt> statements = ((Stmt.Block)stmt).statements;
+      return !statements.isEmpty() &&
+          jumps(statements.get(statements.size() - 1));
+    }
+
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If)stmt;
+      return ifStmt.elseBranch != null &&
+          jumps(ifStmt.thenBranch) && jumps(ifStmt.elseBranch);
+    }
+
+    return false;
+  }
+
+  // For a statement directly in a block, a function body or a file's top
+  // level, rather than the branch or body of another statement.
+  Stmt declaration(Stmt stmt) {
+    return optimize(stmt);
+  }
+
+  // Returns null if the statement does nothing.
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // For a statement that must be there, like the body of a loop.
+  private Stmt required(Stmt stmt) {
+    Stmt optimized = optimize(stmt);
+    if (optimized == null) return new Stmt.Block(new ArrayList<>());
+    return optimized;
+  }
+
+  Expr optimize(Expr expr) {
+    if (expr == null) return null;
+    return expr.accept(this);
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = optimize(stmt.statements);
+    if (statements.isEmpty()) return null;
+    return new Stmt.Block(statements);
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    Stmt.Class optimized = new Stmt.Class(stmt.name, stmt.superclass,
+        functions(stmt.methods), functions(stmt.staticMethods));
+    optimized.slot = stmt.slot;
+    optimized.superSlot = stmt.superSlot;
+    return optimized;
+  }
+
+  private List<Stmt.Function> functions(List<Stmt.Function> functions) {
+    List<Stmt.Function> optimized = new ArrayList<>(functions.size());
+    for (Stmt.Function function : functions) {
+      optimized.add((Stmt.Function)optimize(function));
+    }
+    return optimized;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression instanceof Expr.Literal) return null;
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Stmt.Function optimized = new Stmt.Function(stmt.name, stmt.parameters,
+        optimize(stmt.body));
+    optimized.slot = stmt.slot;
+    optimized.slotCount = stmt.slotCount;
+    optimized.captures = stmt.captures;
+    return optimized;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+        return optimize(stmt.thenBranch);
+      }
+      if (stmt.elseBranch == null) return null;
+      return optimize(stmt.elseBranch);
+    }
+
+    Stmt elseBranch = null;
+    if (stmt.elseBranch != null) elseBranch = optimize(stmt.elseBranch);
+    return new Stmt.If(condition, required(stmt.thenBranch), elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = optimize(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+
+    Stmt.Var optimized = new Stmt.Var(stmt.name, initializer);
+    optimized.slot = stmt.slot;
+    return optimized;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal &&
+        !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      return null;
+    }
+    return new Stmt.While(condition, required(stmt.body));
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign optimized = new Expr.Assign(expr.name, value);
+    optimized.slot = expr.slot;
+    optimized.upvalue = expr.upvalue;
+    return optimized;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    // The left operand of a comma is only evaluated for its side effects.
+    if (expr.operator.type == TokenType.COMMA &&
+        left instanceof Expr.Literal) {
+      return right;
+    }
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object value = fold(expr.operator.type, ((Expr.Literal)left).value,
+          ((Expr.Literal)right).value);
+      if (value != NOT_CONSTANT) return new Expr.Literal(value);
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  // Works out an operator on two values the way Interpreter.binary() does,
+  // or returns NOT_CONSTANT if that would be a runtime error.
+  private static Object fold(TokenType operator, Object left, Object right) {
+    boolean numbers = left instanceof Double && right instanceof Double;
+    boolean strings = left instanceof String && right instanceof String;
+    switch (operator) {
+      case MINUS:
+        if (numbers) return (double)left - (double)right;
+        break;
+      case SLASH:
+        if (numbers) return (double)left / (double)right;
+        break;
+      case STAR:
+        if (numbers) return (double)left * (double)right;
+        break;
+      case PERCENT:
+        if (numbers) return Interpreter.remainder((double)left, (double)right);
+        break;
+      case PLUS:
+        if (numbers) return (double)left + (double)right;
+        if (left instanceof String || right instanceof String) {
+          return Interpreter.stringify(left) + Interpreter.stringify(right);
+        }
+        break;
+      case GREATER:
+        if (numbers) return (double)left > (double)right;
+        if (strings) return ((String)left).compareTo((String)right) > 0;
+        break;
+      case GREATER_EQUAL:
+        if (numbers) return (double)left >= (double)right;
+        if (strings) return ((String)left).compareTo((String)right) >= 0;
+        break;
+      case LESS:
+        if (numbers) return (double)left < (double)right;
+        if (strings) return ((String)left).compareTo((String)right) < 0;
+        break;
+      case LESS_EQUAL:
+        if (numbers) return (double)left <= (double)right;
+        if (strings) return ((String)left).compareTo((String)right) <= 0;
+        break;
+      case BANG_EQUAL:
+        return !Interpreter.isEqual(left, right);
+      case EQUAL_EQUAL:
+        return Interpreter.isEqual(left, right);
+      default:
+        break;
+    }
+    return NOT_CONSTANT;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    boolean changed = callee != expr.callee;
+    List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+    for (Expr argument : expr.arguments) {
+      Expr optimized = optimize(argument);
+      if (optimized != argument) changed = true;
+      arguments.add(optimized);
+    }
+
+    if (!changed) return expr;
+    Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+    call.tail = expr.tail;
+    return call;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    Expr.Function optimized = new Expr.Function(expr.kind, expr.name,
+        expr.parameters, optimize(expr.body));
+    optimized.slot = expr.slot;
+    optimized.slotCount = expr.slotCount;
+    optimized.captures = expr.captures;
+    optimized.reassigned = expr.reassigned;
+    return optimized;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return optimize(expr.expression);
+  }
+
+  @Override
+  public Expr visitIndexExpr(Expr.Index expr) {
+    Expr object = optimize(expr.object);
+    Expr index = optimize(expr.index);
+    if (object == expr.object && index == expr.index) return expr;
+    return new Expr.Index(object, expr.bracket, index);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    // A literal left operand decides which operand is the result.
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+      if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+      return truthy ? right : left;
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSetIndexExpr(Expr.SetIndex expr) {
+    Expr object = optimize(expr.object);
+    Expr index = optimize(expr.index);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && index == expr.index &&
+        value == expr.value) {
+      return expr;
+    }
+    return new Expr.SetIndex(object, expr.bracket, index, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)right).value;
+      if (expr.operator.type == TokenType.BANG) {
+        return new Expr.Literal(!Interpreter.isTruthy(value));
+      }
+      if (value instanceof Double) return new Expr.Literal(-(double)value);
+    }
+
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+}
@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Where print writes. System.out takes a lock for every line and, on a
+// pipe, writes each one out on its own. This collects the text and writes
+// it as UTF-8 in large chunks instead.
+//
+// Whatever is waiting must be written before anything else can see the
+// output: when the program ends or fails, before it reads input, and when
+// it calls flush(). Line by line, someone at a terminal would see nothing
+// until the buffer filled, so there every line is written as it's printed.
+final class Output {
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final String NEWLINE = System.lineSeparator();
+
+  private final OutputStream stream =
+      new FileOutputStream(FileDescriptor.out);
+  private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+  // Whether every line is written as soon as it's printed.
+  boolean lineBuffered;
+
+  Output(boolean lineBuffered) {
+    this.lineBuffered = lineBuffered;
+  }
+
+  void println(String text) {
+    buffer.append(text).append(NEWLINE);
+    if (lineBuffered || buffer.length() >= BUFFER_SIZE) flush();
+  }
+
+  void flush() {
+    if (buffer.length() == 0) return;
+
+    byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+    buffer.setLength(0);
+    try {
+      stream.write(bytes);
+    } catch (IOException error) {
+      // Like System.out, which print used to write to, carry on when the
+      // output has gone away.
+    }
+  }
+}
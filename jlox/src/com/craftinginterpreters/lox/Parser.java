@@ -8,11 +8,19 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 class Parser {
   private static class ParseError extends RuntimeException {}
-  private final List<Token> tokens;
+  private final Scanner scanner;
+  private final ErrorReporter errors;
+  private final TokenBuffer tokens;
   private int current = 0;
+  private List<Token> imports = null;
 
-  Parser(List<Token> tokens) {
-    this.tokens = tokens;
+  // Tokens the Scanner hasn't got to yet are scanned as the Parser reaches
+  // them.
+  Parser(Scanner scanner, ErrorReporter errors) {
+    this.scanner = scanner;
+    this.errors = errors;
+    this.tokens = scanner.tokens();
+    if (tokens.size() == 0) scanner.scanNext();
   }
 
 //  Expr parse() {
@@ -27,6 +35,7 @@ class Parser {
 
     List<Stmt> statements = new ArrayList<>();
 
+    imports();
     try {
       while (!isAtEnd()) {
         statements.add(declaration());
@@ -38,8 +47,48 @@ class Parser {
 
   }
 
+  // Parses the next top-level declaration, for running a script as it is
+  // streamed in. Returns null at the end of the script. Declarations with
+  // syntax errors are reported and skipped. The tokens before the
+  // declaration are dropped, so the Scanner can drop their source too.
+  Stmt next() {
+    imports();
+    while (!isAtEnd()) {
+      // Only the token before this one is ever looked at again.
+      if (current > 1) {
+        tokens.discard(current - 1);
+        current = 1;
+      }
+
+      Stmt statement = declaration();
+      if (statement != null) return statement;
+    }
+    return null;
+  }
+
+  // The files the script imports, named by the import declarations it
+  // starts with. The string tokens are kept for reporting errors.
+  List<Token> imports() {
+    if (imports != null) return imports;
+
+    imports = new ArrayList<>();
+    while (match(IMPORT)) {
+      try {
+        imports.add(consumeToken(STRING, "Expect file name after 'import'."));
+        consume(SEMICOLON, "Expect ';' after import.");
+      } catch (ParseError error) {
+        synchronize();
+      }
+    }
+    return imports;
+  }
+
   private Stmt declaration() {
     try {
+      if (match(IMPORT)) {
+        throw error(previous(),
+            "Imports must come before the other declarations.");
+      }
       if (match(CLASS)) return classDeclaration();
       // Disabled, so all function declarations are now expressions.
 //      if (match(FUN)) return function("function");
@@ -53,7 +102,7 @@ class Parser {
   }
 
   private Stmt classDeclaration() {
-    Token name = consume(IDENTIFIER, "Expect class name.");
+    Token name = consumeToken(IDENTIFIER, "Expect class name.");
     Expr.Variable superclass = null;
     if (match(LESS)) {
       consume(IDENTIFIER, "Expect superclass name.");
@@ -96,6 +145,10 @@ class Parser {
       } else if (expr instanceof Expr.Get) {
         Expr.Get get = (Expr.Get)expr;
         return new Expr.Set(get.object, get.name, value);
+      } else if (expr instanceof Expr.Index) {
+        Expr.Index index = (Expr.Index)expr;
+        return new Expr.SetIndex(index.object, index.bracket, index.index,
+            value);
       }
 
       error(equals, "Invalid assignment target.");
@@ -227,7 +280,7 @@ class Parser {
   }
 
   private Stmt varDeclaration() {
-    Token name = consume(IDENTIFIER, "Expect variable name.");
+    Token name = consumeToken(IDENTIFIER, "Expect variable name.");
 
     Expr initializer = null;
     if (match(EQUAL)) {
@@ -255,7 +308,7 @@ class Parser {
   }
 
   private Stmt.Function function(String kind) {
-    Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+    Token name = consumeToken(IDENTIFIER, "Expect " + kind + " name.");
 
     consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
     List<Token> parameters = new ArrayList<>();
@@ -265,7 +318,7 @@ class Parser {
           error(peek(), "Cannot have more than 8 parameters.");
         }
 
-        parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+        parameters.add(consumeToken(IDENTIFIER, "Expect parameter name."));
       } while (match(COMMA));
     }
     consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -356,9 +409,14 @@ class Parser {
       if (match(LEFT_PAREN)) {
         expr = finishCall(expr);
       } else if (match(DOT)) {
-        Token name = consume(IDENTIFIER,
+        Token name = consumeToken(IDENTIFIER,
             "Expect property name after '.'.");
         expr = new Expr.Get(expr, name);
+      } else if (match(LEFT_SQUARE_BRACKET)) {
+        Token bracket = previous();
+        Expr index = expression();
+        consume(RIGHT_SQUARE_BRACKET, "Expect ']' after index.");
+        expr = new Expr.Index(expr, bracket, index);
       } else {
         break;
       }
@@ -378,7 +436,7 @@ class Parser {
       } while (match(COMMA));
     }
 
-    Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+    Token paren = consumeToken(RIGHT_PAREN, "Expect ')' after arguments.");
 
     return new Expr.Call(callee, paren, arguments);
   }
@@ -394,7 +452,7 @@ class Parser {
       Token name = null;
       if (check(IDENTIFIER)) {
         kind = "function";
-        name = consume(IDENTIFIER, "Expect function name");
+        name = consumeToken(IDENTIFIER, "Expect function name");
       }
       consume(LEFT_PAREN, "Expect '(' after " + kind + " declaration.");
 
@@ -405,7 +463,7 @@ class Parser {
             error(peek(), "Cannot have more than 8 parameters.");
           }
 
-          parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+          parameters.add(consumeToken(IDENTIFIER, "Expect parameter name."));
         } while (match(COMMA));
       }
       consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -417,13 +475,13 @@ class Parser {
     }
 
     if (match(NUMBER, STRING)) {
-      return new Expr.Literal(previous().literal);
+      return new Expr.Literal(tokens.literal(current - 1));
     }
 
     if (match(SUPER)) {
       Token keyword = previous();
       consume(DOT, "Expect '.' after 'super'.");
-      Token method = consume(IDENTIFIER,
+      Token method = consumeToken(IDENTIFIER,
           "Expect superclass method name.");
       return new Expr.Super(keyword, method);
     }
@@ -444,16 +502,25 @@ class Parser {
     throw error(peek(), "Expect expression.");
   }
 
-  private Token consume(TokenType type, String message) {
-    if (check(type)) return advance();
+  private void consume(TokenType type, String message) {
+    if (check(type)) {
+      advance();
+      return;
+    }
 
     throw error(peek(), message);
     // Use previous so token line is kept.
 //    throw error(previous(), message);
   }
 
+  // Only tokens that go in the AST are made into Token objects.
+  private Token consumeToken(TokenType type, String message) {
+    consume(type, message);
+    return previous();
+  }
+
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    errors.error(token, message);
     return new ParseError();
   }
 
@@ -461,9 +528,9 @@ class Parser {
     advance();
 
     while (!isAtEnd()) {
-      if (previous().type == SEMICOLON) return;
+      if (tokens.type(current - 1) == SEMICOLON) return;
 
-      switch (peek().type) {
+      switch (tokens.type(current)) {
         case CLASS:
         case FUN:
         case VAR:
@@ -492,23 +559,24 @@ class Parser {
 
   private boolean check(TokenType tokenType) {
     if (isAtEnd()) return false;
-    return peek().type == tokenType;
+    return tokens.type(current) == tokenType;
   }
 
-  private Token advance() {
-    if (!isAtEnd()) current++;
-    return previous();
+  private void advance() {
+    if (isAtEnd()) return;
+    current++;
+    if (current == tokens.size()) scanner.scanNext();
   }
 
   private boolean isAtEnd() {
-    return peek().type == EOF;
+    return tokens.type(current) == EOF;
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 }
\ No newline at end of file
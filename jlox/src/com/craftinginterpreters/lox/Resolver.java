@@ -3,8 +3,45 @@ package com.craftinginterpreters.lox;
 import java.util.*;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final ErrorReporter errors;
+  // The name of each global declaration and assignment, as many times as
+  // they appear.
+  private final List<String> globalWrites = new ArrayList<>();
+  private final Stack<Map<String, Local>> scopes = new Stack<>();
+
+  // A local variable and the slot it is stored in, in the frame of the
+  // function that declares it.
+  private static class Local {
+    final int slot;
+    final FunctionScope function;
+    boolean defined = false;
+    // The named function the variable was declared by, if it was.
+    Expr.Function declaration = null;
+
+    Local(int slot, FunctionScope function) {
+      this.slot = slot;
+      this.function = function;
+    }
+  }
+
+  // Slots are handed out per function rather than per block, so a call only
+  // ever needs a single frame.
+  private static class FunctionScope {
+    final FunctionScope enclosing;
+    // The variables of enclosing functions this one captures. A capture is
+    // either a slot in the enclosing function's frame, or the bitwise
+    // complement of an index into the enclosing function's own captures.
+    final List<Integer> captures = new ArrayList<>();
+    // Slot zero holds the receiver of a method.
+    int slotCount = 1;
+
+    FunctionScope(FunctionScope enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+  // The top-level code is a function of its own as far as block-scoped
+  // locals are concerned.
+  private FunctionScope currentScope = new FunctionScope(null);
 
 
   private enum FunctionType {
@@ -36,8 +73,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   private ClassType currentClass = ClassType.NONE;
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  Resolver(ErrorReporter errors) {
+    this.errors = errors;
   }
 
   @Override
@@ -51,13 +88,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitBreakStmt(Stmt.Break stmt) {
     if (currentLoop == LoopType.NONE)
-      Lox.error(stmt.name, "Cannot break from outside a loop.");
+      errors.error(stmt.name, "Cannot break from outside a loop.");
     return null;
   }
 
   @Override
   public Void visitClassStmt(Stmt.Class stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
+    if (stmt.slot == -1) globalWrites.add(stmt.name.lexeme);
     define(stmt.name);
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
@@ -66,12 +104,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       currentClass = ClassType.SUBCLASS;
       resolve(stmt.superclass);
       beginScope();
-      scopes.peek().put("super", true);
+      stmt.superSlot = declareSpecial("super", currentScope.slotCount++);
     }
 
-    beginScope();
-    scopes.peek().put("this", true);
-
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
       if (method.name.lexeme.equals("init")) {
@@ -87,8 +122,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       resolveFunction(method, declaration, FunctionContext.STATIC);
     }
 
-    endScope();
-
     if (stmt.superclass != null) endScope();
 
     currentClass = enclosingClass;
@@ -100,7 +133,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitContinueStmt(Stmt.Continue stmt) {
     if (currentLoop == LoopType.NONE)
-      Lox.error(stmt.name, "Cannot continue from outside a loop.");
+      errors.error(stmt.name, "Cannot continue from outside a loop.");
     return null;
   }
 
@@ -112,7 +145,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
     define(stmt.name);
 
     resolveFunction(stmt, FunctionType.FUNCTION, FunctionContext.STATIC);
@@ -136,15 +169,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword, "Cannot return from top-level code.");
+      errors.error(stmt.keyword, "Cannot return from top-level code.");
     }
 
     if (stmt.value != null) {
       if (currentFunction == FunctionType.INITIALIZER) {
-        Lox.error(stmt.keyword,
+        errors.error(stmt.keyword,
             "Cannot return a value from an initializer.");
       }
       resolve(stmt.value);
+
+      // Nothing is left to do in the function once the call returns, so
+      // the callee can run in its place.
+      if (stmt.value instanceof Expr.Call &&
+          (currentFunction == FunctionType.FUNCTION ||
+           currentFunction == FunctionType.METHOD)) {
+        ((Expr.Call)stmt.value).tail = true;
+      }
     }
 
     return null;
@@ -153,19 +194,27 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitSuperExpr(Expr.Super expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword,
+      errors.error(expr.keyword,
           "Cannot use 'super' outside of a class.");
     } else if (currentClass != ClassType.SUBCLASS) {
-      Lox.error(expr.keyword,
+      errors.error(expr.keyword,
           "Cannot use 'super' in a class with no superclass.");
     }
-    resolveLocal(expr, expr.keyword);
+    Local local = resolveLocal(expr.keyword);
+    if (local != null) {
+      if (local.function == currentScope) {
+        expr.slot = local.slot;
+      } else {
+        expr.upvalue = resolveUpvalue(currentScope, local);
+      }
+    }
     return null;
   }
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
+    if (stmt.slot == -1) globalWrites.add(stmt.name.lexeme);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -189,7 +238,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    Local local = resolveLocal(expr.name);
+    if (local != null) {
+      if (local.declaration != null) local.declaration.reassigned = true;
+      if (local.function == currentScope) {
+        expr.slot = local.slot;
+      } else {
+        expr.upvalue = resolveUpvalue(currentScope, local);
+      }
+    } else {
+      globalWrites.add(expr.name.lexeme);
+    }
     return null;
   }
 
@@ -218,11 +277,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   }
 
 
+  @Override
+  public Void visitIndexExpr(Expr.Index expr) {
+    resolve(expr.object);
+    resolve(expr.index);
+    return null;
+  }
+
   @Override
   public Void visitFunctionExpr(Expr.Function expr) {
     if (expr.kind == LoxFunction.Kind.NAMED) {
-      declare(expr.name);
+      expr.slot = declare(expr.name);
       define(expr.name);
+      if (expr.slot != -1) {
+        scopes.peek().get(expr.name.lexeme).declaration = expr;
+      } else {
+        globalWrites.add(expr.name.lexeme);
+      }
     }
 
     resolveFunction(expr, FunctionType.FUNCTION, FunctionContext.STATIC);
@@ -255,18 +326,26 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitSetIndexExpr(Expr.SetIndex expr) {
+    resolve(expr.object);
+    resolve(expr.index);
+    resolve(expr.value);
+    return null;
+  }
+
   @Override
   public Void visitThisExpr(Expr.This expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword,
+      errors.error(expr.keyword,
           "Cannot use 'this' outside of a class.");
       return null;
     }
     if (currentContext == FunctionContext.STATIC)
-      Lox.error(expr.keyword,
+      errors.error(expr.keyword,
           "Cannot use 'this' in a static context.");
 
-    resolveLocal(expr, expr.keyword);
+    // Only a method's own body can use "this", where it is always in slot 0.
     return null;
   }
 
@@ -279,15 +358,35 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
     if (!scopes.isEmpty() &&
-        scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-      Lox.error(expr.name,
+        scopes.peek().containsKey(expr.name.lexeme) &&
+        !scopes.peek().get(expr.name.lexeme).defined) {
+      errors.error(expr.name,
           "Cannot read local variable in its own initializer.");
     }
 
-    resolveLocal(expr, expr.name);
+    Local local = resolveLocal(expr.name);
+    if (local != null) {
+      if (local.function == currentScope) {
+        expr.slot = local.slot;
+      } else {
+        expr.upvalue = resolveUpvalue(currentScope, local);
+      }
+    }
     return null;
   }
 
+  // Number of frame slots the top-level code needs for its locals.
+  int slotCount() {
+    return currentScope.slotCount;
+  }
+
+  // The globals the code declares or assigns to, once for each time it
+  // does, to show which global functions keep their value across all the
+  // files of a program.
+  List<String> globalWrites() {
+    return globalWrites;
+  }
+
   void resolve(List<Stmt> statements) {
     for (Stmt statement : statements) {
       resolve(statement);
@@ -318,20 +417,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
       if (currentFunction == FunctionType.INITIALIZER && currentContext == FunctionContext.STATIC
           && parameters.size() > 0)
-        Lox.error(((Stmt.Function) function).name, "Static initializers cannot have parameters.");
+        errors.error(((Stmt.Function) function).name, "Static initializers cannot have parameters.");
     } else if (function instanceof Expr.Function) {
       parameters = ((Expr.Function) function).parameters;
       body = ((Expr.Function) function).body;
 
       if (currentFunction == FunctionType.INITIALIZER && currentContext == FunctionContext.STATIC
           && parameters.size() > 0)
-        Lox.error(((Expr.Function) function).name, "Static initializers cannot have parameters.");
+        errors.error(((Expr.Function) function).name, "Static initializers cannot have parameters.");
     } else {
       parameters = new ArrayList<>();
       body = new ArrayList<>();
     }
 
+    FunctionScope enclosingScope = currentScope;
+    currentScope = new FunctionScope(enclosingScope);
     beginScope();
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      declareSpecial("this", 0);
+    }
     for (Token param : parameters) {
       declare(param);
       define(param);
@@ -339,6 +443,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     resolve(body);
     endScope();
 
+    int[] captures = new int[currentScope.captures.size()];
+    for (int i = 0; i < captures.length; i++) {
+      captures[i] = currentScope.captures.get(i);
+    }
+    if (function instanceof Stmt.Function) {
+      ((Stmt.Function) function).slotCount = currentScope.slotCount;
+      ((Stmt.Function) function).captures = captures;
+    } else if (function instanceof Expr.Function) {
+      ((Expr.Function) function).slotCount = currentScope.slotCount;
+      ((Expr.Function) function).captures = captures;
+    }
+    currentScope = enclosingScope;
+
     currentFunction = enclosingFunction;
     currentContext = enclosingContext;
   }
@@ -351,30 +468,61 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     scopes.pop();
   }
 
-  private void declare(Token name) {
-    if (scopes.isEmpty()) return;
+  // Returns the slot the variable is stored in, or -1 if it is global.
+  private int declare(Token name) {
+    if (scopes.isEmpty()) return -1;
 
-    Map<String, Boolean> scope = scopes.peek();
+    Map<String, Local> scope = scopes.peek();
     if (scope.containsKey(name.lexeme)) {
-      Lox.error(name,
+      errors.error(name,
           "Variable with this name already declared in this scope.");
+      return scope.get(name.lexeme).slot;
     }
-    scope.put(name.lexeme, false); // false - not ready yet
+    Local local = new Local(currentScope.slotCount++, currentScope); // not ready yet
+    scope.put(name.lexeme, local);
+    return local.slot;
+  }
+
+  // Declares "this" or "super", which are never assigned to by the user.
+  private int declareSpecial(String name, int slot) {
+    Local local = new Local(slot, currentScope);
+    local.defined = true;
+    scopes.peek().put(name, local);
+    return slot;
   }
 
   private void define(Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().get(name.lexeme).defined = true;
   }
 
-  private void resolveLocal(Expr expr, Token name) {
+  // Returns the innermost local with the name, or null if the variable is
+  // global.
+  private Local resolveLocal(Token name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i); // the "distance" to travel through environment chain
-        return;
-      }
+      Local local = scopes.get(i).get(name.lexeme);
+      if (local != null) return local;
     }
 
     // Not found. Assume it is global.
+    return null;
+  }
+
+  // Makes function capture a local of some enclosing function, threading it
+  // through every function in between. Returns its index in the captures.
+  private int resolveUpvalue(FunctionScope function, Local local) {
+    int capture;
+    if (local.function == function.enclosing) {
+      capture = local.slot;
+    } else {
+      capture = ~resolveUpvalue(function.enclosing, local);
+    }
+
+    int index = function.captures.indexOf(capture);
+    if (index == -1) {
+      function.captures.add(capture);
+      index = function.captures.size() - 1;
+    }
+    return index;
   }
 }
\ No newline at end of file
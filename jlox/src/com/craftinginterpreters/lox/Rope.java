@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+
+// A string made by "+" that hasn't been copied into one piece yet. Building
+// a string a piece at a time, as "s = s + piece" in a loop does, would copy
+// everything so far on every step. A rope just points at the two strings it
+// joins, so each step costs the size of the piece instead.
+//
+// The characters are only put together when something needs them all:
+// printing, comparing or using the string as a map key. That happens once,
+// and the rope keeps the result. Everywhere a string is expected, a rope
+// must be accepted too, and isString() tells whether a value is either.
+final class Rope implements CharSequence {
+  // Results shorter than this are cheaper to copy than to keep as a rope.
+  private static final int MIN_LENGTH = 64;
+
+  // The two halves, each a String or a Rope, until the rope is flattened.
+  private Object left;
+  private Object right;
+  private final int length;
+  private String flat = null;
+
+  private Rope(Object left, Object right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+
+  static boolean isString(Object value) {
+    return value instanceof String || value instanceof Rope;
+  }
+
+  // What "+" gives when either operand is a string.
+  static Object concat(Object left, Object right) {
+    if (!isString(left)) left = Interpreter.stringify(left);
+    if (!isString(right)) right = Interpreter.stringify(right);
+
+    int leftLength = ((CharSequence)left).length();
+    int rightLength = ((CharSequence)right).length();
+    int length = leftLength + rightLength;
+    if (length < MIN_LENGTH) return left.toString() + right.toString();
+
+    // Small pieces added one after another join the last short piece, so a
+    // long string built a character at a time doesn't need a rope for each.
+    if (rightLength < MIN_LENGTH && left instanceof Rope) {
+      Rope rope = (Rope)left;
+      if (rope.flat == null && rope.right instanceof String &&
+          ((String)rope.right).length() < MIN_LENGTH) {
+        return new Rope(rope.left, (String)rope.right + right.toString(),
+            length);
+      }
+    }
+
+    return new Rope(left, right, length);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  // Copies the pieces in from the end, without recursion, since a rope
+  // built in a loop is as deep as the loop ran.
+  @Override
+  public String toString() {
+    if (flat != null) return flat;
+
+    char[] chars = new char[length];
+    int end = length;
+    ArrayDeque<Object> pieces = new ArrayDeque<>();
+    pieces.push(this);
+    while (!pieces.isEmpty()) {
+      Object piece = pieces.pop();
+      if (piece instanceof Rope && ((Rope)piece).flat == null) {
+        Rope rope = (Rope)piece;
+        pieces.push(rope.left);
+        pieces.push(rope.right);
+        continue;
+      }
+
+      String string = piece.toString();
+      end -= string.length();
+      string.getChars(0, string.length(), chars, end);
+    }
+
+    flat = new String(chars);
+    left = null;
+    right = null;
+    return flat;
+  }
+
+  // A rope is equal to a String with the same characters, but String's
+  // equals() doesn't know that, so Interpreter.isEqual() flattens first.
+  @Override
+  public boolean equals(Object other) {
+    if (!isString(other)) return false;
+    return toString().equals(other.toString());
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
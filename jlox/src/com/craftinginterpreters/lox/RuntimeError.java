@@ -7,4 +7,11 @@ class RuntimeError extends RuntimeException {
     super(message);
     this.token = token;
   }
+
+  // Native functions and methods fail without a token to report. The call
+  // that ran one gives its own, so the error has the line of that call.
+  RuntimeError at(Token token) {
+    if (this.token != null) return this;
+    return new RuntimeError(token, getMessage());
+  }
 }
\ No newline at end of file
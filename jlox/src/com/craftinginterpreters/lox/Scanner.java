@@ -1,60 +1,117 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
-  private static final Map<String, TokenType> keywords;
+  // What each ASCII character can be part of, so telling what a character
+  // is takes one lookup.
+  private static final byte ALPHA = 1;
+  private static final byte DIGIT = 2;
+  private static final byte[] characterClasses = new byte[128];
 
   static {
-    keywords = new HashMap<>();
-    keywords.put("and",      AND);
-    keywords.put("break",    BREAK);
-    keywords.put("class",    CLASS);
-    keywords.put("continue", CONTINUE);
-    keywords.put("else",     ELSE);
-    keywords.put("false",    FALSE);
-    keywords.put("for",      FOR);
-    keywords.put("fun",      FUN);
-    keywords.put("if",       IF);
-    keywords.put("instanceof",INSTANCEOF);
-    keywords.put("nil",      NIL);
-    keywords.put("or",       OR);
-    keywords.put("print",    PRINT);
-    keywords.put("return",   RETURN);
-    keywords.put("static",   STATIC);
-    keywords.put("super",    SUPER);
-    keywords.put("this",     THIS);
-    keywords.put("true",     TRUE);
-    keywords.put("var",      VAR);
-    keywords.put("while",    WHILE);
-  }
-
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+    for (char c = 'a'; c <= 'z'; c++) characterClasses[c] = ALPHA;
+    for (char c = 'A'; c <= 'Z'; c++) characterClasses[c] = ALPHA;
+    characterClasses['_'] = ALPHA;
+    for (char c = '0'; c <= '9'; c++) characterClasses[c] = DIGIT;
+  }
+
+  // How much of a streamed script is read at a time.
+  private static final int CHUNK = 1 << 16;
+
+  // The source, or the window onto it that has been read so far when the
+  // script is streamed from a Reader. Positions are in the window.
+  private char[] source;
+  private int limit;
+  private Reader reader = null;
+  private final ErrorReporter errors;
+  private final TokenBuffer tokens;
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
-  Scanner(String source) {
-    this.source = source;
+  Scanner(String source, ErrorReporter errors) {
+    this.source = source.toCharArray();
+    this.limit = this.source.length;
+    this.errors = errors;
+    this.tokens = new TokenBuffer(this.source);
   }
 
-  List<Token> scanTokens() {
+  // Reads the script as the Parser asks for tokens, and keeps only the
+  // part of it the tokens not yet parsed are in.
+  Scanner(Reader reader, ErrorReporter errors) {
+    this.source = new char[CHUNK];
+    this.limit = 0;
+    this.reader = reader;
+    this.errors = errors;
+    this.tokens = new TokenBuffer(source);
+  }
+
+  TokenBuffer tokens() {
+    return tokens;
+  }
+
+  TokenBuffer scanTokens() {
     while (!isAtEnd()) {
       // We are at the beginning of the next lexeme.
       start = current;
       scanToken();
     }
 
-    tokens.add(new Token(EOF, "", null, line));
+    tokens.add(EOF, current, 0, line);
     return tokens;
   }
 
+  // Scans until there is one more token, for a Parser that pulls them as
+  // it goes. At the end of the source that is the EOF token.
+  void scanNext() {
+    int count = tokens.size();
+    while (tokens.size() == count) {
+      if (isAtEnd()) {
+        tokens.add(EOF, current, 0, line);
+        return;
+      }
+
+      start = current;
+      scanToken();
+    }
+  }
+
+  // Reads the next chunk of a streamed script, first dropping what the
+  // tokens left and the lexeme being scanned no longer need. Returns false
+  // at the end of the script.
+  private boolean fill() {
+    if (reader == null) return false;
+
+    int drop = Math.min(start, tokens.firstStart());
+    System.arraycopy(source, drop, source, 0, limit - drop);
+    start -= drop;
+    current -= drop;
+    limit -= drop;
+    if (source.length - limit < CHUNK) {
+      source = Arrays.copyOf(source, source.length * 2);
+    }
+    tokens.slide(source, drop);
+
+    int read;
+    try {
+      read = reader.read(source, limit, source.length - limit);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+    if (read == -1) {
+      reader = null;
+      return false;
+    }
+    limit += read;
+    return true;
+  }
+
   private void scanToken() {
     char c = advance();
     switch (c) {
@@ -100,7 +157,7 @@ class Scanner {
         } else if (isAlpha(c)) {
           identifier();
         } else {
-          Lox.error(line, "Unexpected character \"" + c + "\"");
+          errors.error(line, "Unexpected character \"" + c + "\"");
         }
         break;
     }
@@ -109,11 +166,78 @@ class Scanner {
   private void identifier() {
     while (isAlphaNumeric(peek())) advance();
     // See if the identifier is a reserved word.
-    String text = source.substring(start, current);
+    addToken(identifierType());
+  }
+
+  // Walks a trie of the keywords, written out as switches on the
+  // identifier's characters in the source.
+  private TokenType identifierType() {
+    int length = current - start;
+    switch (source[start]) {
+      case 'a': return checkKeyword(1, "nd", AND);
+      case 'b': return checkKeyword(1, "reak", BREAK);
+      case 'c':
+        if (length > 1) {
+          switch (source[start + 1]) {
+            case 'l': return checkKeyword(2, "ass", CLASS);
+            case 'o': return checkKeyword(2, "ntinue", CONTINUE);
+          }
+        }
+        break;
+      case 'e': return checkKeyword(1, "lse", ELSE);
+      case 'f':
+        if (length > 1) {
+          switch (source[start + 1]) {
+            case 'a': return checkKeyword(2, "lse", FALSE);
+            case 'o': return checkKeyword(2, "r", FOR);
+            case 'u': return checkKeyword(2, "n", FUN);
+          }
+        }
+        break;
+      case 'i':
+        if (length > 1) {
+          switch (source[start + 1]) {
+            case 'f': return checkKeyword(2, "", IF);
+            case 'm': return checkKeyword(2, "port", IMPORT);
+            case 'n': return checkKeyword(2, "stanceof", INSTANCEOF);
+          }
+        }
+        break;
+      case 'n': return checkKeyword(1, "il", NIL);
+      case 'o': return checkKeyword(1, "r", OR);
+      case 'p': return checkKeyword(1, "rint", PRINT);
+      case 'r': return checkKeyword(1, "eturn", RETURN);
+      case 's':
+        if (length > 1) {
+          switch (source[start + 1]) {
+            case 't': return checkKeyword(2, "atic", STATIC);
+            case 'u': return checkKeyword(2, "per", SUPER);
+          }
+        }
+        break;
+      case 't':
+        if (length > 1) {
+          switch (source[start + 1]) {
+            case 'h': return checkKeyword(2, "is", THIS);
+            case 'r': return checkKeyword(2, "ue", TRUE);
+          }
+        }
+        break;
+      case 'v': return checkKeyword(1, "ar", VAR);
+      case 'w': return checkKeyword(1, "hile", WHILE);
+    }
+
+    return IDENTIFIER;
+  }
 
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
-    addToken(type);
+  // The keyword if the rest of the identifier, from offset, is rest.
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start != offset + rest.length()) return IDENTIFIER;
+
+    for (int i = 0; i < rest.length(); i++) {
+      if (source[start + offset + i] != rest.charAt(i)) return IDENTIFIER;
+    }
+    return type;
   }
 
   private void number() {
@@ -127,8 +251,8 @@ class Scanner {
       while (isDigit(peek())) advance();
     }
 
-    addToken(NUMBER,
-        Double.parseDouble(source.substring(start, current)));
+    // The value is parsed from the lexeme when the Parser wants it.
+    addToken(NUMBER);
   }
 
   private void string() {
@@ -139,21 +263,20 @@ class Scanner {
 
     // Unterminated string.
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      errors.error(line, "Unterminated string.");
       return;
     }
 
     // The closing ".
     advance();
 
-    // Trim the surrounding quotes.
-    String value = source.substring(start + 1, current - 1);
-    addToken(STRING, value);
+    // The value, without the quotes, is made when the Parser wants it.
+    addToken(STRING);
   }
 
   private boolean match(char expected) {
     if (isAtEnd()) return false;
-    if (source.charAt(current) != expected) return false;
+    if (source[current] != expected) return false;
 
     current++;
     return true;
@@ -161,43 +284,38 @@ class Scanner {
 
   private char peek() {
     if (isAtEnd()) return '\0';
-    return source.charAt(current);
+    return source[current];
   }
 
   private char peekNext() {
-    if (current + 1 >= source.length()) return '\0';
-    return source.charAt(current + 1);
+    while (current + 1 >= limit) {
+      if (!fill()) return '\0';
+    }
+    return source[current + 1];
   }
 
   private boolean isAlpha(char c) {
-    return (c >= 'a' && c <= 'z') ||
-        (c >= 'A' && c <= 'Z') ||
-        c == '_';
+    return c < 128 && characterClasses[c] == ALPHA;
   }
 
   private boolean isAlphaNumeric(char c) {
-    return isAlpha(c) || isDigit(c);
+    return c < 128 && characterClasses[c] != 0;
   }
 
   private boolean isDigit(char c) {
-    return c >= '0' && c <= '9';
+    return c < 128 && characterClasses[c] == DIGIT;
   }
 
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= limit && !fill();
   }
 
   private char advance() {
     current++;
-    return source.charAt(current - 1);
+    return source[current - 1];
   }
 
   private void addToken(TokenType type) {
-    addToken(type, null);
-  }
-
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+    tokens.add(type, start, current - start, line);
   }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields: which slot each name is stored in.
+// Instances that had the same fields added in the same order share a shape,
+// so a cache that has seen a shape knows where a field is without hashing.
+class Shape {
+  static final Shape EMPTY = new Shape(new HashMap<>());
+
+  private final Map<String, Integer> slots;
+  // The shape an instance of this one moves to when a field is added.
+  private final Map<String, Shape> transitions = new HashMap<>();
+
+  private Shape(Map<String, Integer> slots) {
+    this.slots = slots;
+  }
+
+  // Returns the field's slot, or -1 if this shape has no such field.
+  int slotOf(String name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  int size() {
+    return slots.size();
+  }
+
+  Shape withField(String name) {
+    Shape shape = transitions.get(name);
+    if (shape == null) {
+      Map<String, Integer> slots = new HashMap<>(this.slots);
+      slots.put(name, slots.size());
+      shape = new Shape(slots);
+      transitions.put(name, shape);
+    }
+
+    return shape;
+  }
+}
\ No newline at end of file
@@ -57,6 +57,10 @@ abstract class Stmt {
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
     final List<Stmt.Function> staticMethods;
+
+    // Set by the Resolver.
+    int slot = -1;
+    int superSlot = -1;
   }
   static class Continue extends Stmt {
     Continue(Token name) {
@@ -97,6 +101,14 @@ abstract class Stmt {
     final Token name;
     final List<Token> parameters;
     final List<Stmt> body;
+
+    // Set by the Resolver.
+    int slot = -1;
+    int slotCount = 0;
+    int[] captures = null;
+
+    // Filled in by the Interpreter as it runs.
+    LoxFunction.Declaration declaration = null;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -153,6 +165,9 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    // Set by the Resolver.
+    int slot = -1;
   }
   static class While extends Stmt {
     While(Expr condition, Stmt body) {
@@ -167,6 +182,9 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+
+    // Filled in by the Interpreter as it runs.
+    CountedLoop counted = null;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,160 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// The tokens the Scanner found, packed into parallel arrays of each token's
+// type, where its lexeme starts in the source, how long that is and what
+// line it's on. The Parser works off the types and only asks for a Token
+// object when it puts one in the AST, so scanning allocates nothing per
+// token. Lexemes other than strings and numbers are interned as Tokens are
+// made, so each identifier's name is one String however often it appears.
+//
+// When the script is streamed in, the source is a window onto it that the
+// Scanner slides along, and the Parser discards the tokens it is done with.
+// Token starts are offsets into the whole script, and base is where the
+// window starts.
+class TokenBuffer {
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private char[] source;
+  private int base = 0;
+  private byte[] types;
+  private int[] starts;
+  private int[] lengths;
+  private int[] lines;
+  private int count = 0;
+
+  // An open-addressed table of the interned lexemes.
+  private String[] lexemes = new String[256];
+  private int lexemeCount = 0;
+
+  TokenBuffer(char[] source) {
+    this.source = source;
+
+    // Real code averages a token every few characters.
+    int capacity = source.length / 4 + 16;
+    types = new byte[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+    lines = new int[capacity];
+  }
+
+  // Start positions passed in and handed out are in the current window.
+  void add(TokenType type, int start, int length, int line) {
+    if (count == types.length) {
+      int capacity = count * 2;
+      types = Arrays.copyOf(types, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      lines = Arrays.copyOf(lines, capacity);
+    }
+
+    types[count] = (byte)type.ordinal();
+    starts[count] = base + start;
+    lengths[count] = length;
+    lines[count] = line;
+    count++;
+  }
+
+  int size() {
+    return count;
+  }
+
+  // Where the oldest token left starts, which the window must keep.
+  int firstStart() {
+    if (count == 0) return Integer.MAX_VALUE;
+    return starts[0] - base;
+  }
+
+  // The Scanner moved the window, dropping chars from its start.
+  void slide(char[] source, int dropped) {
+    this.source = source;
+    this.base += dropped;
+  }
+
+  // Drops the first tokens, whose indexes the rest then take.
+  void discard(int tokens) {
+    count -= tokens;
+    System.arraycopy(types, tokens, types, 0, count);
+    System.arraycopy(starts, tokens, starts, 0, count);
+    System.arraycopy(lengths, tokens, lengths, 0, count);
+    System.arraycopy(lines, tokens, lines, 0, count);
+  }
+
+  TokenType type(int index) {
+    return TYPES[types[index]];
+  }
+
+  int line(int index) {
+    return lines[index];
+  }
+
+  Object literal(int index) {
+    int start = starts[index] - base;
+    int length = lengths[index];
+    switch (type(index)) {
+      case NUMBER:
+        return Double.parseDouble(new String(source, start, length));
+      case STRING:
+        // Trim the surrounding quotes.
+        return new String(source, start + 1, length - 2);
+      default:
+        return null;
+    }
+  }
+
+  Token token(int index) {
+    TokenType type = type(index);
+    String lexeme;
+    if (type == STRING || type == NUMBER) {
+      lexeme = new String(source, starts[index] - base, lengths[index]);
+    } else {
+      lexeme = intern(starts[index] - base, lengths[index]);
+    }
+    return new Token(type, lexeme, literal(index), lines[index]);
+  }
+
+  private String intern(int start, int length) {
+    int hash = 0;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + source[i];
+    }
+
+    int mask = lexemes.length - 1;
+    int slot = hash & mask;
+    for (;;) {
+      String lexeme = lexemes[slot];
+      if (lexeme == null) break;
+      if (matches(lexeme, start, length)) return lexeme;
+      slot = (slot + 1) & mask;
+    }
+
+    String lexeme = new String(source, start, length);
+    lexemes[slot] = lexeme;
+    if (++lexemeCount * 2 > lexemes.length) grow();
+    return lexeme;
+  }
+
+  private boolean matches(String lexeme, int start, int length) {
+    if (lexeme.length() != length) return false;
+    for (int i = 0; i < length; i++) {
+      if (lexeme.charAt(i) != source[start + i]) return false;
+    }
+    return true;
+  }
+
+  private void grow() {
+    String[] old = lexemes;
+    lexemes = new String[old.length * 2];
+    int mask = lexemes.length - 1;
+    for (String lexeme : old) {
+      if (lexeme == null) continue;
+      // A String's hash is the same sum intern() works out over the chars.
+      int slot = lexeme.hashCode() & mask;
+      while (lexemes[slot] != null) slot = (slot + 1) & mask;
+      lexemes[slot] = lexeme;
+    }
+  }
+}
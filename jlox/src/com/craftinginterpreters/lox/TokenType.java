@@ -22,6 +22,7 @@ enum TokenType {
   PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
 
   BREAK, CONTINUE,
+  IMPORT,
   STATIC,
   INSTANCEOF,
 
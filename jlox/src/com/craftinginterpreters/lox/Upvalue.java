@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// A local variable that a closure has captured. The first closure to capture
+// it moves the value out of its frame slot into one of these, and the slot
+// and every closure share it from then on.
+class Upvalue {
+  Object value;
+
+  Upvalue(Object value) {
+    this.value = value;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,729 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Runs bytecode produced by the Compiler. Globals and native functions are
+// shared with the Interpreter the VM is created for.
+class VM {
+  private static class CallFrame {
+    VmClosure closure;
+    int ip;
+    // Stack index of the frame's slot zero. Local variables follow it, and
+    // the operand stack starts right after the last local.
+    int base;
+    // Stack index the frame's return value is stored in.
+    int returnSlot;
+  }
+
+  private final Interpreter interpreter;
+  private final Environment globals;
+  // The most frames the stack can hold before the program fails with a
+  // stack overflow. The frames and stack grow on the heap until then.
+  private final int maxDepth;
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  // Sorted by descending stack slot.
+  private VmClosure.Upvalue openUpvalues = null;
+
+  VM(Interpreter interpreter, int maxDepth) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+    this.maxDepth = maxDepth;
+  }
+
+  void interpret(VmFunction script) {
+    try {
+      VmClosure closure = new VmClosure(script);
+      push(closure);
+      callClosure(closure, 0, 0, 0, 0);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      // A runtime error leaves sp wherever the failing instruction had it.
+      Arrays.fill(stack, null);
+      sp = 0;
+      frameCount = 0;
+      openUpvalues = null;
+    }
+  }
+
+  private void run() {
+    CallFrame frame = frames[frameCount - 1];
+    byte[] code = frame.closure.function.chunk.code;
+    int[] lines = frame.closure.function.chunk.lines;
+    Object[] constants = frame.closure.function.chunk.constants;
+    int base = frame.base;
+    int ip = frame.ip;
+    // Every call reserves room for the callee's deepest expression, so the
+    // loop pushes without checking the stack's length.
+    Object[] stack = this.stack;
+    int sp = this.sp;
+
+    for (;;) {
+      int instruction = code[ip++];
+      switch (instruction) {
+        case OP_CONSTANT: {
+          int constant = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          stack[sp++] = constants[constant];
+          break;
+        }
+        case OP_NIL: stack[sp++] = null; break;
+        case OP_TRUE: stack[sp++] = true; break;
+        case OP_FALSE: stack[sp++] = false; break;
+        case OP_UNINITIALIZED: stack[sp++] = Environment.UNINITIALIZED; break;
+        case OP_POP: sp--; break;
+        case OP_DUP: stack[sp] = stack[sp - 1]; sp++; break;
+
+        case OP_GET_LOCAL: {
+          int slot = code[ip] & 0xff;
+          Object value = stack[base + slot];
+          if (value == Environment.UNINITIALIZED) {
+            int name = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+            throw uninitialized(lines[ip - 1], (String)constants[name]);
+          }
+          ip += 3;
+          stack[sp++] = value;
+          break;
+        }
+        case OP_SET_LOCAL:
+          stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+          break;
+        case OP_DEFINE_LOCAL:
+          stack[base + (code[ip++] & 0xff)] = stack[--sp];
+          break;
+        case OP_GET_UPVALUE: {
+          VmClosure.Upvalue upvalue = frame.closure.upvalues[code[ip] & 0xff];
+          Object value = upvalue.isOpen ? stack[upvalue.slot] : upvalue.closed;
+          if (value == Environment.UNINITIALIZED) {
+            int name = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+            throw uninitialized(lines[ip - 1], (String)constants[name]);
+          }
+          ip += 3;
+          stack[sp++] = value;
+          break;
+        }
+        case OP_SET_UPVALUE: {
+          VmClosure.Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.isOpen) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = stack[sp - 1];
+          }
+          break;
+        }
+        case OP_GET_GLOBAL: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          stack[sp++] = globals.get(name);
+          break;
+        }
+        case OP_SET_GLOBAL: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          globals.assign(name, stack[sp - 1]);
+          break;
+        }
+        case OP_DEFINE_GLOBAL: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          defineGlobal(name, stack[--sp]);
+          break;
+        }
+        case OP_CLOSE_UPVALUES:
+          closeUpvalues(base + (code[ip++] & 0xff));
+          break;
+
+        case OP_GET_PROPERTY: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          stack[sp - 1] = getProperty(stack[sp - 1], name);
+          break;
+        }
+        case OP_SET_PROPERTY: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object value = stack[--sp];
+          Object object = stack[sp - 1];
+          if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+          }
+          ((LoxInstance)object).set(name, value);
+          stack[sp - 1] = value;
+          break;
+        }
+        case OP_GET_INDEX: {
+          Token bracket = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object index = stack[--sp];
+          stack[sp - 1] = LoxArray.get(stack[sp - 1], index, bracket);
+          break;
+        }
+        case OP_SET_INDEX: {
+          Token bracket = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object value = stack[--sp];
+          Object index = stack[--sp];
+          stack[sp - 1] = LoxArray.set(stack[sp - 1], index, value, bracket);
+          break;
+        }
+        case OP_GET_METHOD: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          // Leaves the method and its receiver, or some other callee and an
+          // unused slot, for OP_CALL_METHOD.
+          Object object = stack[sp - 1];
+          if (object instanceof LoxInstance) {
+            LoxInstance instance = (LoxInstance)object;
+            if (instance.klass instanceof VmClass && !instance.hasField(name.lexeme)) {
+              stack[sp - 1] = findMethod((VmClass)instance.klass, name);
+              stack[sp++] = instance;
+              break;
+            }
+            // Methods of native classes, like HashMap, are called unbound too.
+            if (!(instance.klass instanceof VmClass) && !instance.hasField(name.lexeme)) {
+              LoxFunction method = instance.klass.lookupMethod(name.lexeme);
+              if (method != null) {
+                stack[sp - 1] = method;
+                stack[sp++] = instance;
+                break;
+              }
+            }
+          }
+          stack[sp - 1] = getProperty(object, name);
+          stack[sp++] = null;
+          break;
+        }
+        case OP_GET_SUPER: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object superclass = stack[--sp];
+          stack[sp - 1] = new VmBoundMethod(stack[sp - 1], findMethod(superclass, name));
+          break;
+        }
+        case OP_GET_SUPER_METHOD: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object superclass = stack[sp - 1];
+          Object receiver = stack[sp - 2];
+          stack[sp - 2] = findMethod(superclass, name);
+          stack[sp - 1] = receiver;
+          break;
+        }
+
+        case OP_EQUAL: {
+          Object b = stack[--sp];
+          stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+          break;
+        }
+        case OP_GREATER: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a > (double)b;
+          } else {
+            stack[sp - 1] = compare(a, b, lines[ip - 1]) > 0;
+          }
+          break;
+        }
+        case OP_GREATER_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a >= (double)b;
+          } else {
+            stack[sp - 1] = compare(a, b, lines[ip - 1]) >= 0;
+          }
+          break;
+        }
+        case OP_LESS: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a < (double)b;
+          } else {
+            stack[sp - 1] = compare(a, b, lines[ip - 1]) < 0;
+          }
+          break;
+        }
+        case OP_LESS_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a <= (double)b;
+          } else {
+            stack[sp - 1] = compare(a, b, lines[ip - 1]) <= 0;
+          }
+          break;
+        }
+        case OP_ADD: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a + (double)b;
+          } else if (Rope.isString(a) || Rope.isString(b)) {
+            stack[sp - 1] = Rope.concat(a, b);
+          } else {
+            throw error(lines[ip - 1],
+                "Operands must be two numbers or one of them must be a string.");
+          }
+          break;
+        }
+        case OP_SUBTRACT: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumberOperands(a, b, lines[ip - 1]);
+          stack[sp - 1] = (double)a - (double)b;
+          break;
+        }
+        case OP_MULTIPLY: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumberOperands(a, b, lines[ip - 1]);
+          stack[sp - 1] = (double)a * (double)b;
+          break;
+        }
+        case OP_DIVIDE: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumberOperands(a, b, lines[ip - 1]);
+          stack[sp - 1] = (double)a / (double)b;
+          break;
+        }
+        case OP_MODULO: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumberOperands(a, b, lines[ip - 1]);
+          stack[sp - 1] = Interpreter.remainder((double)a, (double)b);
+          break;
+        }
+        case OP_NOT:
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        case OP_NEGATE: {
+          Object value = stack[sp - 1];
+          if (!(value instanceof Double)) {
+            throw error(lines[ip - 1], "Operand must be a number.");
+          }
+          stack[sp - 1] = -(double)value;
+          break;
+        }
+        case OP_INSTANCEOF: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (!(right instanceof LoxClass))
+            throw error(lines[ip - 1], "Right operand must be a class type.");
+          if (!(left instanceof LoxInstance))
+            throw error(lines[ip - 1], "Left operand must be a class instance.");
+          stack[sp - 1] = ((LoxInstance)left).isInstanceOf((LoxClass)right);
+          break;
+        }
+
+        case OP_PRINT:
+          interpreter.out.println(Interpreter.stringify(stack[--sp]));
+          break;
+        case OP_JUMP: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2 + offset;
+          break;
+        }
+        case OP_JUMP_IF_FALSE: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (!Interpreter.isTruthy(stack[sp - 1])) ip += offset;
+          break;
+        }
+        case OP_LOOP: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2 - offset;
+          break;
+        }
+        case OP_TAIL_CALL:
+        case OP_TAIL_CALL_METHOD: {
+          int argCount = code[ip] & 0xff;
+          int calleeSlot = sp - argCount - 1;
+          Object callee = instruction == OP_TAIL_CALL ? stack[calleeSlot]
+              : stack[calleeSlot - 1];
+          VmClosure closure = null;
+          if (callee instanceof VmClosure) {
+            closure = (VmClosure)callee;
+          } else if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod)callee;
+            stack[calleeSlot] = bound.receiver;
+            closure = bound.method;
+          }
+
+          if (closure != null) {
+            // The callee takes over the frame, with its receiver and
+            // arguments moved down to where the returning function's were.
+            closeUpvalues(base);
+            System.arraycopy(stack, calleeSlot, stack, base, argCount + 1);
+            Arrays.fill(stack, base + argCount + 1, sp, null);
+            frameCount--;
+            this.sp = base + argCount + 1;
+            callClosure(closure, base, argCount, frame.returnSlot,
+                lines[ip - 1]);
+          } else {
+            // Anything else is called as usual, and what it returns is
+            // returned by the OP_RETURN after the call.
+            frame.ip = ip + 1;
+            callValue(instruction == OP_TAIL_CALL_METHOD, argCount, sp,
+                lines[ip]);
+          }
+
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          lines = frame.closure.function.chunk.lines;
+          constants = frame.closure.function.chunk.constants;
+          base = frame.base;
+          ip = frame.ip;
+          stack = this.stack;
+          sp = this.sp;
+          break;
+        }
+        case OP_CALL:
+        case OP_CALL_METHOD: {
+          int argCount = code[ip++] & 0xff;
+          frame.ip = ip;
+          callValue(instruction == OP_CALL_METHOD, argCount, sp,
+              lines[ip - 1]);
+
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          lines = frame.closure.function.chunk.lines;
+          constants = frame.closure.function.chunk.constants;
+          base = frame.base;
+          ip = frame.ip;
+          stack = this.stack;
+          sp = this.sp;
+          break;
+        }
+        case OP_CLOSURE: {
+          VmFunction function = (VmFunction)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          VmClosure closure = new VmClosure(function);
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++] & 0xff;
+            if (isLocal) {
+              closure.upvalues[i] = captureUpvalue(base + index);
+            } else {
+              closure.upvalues[i] = frame.closure.upvalues[index];
+            }
+          }
+          stack[sp++] = closure;
+          break;
+        }
+        case OP_RETURN: {
+          Object result = stack[--sp];
+          closeUpvalues(base);
+          frameCount--;
+          sp = frame.returnSlot;
+          stack[sp++] = result;
+          if (frameCount == 0) {
+            this.sp = sp - 1;
+            return;
+          }
+
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          lines = frame.closure.function.chunk.lines;
+          constants = frame.closure.function.chunk.constants;
+          base = frame.base;
+          ip = frame.ip;
+          break;
+        }
+
+        case OP_CLASS: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          boolean hasSuperclass = code[ip + 2] == 1;
+          ip += 3;
+          Object superclass = null;
+          if (hasSuperclass) {
+            superclass = stack[--sp];
+            if (!(superclass instanceof LoxClass)) {
+              throw error(lines[ip - 1], "Superclass must be a class.");
+            }
+          }
+          stack[sp++] = new VmClass(name.lexeme, (LoxClass)superclass);
+          break;
+        }
+        case OP_METHOD: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          ((VmClass)stack[sp - 2]).addMethod(name.lexeme, (VmClosure)stack[--sp]);
+          break;
+        }
+        case OP_STATIC_METHOD: {
+          Token name = (Token)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          ((VmClass)stack[sp - 2]).addStaticMethod(name.lexeme, (VmClosure)stack[--sp]);
+          break;
+        }
+        case OP_STATIC_INIT: {
+          // Replaces the class with the result of its static initializer.
+          VmClass klass = (VmClass)stack[sp - 1];
+          VmClosure initializer = klass.findStaticInitializer();
+          if (initializer == null) {
+            stack[sp - 1] = null;
+            break;
+          }
+
+          frame.ip = ip;
+          this.sp = sp;
+          callClosure(initializer, sp - 1, 0, sp - 1, lines[ip - 1]);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          lines = frame.closure.function.chunk.lines;
+          constants = frame.closure.function.chunk.constants;
+          base = frame.base;
+          ip = frame.ip;
+          stack = this.stack;
+          sp = this.sp;
+          break;
+        }
+      }
+    }
+  }
+
+  // Makes the call of an OP_CALL or OP_CALL_METHOD, whose argCount
+  // arguments are on top of the stack. Below them is the callee, and for a
+  // method, below that the receiver, where the result goes.
+  private void callValue(boolean method, int argCount, int sp, int line) {
+    int calleeSlot = sp - argCount - 1;
+    this.sp = sp;
+    if (method) {
+      call(stack[calleeSlot - 1], calleeSlot, argCount, calleeSlot - 1, line);
+    } else {
+      call(stack[calleeSlot], calleeSlot, argCount, calleeSlot, line);
+    }
+  }
+
+  // Calls callee with its arguments in the stack slots after base. Slot base
+  // itself receives the receiver, if there is one.
+  private void call(Object callee, int base, int argCount, int returnSlot, int line) {
+    if (callee instanceof VmClosure) {
+      callClosure((VmClosure)callee, base, argCount, returnSlot, line);
+      return;
+    }
+
+    if (callee instanceof VmBoundMethod) {
+      VmBoundMethod bound = (VmBoundMethod)callee;
+      stack[base] = bound.receiver;
+      callClosure(bound.method, base, argCount, returnSlot, line);
+      return;
+    }
+
+    if (callee instanceof VmClass) {
+      VmClass klass = (VmClass)callee;
+      stack[base] = new LoxInstance(klass);
+      if (klass.initializer != null) {
+        callClosure(klass.initializer, base, argCount, returnSlot, line);
+        return;
+      }
+
+      checkArity(0, argCount, line);
+      returnValue(stack[base], returnSlot);
+      return;
+    }
+
+    if (callee instanceof LoxFunction) {
+      // A native method, bound or left unbound by OP_GET_METHOD with its
+      // receiver in slot base. The arguments go straight into its frame.
+      LoxFunction function = (LoxFunction)callee;
+      checkArity(function.arity(), argCount, line);
+      Object[] frame = function.newFrame();
+      System.arraycopy(stack, base + 1, frame, 1, argCount);
+      LoxInstance receiver = function.receiver;
+      if (receiver == null && stack[base] instanceof LoxInstance) {
+        receiver = (LoxInstance)stack[base];
+      }
+
+      Object result;
+      try {
+        result = function.call(interpreter, frame, receiver);
+      } catch (RuntimeError error) {
+        throw atLine(error, line);
+      }
+      returnValue(result, returnSlot);
+      return;
+    }
+
+    if (callee instanceof LoxCallable) {
+      LoxCallable function = (LoxCallable)callee;
+      List<Object> arguments = new ArrayList<>(argCount);
+      for (int i = 1; i <= argCount; i++) {
+        arguments.add(stack[base + i]);
+      }
+      checkArity(function.arity(), argCount, line);
+
+      Object result;
+      try {
+        result = function.call(interpreter, arguments);
+      } catch (RuntimeError error) {
+        throw atLine(error, line);
+      }
+      returnValue(result, returnSlot);
+      return;
+    }
+
+    throw error(line, "Can only call functions and classes.");
+  }
+
+  private void callClosure(VmClosure closure, int base, int argCount, int returnSlot, int line) {
+    VmFunction function = closure.function;
+    checkArity(function.arity, argCount, line);
+
+    if (frameCount == maxDepth) {
+      throw error(line, "Stack overflow.");
+    }
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, Math.min(frameCount * 2, maxDepth));
+    }
+
+    CallFrame frame = frames[frameCount];
+    if (frame == null) {
+      frame = new CallFrame();
+      frames[frameCount] = frame;
+    }
+    frameCount++;
+
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = base;
+    frame.returnSlot = returnSlot;
+
+    int top = base + function.maxSlots;
+    ensureStack(top + function.maxStack);
+    Arrays.fill(stack, base + argCount + 1, top, Environment.UNINITIALIZED);
+    sp = top;
+  }
+
+  private void defineGlobal(Token name, Object value) {
+    try {
+      globals.define(name.lexeme, value);
+    } catch (Environment.RedefineVariableError variableError) {
+      throw new Environment.RedefineVariableError(name, variableError.getMessage());
+    }
+  }
+
+  private void returnValue(Object value, int returnSlot) {
+    sp = returnSlot;
+    push(value);
+  }
+
+  private void checkArity(int arity, int argCount, int line) {
+    if (argCount != arity) {
+      throw error(line, "Expected " +
+          arity + " arguments but got " +
+          argCount + ".");
+    }
+  }
+
+  private Object getProperty(Object object, Token name) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name,
+          "Only instances have properties.");
+    }
+
+    LoxInstance instance = (LoxInstance)object;
+    if (instance.klass instanceof VmClass) {
+      if (instance.hasField(name.lexeme)) {
+        return instance.getField(name.lexeme);
+      }
+
+      return new VmBoundMethod(instance, findMethod(instance.klass, name));
+    }
+
+    return instance.get(name);
+  }
+
+  private VmClosure findMethod(Object klass, Token name) {
+    VmClosure method = null;
+    if (klass instanceof VmClass) {
+      method = ((VmClass)klass).findClosure(name.lexeme);
+    }
+
+    if (method == null) {
+      throw new RuntimeError(name,
+          "Undefined property '" + name.lexeme + "'.");
+    }
+
+    return method;
+  }
+
+  private VmClosure.Upvalue captureUpvalue(int slot) {
+    VmClosure.Upvalue previous = null;
+    VmClosure.Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    VmClosure.Upvalue created = new VmClosure.Upvalue(slot, upvalue);
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      VmClosure.Upvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.isOpen = false;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private void push(Object value) {
+    if (sp == stack.length) ensureStack(sp + 1);
+    stack[sp++] = value;
+  }
+
+  private void ensureStack(int size) {
+    if (size > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    }
+  }
+
+  // Numbers are compared directly by the instructions, as doubles.
+  private int compare(Object left, Object right, int line) {
+    if (Rope.isString(left) && Rope.isString(right))
+      return left.toString().compareTo(right.toString());
+
+    throw error(line, "Operands must be two numbers or two strings.");
+  }
+
+  private void checkNumberOperands(Object left, Object right, int line) {
+    if (left instanceof Double && right instanceof Double) return;
+
+    throw error(line, "Operands must be numbers.");
+  }
+
+  private RuntimeError uninitialized(int line, String name) {
+    return error(line, "Attempting to access uninitialized variable '" + name + "'.");
+  }
+
+  // The VM has no token at hand, only the line the instruction came from.
+  private RuntimeError error(int line, String message) {
+    return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+  }
+
+  // An error from a native, reported at the line of the call that ran it.
+  private RuntimeError atLine(RuntimeError error, int line) {
+    if (error.token != null) return error;
+    return error(line, error.getMessage());
+  }
+}
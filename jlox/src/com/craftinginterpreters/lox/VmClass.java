@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// A class declared in code run by the VM. Instances are plain LoxInstances,
+// so fields, printing and instanceof behave exactly as in the Interpreter.
+class VmClass extends LoxClass {
+  private final Map<String, VmClosure> methods = new HashMap<>();
+  // Only the class's own initializer is used when constructing instances.
+  VmClosure initializer = null;
+
+  // Only used for meta classes, whose methods are the static methods.
+  private VmClass(String name) {
+    super(name, new HashMap<>());
+  }
+
+  VmClass(String name, LoxClass superclass) {
+    super(name, superclass, new HashMap<>(), new VmClass(name + " (metaclass)"));
+  }
+
+  void addMethod(String name, VmClosure method) {
+    methods.put(name, method);
+    if (name.equals("init")) initializer = method;
+  }
+
+  void addStaticMethod(String name, VmClosure method) {
+    ((VmClass)klass).addMethod(name, method);
+  }
+
+  VmClosure findStaticInitializer() {
+    return ((VmClass)klass).initializer;
+  }
+
+  VmClosure findClosure(String name) {
+    VmClosure method = methods.get(name);
+    if (method != null) return method;
+
+    if (superclass instanceof VmClass) {
+      return ((VmClass)superclass).findClosure(name);
+    }
+
+    return null;
+  }
+
+  @Override
+  public int arity() {
+    if (initializer == null) return 0;
+    return initializer.function.arity;
+  }
+}
@@ -0,0 +1,30 @@
+package com.craftinginterpreters.lox;
+
+class VmClosure {
+  // A variable captured by a closure. While the variable is still in scope the
+  // upvalue points at its stack slot; afterwards it holds the value itself.
+  static class Upvalue {
+    final int slot;
+    Object closed;
+    boolean isOpen = true;
+    Upvalue next;
+
+    Upvalue(int slot, Upvalue next) {
+      this.slot = slot;
+      this.next = next;
+    }
+  }
+
+  final VmFunction function;
+  final Upvalue[] upvalues;
+
+  VmClosure(VmFunction function) {
+    this.function = function;
+    this.upvalues = new Upvalue[function.upvalueCount];
+  }
+
+  @Override
+  public String toString() {
+    return function.toString();
+  }
+}
@@ -0,0 +1,24 @@
+package com.craftinginterpreters.lox;
+
+// A function compiled to bytecode. Runtime closures share one of these.
+class VmFunction {
+  final String name;
+  final int arity;
+  final Chunk chunk = new Chunk();
+  int upvalueCount = 0;
+  // Number of local variable slots in a call frame, including slot 0 which
+  // holds the receiver of a method.
+  int maxSlots = 1;
+  // Most values the function's expressions ever hold on the stack at once.
+  int maxStack = 0;
+
+  VmFunction(String name, int arity) {
+    this.name = name;
+    this.arity = arity;
+  }
+
+  @Override
+  public String toString() {
+    return "<fn " + name + ">";
+  }
+}
@@ -13,32 +13,34 @@ public class GenerateAst {
     }
     String outputDir = args[0];
     defineAst(outputDir, "Expr", Arrays.asList(
-        "Assign   : Token name, Expr value",
-        "Binary   : Expr left, Token operator, Expr right",
-        "Call     : Expr callee, Token paren, List<Expr> arguments",
-        "Get      : Expr object, Token name",
-        "Function : LoxFunction.Kind kind, Token name, List<Token> parameters, List<Stmt> body",
+        "Assign   : Token name, Expr value | int slot = -1, int upvalue = -1",
+        "Binary   : Expr left, Token operator, Expr right ~ boolean numeric = true",
+        "Call     : Expr callee, Token paren, List<Expr> arguments | boolean tail = false",
+        "Get      : Expr object, Token name ~ InlineCache cache",
+        "Function : LoxFunction.Kind kind, Token name, List<Token> parameters, List<Stmt> body | int slot = -1, int slotCount = 0, int[] captures = null, boolean reassigned = false ~ LoxFunction.Declaration declaration = null",
         "Grouping : Expr expression",
+        "Index    : Expr object, Token bracket, Expr index",
         "Literal  : Object value",
         "Logical  : Expr left, Token operator, Expr right",
-        "Set      : Expr object, Token name, Expr value",
-        "Super    : Token keyword, Token method",
+        "Set      : Expr object, Token name, Expr value ~ InlineCache cache",
+        "SetIndex : Expr object, Token bracket, Expr index, Expr value",
+        "Super    : Token keyword, Token method | int slot = -1, int upvalue = -1 ~ InlineCache cache",
         "This     : Token keyword",
         "Unary    : Token operator, Expr right",
-        "Variable : Token name"
+        "Variable : Token name | int slot = -1, int upvalue = -1"
     ));
     defineAst(outputDir, "Stmt", Arrays.asList(
         "Block      : List<Stmt> statements",
         "Break      : Token name",
-        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
+        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods | int slot = -1, int superSlot = -1",
         "Continue   : Token name",
         "Expression : Expr expression",
-        "Function   : Token name, List<Token> parameters, List<Stmt> body",
+        "Function   : Token name, List<Token> parameters, List<Stmt> body | int slot = -1, int slotCount = 0, int[] captures = null ~ LoxFunction.Declaration declaration = null",
         "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
         "Print      : Expr expression",
         "Return     : Token keyword, Expr value",
-        "Var        : Token name, Expr initializer",
-        "While      : Expr condition, Stmt body"
+        "Var        : Token name, Expr initializer | int slot = -1",
+        "While      : Expr condition, Stmt body ~ CountedLoop counted = null"
     ));
   }
 
@@ -60,7 +62,20 @@ public class GenerateAst {
     for (String type : types) {
       String className = type.split(":")[0].trim();
       String fields = type.split(":")[1].trim();
-      defineType(writer, baseName, className, fields);
+      // Fields after a '~' are caches the Interpreter fills in as it runs.
+      String cacheFields = null;
+      if (fields.contains("~")) {
+        cacheFields = fields.split("~")[1].trim();
+        fields = fields.split("~")[0].trim();
+      }
+      // Fields after a '|' are filled in later by the Resolver.
+      String resolvedFields = null;
+      if (fields.contains("|")) {
+        resolvedFields = fields.split("\\|")[1].trim();
+        fields = fields.split("\\|")[0].trim();
+      }
+      defineType(writer, baseName, className, fields, resolvedFields,
+          cacheFields);
     }
 
     // The base accept() method.
@@ -86,7 +101,8 @@ public class GenerateAst {
 
   private static void defineType(
       PrintWriter writer, String baseName,
-      String className, String fieldList) {
+      String className, String fieldList, String resolvedFieldList,
+      String cacheFieldList) {
     writer.println("  static class " + className + " extends " +
         baseName + " {");
 
@@ -116,6 +132,27 @@ public class GenerateAst {
       writer.println("    final " + field + ";");
     }
 
+    if (resolvedFieldList != null) {
+      writer.println();
+      writer.println("    // Set by the Resolver.");
+      for (String field : resolvedFieldList.split(", ")) {
+        writer.println("    " + field + ";");
+      }
+    }
+
+    if (cacheFieldList != null) {
+      writer.println();
+      writer.println("    // Filled in by the Interpreter as it runs.");
+      for (String field : cacheFieldList.split(", ")) {
+        if (field.contains("=")) {
+          writer.println("    " + field + ";");
+          continue;
+        }
+        String type = field.split(" ")[0];
+        writer.println("    final " + field + " = new " + type + "();");
+      }
+    }
+
     writer.println("  }");
   }
 }
\ No newline at end of file